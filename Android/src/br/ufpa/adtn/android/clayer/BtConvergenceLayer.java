@@ -42,9 +42,11 @@ import br.ufpa.adtn.bundle.Bundle;
 import br.ufpa.adtn.core.BPAgent;
 import br.ufpa.adtn.core.ConvergenceLayer;
 import br.ufpa.adtn.core.EID;
+import br.ufpa.adtn.util.BufferPool;
 import br.ufpa.adtn.util.ChainOfSegments;
-import br.ufpa.adtn.util.DataBlock;
+import br.ufpa.adtn.util.GatheringWriter;
 import br.ufpa.adtn.util.Logger;
+import br.ufpa.adtn.util.OutputStreamChannel;
 import br.ufpa.adtn.util.Properties;
 
 public class BtConvergenceLayer extends ConvergenceLayer<BtAdapter, BtConnection> {
@@ -53,6 +55,8 @@ public class BtConvergenceLayer extends ConvergenceLayer<BtAdapter, BtConnection
 	private static final Logger LOGGER = new Logger("BluetoothConvergenceLayer");
 	private static final short BUNDLE_HEADER = (short) 0x8A2D;
 	private static final short MAGIC_HEADER = (short) 0x4E10;
+	private static final int CHUNK_SIZE = 0x4000;
+	private static final int BUFFER_SIZE = 0x10000;
 	
 
 	@Override
@@ -133,6 +137,7 @@ public class BtConvergenceLayer extends ConvergenceLayer<BtAdapter, BtConnection
 		private BluetoothSocket socket;
 		
 		{
+			// The outbox already hands bundles in the send order
 			outputBundles = new LinkedBlockingQueue<Bundle>();
 		}
 		
@@ -157,14 +162,25 @@ public class BtConvergenceLayer extends ConvergenceLayer<BtAdapter, BtConnection
 		
 		@Override
 		public void send(Bundle bundle) {
+			try {
+				// Keep the payload alive until this bundle leaves the queue
+				bundle.getPayload().retain();
+			} catch (IllegalStateException e) {
+				LOGGER.w("Bundle released before being queued [IGNORING]");
+				return;
+			}
+			
 			outputBundles.offer(bundle);
 		}
 
 		@Override
 		protected void processOutput(OutputStream out) throws IOException {
+			final BufferPool pool = BufferPool.heap();
+			ByteBuffer buffer = null;
 			Bundle bundle = null;
 			try {
 				final DataOutputStream dos = new DataOutputStream(out);
+				final OutputStreamChannel channel = new OutputStreamChannel(dos);
 				dos.writeShort(MAGIC_HEADER);
 				
 				//FIXME Each ConvergenceLayer must have your own EID (if needed)
@@ -172,23 +188,29 @@ public class BtConvergenceLayer extends ConvergenceLayer<BtAdapter, BtConnection
 				dos.flush();
 				
 				while (!Thread.interrupted()) {
-					// Buffer allocation need get smarter
-					final ByteBuffer buffer = ByteBuffer.allocate(0x10000);
 					final ChainOfSegments chain = new ChainOfSegments();
 					
 					bundle = outputBundles.take();
 					notifyTransferStarted(bundle);
 					
+					buffer = pool.acquire(BUFFER_SIZE);
 					bundle.serialize(chain, buffer);
-					final DataBlock block = DataBlock.join(chain.getSegments());
-					final int bLength = block.getLength();
+					final GatheringWriter writer = new GatheringWriter(chain);
+					final int bLength = (int) writer.getRemaining();
 
 					dos.writeShort(BUNDLE_HEADER);
 					dos.writeInt(bLength);
-					block.copy(dos);
+					
+					while (!writer.isDone())
+						writer.write(channel, CHUNK_SIZE);
+					
 					dos.flush();
 					
+					pool.release(buffer);
+					buffer = null;
+					
 					notifyTransferred(bundle);
+					bundle.getPayload().release();
 					bundle = null;
 				}
 			} catch (InterruptedException e) {
@@ -198,8 +220,22 @@ public class BtConvergenceLayer extends ConvergenceLayer<BtAdapter, BtConnection
 			} finally {
 				LOGGER.d("EXITING(processOutput)");
 				
-				if (bundle != null)
+				if (buffer != null)
+					pool.release(buffer);
+				
+				/*
+				 * The other side does not acknowledge what it receives, so
+				 * the whole bundle stays stored. It turns whatever arrived
+				 * into a fragment on its own.
+				 */
+				if (bundle != null) {
 					notifyTransferAborted(bundle);
+					bundle.getPayload().release();
+				}
+				
+				// Unsent bundles are still in the outbox for the next contact
+				while ((bundle = outputBundles.poll()) != null)
+					bundle.getPayload().release();
 			}
 		}
 
@@ -218,16 +254,16 @@ public class BtConvergenceLayer extends ConvergenceLayer<BtAdapter, BtConnection
 					if (dis.readShort() != BUNDLE_HEADER)
 						throw new IOException("Wrong header");
 					
+					final int l;
 					try {
-						final int l = dis.readInt();
-						final byte[] b = new byte[l];
-						for (int r = 0, p = 0; (r = dis.read(b, p, l - p)) != -1 && r < l; p += r);
-						
-						notifyReceived(new Bundle(ByteBuffer.wrap(b)));
+						l = dis.readInt();
 					} catch (IOException e) {
 						LOGGER.w("Connection failure");
 						break;
 					}
+					
+					if (!receiveBundle(dis, l))
+						break;
 				}
 			} finally {
 				LOGGER.d("EXITING(processInput)");
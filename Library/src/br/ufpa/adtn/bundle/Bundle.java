@@ -32,23 +32,23 @@ public final class Bundle implements SerializableSegmentedObject {
 	private final DataBlock payload;
 	private final BundleInfo info;
 	
-	public Bundle(ByteBuffer buffer) {
-		this.info = BundleInfo.parse(buffer);
-		info.attach(this);
-		
-		if (buffer.get() != (byte) 0x01)
-			throw new RuntimeException("Wrong block type");
-		
-		if (buffer.get() != (byte) 0x08)
-			throw new RuntimeException("Wrong block flags");
-		
-		final byte[] data = new byte[SDNV.decodeInt(buffer)];
-		buffer.get(data);
-		
-		this.payload = DataBlock.wrap(data);
+	public Bundle(BundleInfo info, DataBlock payload) {
+		this(info, payload, true);
 	}
 	
-	public Bundle(BundleInfo info, DataBlock payload) {
+	/**
+	 * Rebuilds a bundle kept by a storage, e.g. after a restart, without
+	 * reporting it as a new bundle.
+	 */
+	public static Bundle restore(BundleInfo info, DataBlock payload) {
+		return new Bundle(info, payload, false);
+	}
+	
+	/**
+	 * Fragments and reassembled bundles are built with {@code created} set
+	 * to {@code false}, since they are not new bundles.
+	 */
+	Bundle(BundleInfo info, DataBlock payload, boolean created) {
 		if (info == null || payload == null)
 			throw new NullPointerException();
 		
@@ -59,7 +59,8 @@ public final class Bundle implements SerializableSegmentedObject {
 		this.info = info;
 		info.attach(this);
 		
-		InformationHub.onCreation(this);
+		if (created)
+			InformationHub.onCreation(this);
 	}
 	
 	/**
@@ -131,16 +132,31 @@ public final class Bundle implements SerializableSegmentedObject {
 
 	@Override
 	public void serialize(ChainOfSegments chain, ByteBuffer buffer) throws IOException {
-		final ByteBuffer pBuffer = payload.read();
+		final int plen = payload.getLength();
 		
 		info.serialize(chain, buffer);
 		
 		final BufferSlicer slicer = new BufferSlicer(buffer);
 		buffer.put((byte) 0x01);
 		buffer.put((byte) 0x08);
-		SDNV.encodeInt(buffer, payload.getLength());
-		chain.append(slicer.end());
+		SDNV.encodeInt(buffer, plen);
 		
-		chain.append(pBuffer);
+		/*
+		 * Payloads produced on demand, like routing messages, are written
+		 * right after the header when they fit instead of being encoded in
+		 * a buffer of their own. Buffer and file payloads are appended as
+		 * they are, since reading them copies nothing.
+		 */
+		if (!payload.isMaterialized() && plen <= buffer.remaining()) {
+			final int start = buffer.position();
+			payload.copy(buffer);
+			if (buffer.position() - start != plen)
+				throw new IOException("Payload length mismatch");
+			
+			chain.append(slicer.end());
+		} else {
+			chain.append(slicer.end());
+			chain.append(payload);
+		}
 	}
 }
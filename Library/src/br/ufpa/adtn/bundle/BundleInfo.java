@@ -18,10 +18,7 @@
 package br.ufpa.adtn.bundle;
 
 import java.nio.ByteBuffer;
-import java.util.HashMap;
-import java.util.LinkedHashSet;
-import java.util.Map;
-import java.util.Set;
+import java.util.Arrays;
 
 import br.ufpa.adtn.core.BPAgent;
 import br.ufpa.adtn.core.EID;
@@ -48,6 +45,13 @@ public final class BundleInfo implements SerializableSegmentedObject {
 	 */
 	public final static int IS_META_BUNDLE_FLAG			= 0x40;
 	
+	/**
+	 * Class of service (bits 7 and 8)
+	 */
+	public final static int PRIORITY_BULK				= 0;
+	public final static int PRIORITY_NORMAL				= 1;
+	public final static int PRIORITY_EXPEDITED			= 2;
+	
 	private static long DEFAULT_LIFETIME;
 	private static long CREATION_TIME;
 	private static int CREATION_SEQ;
@@ -141,10 +145,32 @@ public final class BundleInfo implements SerializableSegmentedObject {
 		);
 	}
 	
+	/**
+	 * Rebuilds a primary block from its fields, as kept by storages that
+	 * index bundles instead of holding their objects.
+	 */
+	public static BundleInfo restore(EID destination, EID custodian,
+			EID reportTo, EID source, long creation_time, int creation_seq,
+			int fragment_offset, int total_data_len, long lifetime, int flags) {
+	
+		return new BundleInfo(
+				destination,
+				custodian,
+				reportTo,
+				source,
+				creation_time,
+				creation_seq,
+				fragment_offset,
+				total_data_len,
+				lifetime,
+				flags
+		);
+	}
 	
-	private final EID destination;
-	private final EID custodian;
-	private final EID reportTo;
+
+	private volatile EID destination;
+	private volatile EID custodian;
+	private volatile EID reportTo;
 	private final EID source;
 
 	private final long creation_time;
@@ -157,66 +183,67 @@ public final class BundleInfo implements SerializableSegmentedObject {
 	private final int flags;
 
 	private Bundle bundle;
+	private long uniqueID;
 	private int block_len;
 	
+	/**
+	 * Encoded primary block. It is taken from the wire when parsed or built
+	 * on the first serialization, so forwarding the same bundle to many
+	 * neighbors never encodes it again. It is never written once set, so
+	 * it is appended to chains as it is and streams get it without a copy.
+	 */
+	private volatile byte[] encoded;
+	
+	/**
+	 * Parsed blocks keep their dictionary (inside the raw block) and the
+	 * absolute offsets of its strings. Destination, report-to and custodian
+	 * are only resolved when requested, since relayed and duplicated
+	 * bundles rarely need them.
+	 */
+	private final byte[] dictionary;
+	private final int[] strings;
+	
 	private BundleInfo(ByteBuffer buffer) throws ParsingException {
+		final int p0 = buffer.position();
 		if (buffer.get() != BPAgent.VERSION)
 			throw new ParsingException("Version not supported");
 
-		final int p0 = buffer.position();
 		flags = SDNV.decodeInt(buffer);
 
 		final int length = SDNV.decodeInt(buffer);
 		final int start = buffer.position();
 		if (buffer.remaining() < length)
 			throw new ParsingException("Buffer offset problem");
+		
+		final byte[] raw = new byte[start - p0 + length];
+		final ByteBuffer copy = buffer.duplicate();
+		copy.position(p0);
+		copy.get(raw);
 
-		final int[] offsets = new int[] {
-				SDNV.decodeInt(buffer),
-				SDNV.decodeInt(buffer),
-				SDNV.decodeInt(buffer),
-				SDNV.decodeInt(buffer),
-				SDNV.decodeInt(buffer),
-				SDNV.decodeInt(buffer),
-				SDNV.decodeInt(buffer),
-				SDNV.decodeInt(buffer)
-		};
+		final int[] offsets = new int[8];
+		SDNV.decodeInts(buffer, offsets, 0, 8);
 
 		creation_time = SDNV.decodeLong(buffer);
 		creation_seq = SDNV.decodeInt(buffer);
 		lifetime = SDNV.decodeInt(buffer);
 
-		final byte[] data = new byte[SDNV.decodeInt(buffer)];
-		buffer.get(data);
-		
-		String scheme;
-		String ssp;
-		int offset;
-		int pos;
-
-		for (offset = offsets[0], pos = offset; data[pos] != (byte) 0; pos++);
-		scheme = new String(data, offset, pos - offset);
-		for (offset = offsets[1], pos = offset; data[pos] != (byte) 0; pos++);
-		ssp = new String(data, offset, pos - offset);
-		destination = EID.get(scheme, ssp);
-
-		for (offset = offsets[2], pos = offset; data[pos] != (byte) 0; pos++);
-		scheme = new String(data, offset, pos - offset);
-		for (offset = offsets[3], pos = offset; data[pos] != (byte) 0; pos++);
-		ssp = new String(data, offset, pos - offset);
-		source = EID.get(scheme, ssp);
-
-		for (offset = offsets[4], pos = offset; data[pos] != (byte) 0; pos++);
-		scheme = new String(data, offset, pos - offset);
-		for (offset = offsets[5], pos = offset; data[pos] != (byte) 0; pos++);
-		ssp = new String(data, offset, pos - offset);
-		reportTo = EID.get(scheme, ssp);
-		
-		for (offset = offsets[6], pos = offset; data[pos] != (byte) 0; pos++);
-		scheme = new String(data, offset, pos - offset);
-		for (offset = offsets[7], pos = offset; data[pos] != (byte) 0; pos++);
-		ssp = new String(data, offset, pos - offset);
-		custodian = EID.get(scheme, ssp);
+		final int dlen = SDNV.decodeInt(buffer);
+		final int dstart = buffer.position() - p0;
+		if (dlen <= 0 || dlen > buffer.remaining() || raw[dstart + dlen - 1] != (byte) 0)
+			throw new ParsingException("Malformed dictionary");
+		
+		for (int i = 0; i < 8; i++) {
+			if (offsets[i] < 0 || offsets[i] >= dlen)
+				throw new ParsingException("Dictionary offset out of bounds");
+			
+			offsets[i] += dstart;
+		}
+		
+		buffer.position(buffer.position() + dlen);
+		dictionary = raw;
+		strings = offsets;
+		
+		source = resolve(2);
 		
 		if (isFragment()) {
 			fragment_offset = SDNV.decodeInt(buffer);
@@ -230,7 +257,8 @@ public final class BundleInfo implements SerializableSegmentedObject {
 		if (length != (pf - start))
 			throw new ParsingException("Buffer offset problem");
 		
-		block_len = pf - p0 + 1;
+		block_len = raw.length;
+		encoded = raw;
 		bundle = null;
 	}
 	
@@ -250,27 +278,58 @@ public final class BundleInfo implements SerializableSegmentedObject {
 		this.flags = flags;
 		
 		this.block_len = -1;
+		this.dictionary = null;
+		this.encoded = null;
+		this.strings = null;
 		this.bundle = null;
 	}
 	
+	/**
+	 * Interns the EID whose scheme and SSP start at {@code strings[index]}
+	 * and {@code strings[index + 1]}, straight from the dictionary bytes.
+	 */
+	private EID resolve(int index) {
+		return EID.get(dictionary, strings[index], strings[index + 1]);
+	}
+	
 	public boolean isExpired() {
-		return getSecondsToExpiration() > 0;
+		return getSecondsToExpiration() <= 0;
 	}
 	
 	public long getSecondsToExpiration() {
-		return SECONDS_AT_2K + creation_time + lifetime - SystemClock.secs();
+		return getExpirationTime() - SystemClock.secs();
+	}
+	
+	/**
+	 * Returns the time, in {@link SystemClock#secs()} seconds, at which this
+	 * bundle expires.
+	 */
+	public long getExpirationTime() {
+		return SECONDS_AT_2K + creation_time + lifetime;
 	}
 	
 	public EID getDestination() {
-		return destination;
+		EID eid = destination;
+		if (eid == null)
+			destination = eid = resolve(0);
+		
+		return eid;
 	}
 
 	public EID getCustodian() {
-		return custodian;
+		EID eid = custodian;
+		if (eid == null)
+			custodian = eid = resolve(6);
+		
+		return eid;
 	}
 
 	public EID getReportTo() {
-		return reportTo;
+		EID eid = reportTo;
+		if (eid == null)
+			reportTo = eid = resolve(4);
+		
+		return eid;
 	}
 
 	public EID getSource() {
@@ -324,35 +383,19 @@ public final class BundleInfo implements SerializableSegmentedObject {
 		return (flags & IS_META_BUNDLE_FLAG) != 0;
 	}
 	
+	/**
+	 * Class of service asked by the source, one of the {@code PRIORITY_*}
+	 * constants.
+	 */
+	public int getPriority() {
+		return (flags >> 7) & 0x03;
+	}
+	
 	public long getUniqueID() {
 		if (bundle == null)
 			throw new IllegalStateException("Not attached");
 		
-		long hi_result = 1;
-		long lo_result = 1;
-		
-		final int plen = bundle.getPayload().getLength();
-		final int src_hash = source.hashCode();
-		
-		hi_result = 11 * hi_result + creation_time;
-		hi_result = 11 * hi_result + creation_seq;
-		hi_result = 11 * hi_result + src_hash;
-		hi_result = 11 * hi_result + plen;
-
-		lo_result = 23 * lo_result + creation_time;
-		lo_result = 23 * lo_result + creation_seq;
-		lo_result = 23 * lo_result + src_hash;
-		lo_result = 23 * lo_result + plen;
-
-		if (isFragment()) {
-			hi_result = 11 * hi_result + fragment_offset;
-			hi_result = 11 * hi_result + total_data_len;
-
-			lo_result = 23 * lo_result + fragment_offset;
-			lo_result = 23 * lo_result + total_data_len;
-		}
-		
-		return ((hi_result & 0xFFFFFFFFL) << 32) | (lo_result & 0xFFFFFFFFL);
+		return uniqueID;
 	}
 	
 	@Override
@@ -360,20 +403,47 @@ public final class BundleInfo implements SerializableSegmentedObject {
 		if (bundle == null)
 			throw new IllegalStateException("Not attached");
 		
-		final int prime = 31;
-		int result = 1;
+		return (int) (uniqueID ^ (uniqueID >>> 32));
+	}
+	
+	/**
+	 * Mixes source, creation timestamp and, for fragments, offset, total
+	 * length and payload length into a 64-bit identifier. These are the
+	 * fields {@link #equals(Object)} compares. Every step goes through the MurmurHash3
+	 * finalizer, so nearby sequence numbers and timestamps spread over the
+	 * whole key space.
+	 */
+	private long computeUniqueID() {
+		long h = 0xCBF29CE484222325L;
+		h = hash(h, source.getScheme());
+		h = hash(h, source.getSSP());
 		
-		result = prime * result + bundle.getPayload().getLength();
-		result = prime * result + source.hashCode();
-		result = prime * result + creation_seq;
-		result = (int) (prime * result + creation_time);
+		h = mix(h ^ creation_time);
+		h = mix(h ^ creation_seq);
 		
 		if (isFragment()) {
-			result = prime * result + fragment_offset;
-			result = prime * result + total_data_len;
+			h = mix(h ^ fragment_offset);
+			h = mix(h ^ total_data_len);
+			h = mix(h ^ bundle.getPayload().getLength());
 		}
 		
-		return result;
+		return h;
+	}
+	
+	private static long hash(long h, String str) {
+		for (int i = 0, len = str.length(); i < len; i++)
+			h = (h ^ str.charAt(i)) * 0x100000001B3L;
+		
+		return mix(h ^ str.length());
+	}
+	
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		h *= 0xC4CEB9FE1A85EC53L;
+		h ^= h >>> 33;
+		return h;
 	}
 
 	@Override
@@ -402,12 +472,72 @@ public final class BundleInfo implements SerializableSegmentedObject {
 			if (fragment_offset != other.fragment_offset)
 				return false;
 			if (total_data_len != other.total_data_len)
-				return false;	
+				return false;
+			if (bundle.getPayload().getLength() != other.bundle.getPayload().getLength())
+				return false;
 		}
 		
 		return true;
 	}
 
+	/**
+	 * Creates the primary block of a fragment holding the payload of this
+	 * bundle from {@code offset} on. {@code length} is the payload length of
+	 * this bundle, used as total length when it is not a fragment itself.
+	 */
+	BundleInfo fragment(int offset, int length) {
+		return new BundleInfo(
+				getDestination(),
+				getCustodian(),
+				getReportTo(),
+				source,
+				creation_time,
+				creation_seq,
+				isFragment() ? fragment_offset + offset : offset,
+				isFragment() ? total_data_len : length,
+				lifetime,
+				flags | BUNDLE_IS_A_FRAGMENT_FLAG
+		);
+	}
+	
+	/**
+	 * Creates the primary block of the original bundle this fragment was
+	 * taken from.
+	 */
+	BundleInfo reassembled() {
+		return new BundleInfo(
+				getDestination(),
+				getCustodian(),
+				getReportTo(),
+				source,
+				creation_time,
+				creation_seq,
+				0,
+				0,
+				lifetime,
+				flags & ~BUNDLE_IS_A_FRAGMENT_FLAG
+		);
+	}
+
+	/**
+	 * Creates a detached copy of this primary block, for another instance
+	 * of the same bundle.
+	 */
+	public BundleInfo copy() {
+		return new BundleInfo(
+				getDestination(),
+				getCustodian(),
+				getReportTo(),
+				source,
+				creation_time,
+				creation_seq,
+				fragment_offset,
+				total_data_len,
+				lifetime,
+				flags
+		);
+	}
+
 	boolean isAttached() {
 		return bundle != null;
 	}
@@ -420,6 +550,7 @@ public final class BundleInfo implements SerializableSegmentedObject {
 			throw new IllegalStateException("Already attached");
 		
 		this.bundle = bundle;
+		this.uniqueID = computeUniqueID();
 	}
 	
 	public int getBlockLength() {
@@ -430,81 +561,16 @@ public final class BundleInfo implements SerializableSegmentedObject {
 	}
 	
 	private int getBlockLength0() {
-		final Map<String, Integer> offsets = new HashMap<String, Integer>();
+		final byte[][] strings = getDictionaryStrings();
+		final int[] offsets = new int[strings.length];
+		final int dlen = layoutDictionary(strings, offsets);
+		
 		int glen =	SDNV.length(creation_time)	+
 					SDNV.length(creation_seq)	+
 					SDNV.length(lifetime);
 		
-		Integer offset;
-		int dlen = 0;
-		String str;
-
-		if ((offset = offsets.get(str = destination.getScheme())) == null) {
-			final int length = str.getBytes().length;
-			glen += SDNV.length(dlen);
-			dlen += length + 1;
-		} else {
-			glen += SDNV.length(offset);
-		}
-
-		if ((offset = offsets.get(str = destination.getSSP())) == null) {
-			final int length = str.getBytes().length;
-			glen += SDNV.length(dlen);
-			dlen += length + 1;
-		} else {
-			glen += SDNV.length(offset);
-		}
-		
-
-		if ((offset = offsets.get(str = source.getScheme())) == null) {
-			final int length = str.getBytes().length;
-			glen += SDNV.length(dlen);
-			dlen += length + 1;
-		} else {
-			glen += SDNV.length(offset);
-		}
-
-		if ((offset = offsets.get(str = source.getSSP())) == null) {
-			final int length = str.getBytes().length;
-			glen += SDNV.length(dlen);
-			dlen += length + 1;
-		} else {
-			glen += SDNV.length(offset);
-		}
-		
-
-		if ((offset = offsets.get(str = reportTo.getScheme())) == null) {
-			final int length = str.getBytes().length;
-			glen += SDNV.length(dlen);
-			dlen += length + 1;
-		} else {
-			glen += SDNV.length(offset);
-		}
-
-		if ((offset = offsets.get(str = reportTo.getSSP())) == null) {
-			final int length = str.getBytes().length;
-			glen += SDNV.length(dlen);
-			dlen += length + 1;
-		} else {
-			glen += SDNV.length(offset);
-		}
-		
-
-		if ((offset = offsets.get(str = custodian.getScheme())) == null) {
-			final int length = str.getBytes().length;
-			glen += SDNV.length(dlen);
-			dlen += length + 1;
-		} else {
-			glen += SDNV.length(offset);
-		}
-
-		if ((offset = offsets.get(str = custodian.getSSP())) == null) {
-			final int length = str.getBytes().length;
-			glen += SDNV.length(dlen);
-			dlen += length + 1;
-		} else {
-			glen += SDNV.length(offset);
-		}
+		for (int i = 0; i < offsets.length; i++)
+			glen += SDNV.length(offsets[i]);
 		
 		glen += dlen + SDNV.length(dlen);
 		if (isFragment())
@@ -513,151 +579,78 @@ public final class BundleInfo implements SerializableSegmentedObject {
 		return 1 + SDNV.length(flags) + SDNV.length(glen) + glen;
 	}
 	
-	private int[] serializeDictionary(ByteBuffer buffer) {
-		final Set<String> strings = new LinkedHashSet<String>();
-		final int[] offsets = new int[8];
-		byte[] data = null;
-		int offset = 0;
-		
-		final String str0 = destination.getScheme();
-		offsets[0] = offset;
-		
-		data = str0.getBytes();
-		buffer.put(data).put((byte) 0);
-		offset += data.length + 1;
-		
-		final String str1 = destination.getSSP();
-		if (strings.add(str1)) {
-			offsets[1] = offset;
-
-			data = str1.getBytes();
-			buffer.put(data).put((byte) 0);
-			offset += data.length + 1;
-		} else {
-			if (str1.equals(str0))
-				offsets[1] = offsets[0];
-		}
-		
-		final String str2 = source.getScheme();
-		if (strings.add(str2)) {
-			offsets[2] = offset;
-
-			data = str2.getBytes();
-			buffer.put(data).put((byte) 0);
-			offset += data.length + 1;
-		} else {
-			if (str2.equals(str0))
-				offsets[2] = offsets[0];
-			else if (str2.equals(str1))
-				offsets[2] = offsets[1];
-		}
-		
-		final String str3 = source.getSSP();
-		if (strings.add(str3)) {
-			offsets[3] = offset;
-
-			data = str3.getBytes();
-			buffer.put(data).put((byte) 0);
-			offset += data.length + 1;
-		} else {
-			if (str3.equals(str0))
-				offsets[3] = offsets[0];
-			else if (str3.equals(str1))
-				offsets[3] = offsets[1];
-			else if (str3.equals(str2))
-				offsets[3] = offsets[2];
-		}
-		
-		final String str4 = reportTo.getScheme();
-		if (strings.add(str4)) {
-			offsets[4] = offset;
-
-			data = str4.getBytes();
-			buffer.put(data).put((byte) 0);
-			offset += data.length + 1;
-		} else {
-			if (str4.equals(str0))
-				offsets[4] = offsets[0];
-			else if (str4.equals(str1))
-				offsets[4] = offsets[1];
-			else if (str4.equals(str2))
-				offsets[4] = offsets[2];
-			else if (str4.equals(str3))
-				offsets[4] = offsets[3];
-		}
-		
-		final String str5 = reportTo.getSSP();
-		if (strings.add(str5)) {
-			offsets[5] = offset;
-
-			data = str5.getBytes();
-			buffer.put(data).put((byte) 0);
-			offset += data.length + 1;
-		} else {
-			if (str5.equals(str0))
-				offsets[5] = offsets[0];
-			else if (str5.equals(str1))
-				offsets[5] = offsets[1];
-			else if (str5.equals(str2))
-				offsets[5] = offsets[2];
-			else if (str5.equals(str3))
-				offsets[5] = offsets[3];
-			else if (str5.equals(str4))
-				offsets[5] = offsets[4];
-		}
-		
-		final String str6 = custodian.getScheme();
-		if (strings.add(str6)) {
-			offsets[6] = offset;
-
-			data = str6.getBytes();
-			buffer.put(data).put((byte) 0);
-			offset += data.length + 1;
-		} else {
-			if (str6.equals(str0))
-				offsets[6] = offsets[0];
-			else if (str6.equals(str1))
-				offsets[6] = offsets[1];
-			else if (str6.equals(str2))
-				offsets[6] = offsets[2];
-			else if (str6.equals(str3))
-				offsets[6] = offsets[3];
-			else if (str6.equals(str4))
-				offsets[6] = offsets[4];
-			else if (str6.equals(str5))
-				offsets[6] = offsets[5];
+	/**
+	 * Dictionary strings in the order their offsets appear in the block:
+	 * destination, source, report-to and custodian, scheme before SSP.
+	 */
+	private byte[][] getDictionaryStrings() {
+		return new byte[][] {
+				destination.getScheme().getBytes(),
+				destination.getSSP().getBytes(),
+				source.getScheme().getBytes(),
+				source.getSSP().getBytes(),
+				reportTo.getScheme().getBytes(),
+				reportTo.getSSP().getBytes(),
+				custodian.getScheme().getBytes(),
+				custodian.getSSP().getBytes()
+		};
+	}
+	
+	/**
+	 * Fills {@code offsets} with the dictionary offset of each string,
+	 * storing repeated strings only once, and returns the dictionary length.
+	 * Both the length computation and the encoder use this layout.
+	 */
+	private static int layoutDictionary(byte[][] strings, int[] offsets) {
+		int length = 0;
+		
+		next: for (int i = 0; i < strings.length; i++) {
+			for (int j = 0; j < i; j++) {
+				if (Arrays.equals(strings[i], strings[j])) {
+					offsets[i] = offsets[j];
+					continue next;
+				}
+			}
+			
+			offsets[i] = length;
+			length += strings[i].length + 1;
 		}
 		
-		final String str7 = custodian.getSSP();
-		if (strings.add(str7)) {
-			offsets[7] = offset;
-
-			data = str7.getBytes();
-			buffer.put(data).put((byte) 0);
-			offset += data.length + 1;
-		} else {
-			if (str7.equals(str0))
-				offsets[7] = offsets[0];
-			else if (str7.equals(str1))
-				offsets[7] = offsets[1];
-			else if (str7.equals(str2))
-				offsets[7] = offsets[2];
-			else if (str7.equals(str3))
-				offsets[7] = offsets[3];
-			else if (str7.equals(str4))
-				offsets[7] = offsets[4];
-			else if (str7.equals(str5))
-				offsets[7] = offsets[5];
-			else if (str7.equals(str6))
-				offsets[7] = offsets[6];
+		return length;
+	}
+	
+	private int[] serializeDictionary(ByteBuffer buffer) {
+		final byte[][] strings = getDictionaryStrings();
+		final int[] offsets = new int[strings.length];
+		layoutDictionary(strings, offsets);
+		
+		for (int i = 0, end = 0; i < strings.length; i++) {
+			// Repeated strings point back into what was already written
+			if (offsets[i] == end) {
+				buffer.put(strings[i]).put((byte) 0);
+				end += strings[i].length + 1;
+			}
 		}
 		
-		
 		return offsets;
 	}
 
 	@Override
 	public void serialize(ChainOfSegments chain, ByteBuffer buffer) {
+		byte[] data = encoded;
+		if (data == null)
+			encoded = data = encode(buffer);
+		
+		chain.append(data);
+	}
+	
+	/**
+	 * Encodes the primary block using {@code buffer} as scratch area and
+	 * returns a copy of it. The position of {@code buffer} is left
+	 * untouched.
+	 */
+	private byte[] encode(ByteBuffer buffer) {
+		final int p0 = buffer.position();
 		final BufferSlicer slicer = new BufferSlicer(buffer);
 		
 		buffer.put(BPAgent.VERSION);
@@ -695,12 +688,20 @@ public final class BundleInfo implements SerializableSegmentedObject {
 		SDNV.encodeInt(buffer, buffer.position() - blockStart);
 		final ByteBuffer blocklen = slicer.end();
 
-		chain.append(bh);
-		chain.append(blocklen);
-		chain.append(middle);
-		chain.append(dict);
+		final int length = buffer.position() - p0;
+		final ByteBuffer data = ByteBuffer.allocate(length);
+		data.put(bh);
+		data.put(blocklen);
+		data.put(middle);
+		data.put(dict);
 		
 		if (fragment != null)
-			chain.append(fragment);
+			data.put(fragment);
+		
+		data.flip();
+		buffer.position(p0);
+		block_len = length;
+		
+		return data.array();
 	}
 }
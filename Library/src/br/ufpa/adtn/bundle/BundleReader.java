@@ -0,0 +1,270 @@
+/**
+ * Amazon-DTN - Lightweight Delay Tolerant Networking Implementation
+ * Copyright (C) 2013  Dórian C. Langbeck
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package br.ufpa.adtn.bundle;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import br.ufpa.adtn.core.ParsingException;
+import br.ufpa.adtn.util.BufferPool;
+import br.ufpa.adtn.util.DataBlock;
+import br.ufpa.adtn.util.Logger;
+import br.ufpa.adtn.util.SDNV;
+
+/**
+ * Decodes bundles straight from a stream. The primary block is read and
+ * parsed first; payloads longer than the spool threshold are then written
+ * to a temporary file as they arrive, so a large bundle never needs to fit
+ * in memory.
+ */
+public final class BundleReader {
+	private static final Logger LOGGER = new Logger("BundleReader");
+	private static final int CHUNK_SIZE = 0x10000;
+	
+	private final File directory;
+	private final int threshold;
+	
+	/**
+	 * @param directory where payloads are spooled or {@code null} to use
+	 * the default temporary-file directory
+	 * @param threshold payloads longer than this are spooled
+	 */
+	public BundleReader(File directory, int threshold) {
+		this.directory = directory;
+		this.threshold = threshold;
+	}
+	
+	public File getDirectory() {
+		return directory;
+	}
+	
+	public int getThreshold() {
+		return threshold;
+	}
+	
+	/**
+	 * Reads a bundle taking {@code length} bytes of {@code in}.
+	 * 
+	 * @throws EOFException if the stream ended before the payload
+	 * @throws TruncatedBundleException if the stream ended in the middle of
+	 * the payload
+	 */
+	public Bundle read(InputStream in, int length) throws IOException {
+		final byte[] prefix = new byte[11];
+		int plen = 0;
+		
+		prefix[plen++] = (byte) readByte(in);
+		plen = readSDNV(in, prefix, plen);
+		
+		final int bstart = plen;
+		plen = readSDNV(in, prefix, plen);
+		
+		final int blockLength = SDNV.decodeInt(prefix, bstart);
+		if (blockLength < 0 || plen + blockLength > length)
+			throw new ParsingException("Primary block overflow");
+		
+		final byte[] head = new byte[plen + blockLength];
+		System.arraycopy(prefix, 0, head, 0, plen);
+		if (fill(in, head, plen, blockLength) < blockLength)
+			throw new EOFException("Truncated primary block");
+		
+		final BundleInfo info = BundleInfo.parse(ByteBuffer.wrap(head));
+		
+		if (readByte(in) != 0x01)
+			throw new ParsingException("Wrong block type");
+		
+		if (readByte(in) != 0x08)
+			throw new ParsingException("Wrong block flags");
+		
+		final int hlen = readSDNV(in, prefix, 0);
+		final int plength = SDNV.decodeInt(prefix, 0);
+		final int consumed = head.length + 2 + hlen;
+		if (plength < 0 || (long) consumed + plength > length)
+			throw new ParsingException("Payload overflow");
+		
+		final DataBlock payload = (plength > threshold) ?
+				spool(in, info, plength) :
+				load(in, info, plength);
+		
+		for (long skip = length - consumed - plength; skip > 0; ) {
+			final long skipped = in.skip(skip);
+			if (skipped <= 0) {
+				if (in.read() == -1)
+					break;
+				
+				skip--;
+			} else {
+				skip -= skipped;
+			}
+		}
+		
+		return new Bundle(info, payload, false);
+	}
+	
+	/**
+	 * Reads a payload into an array of its own size. Stored bundles keep
+	 * their payloads, so sharing a larger buffer among them would keep all
+	 * of it alive for as long as any of them is stored.
+	 */
+	private DataBlock load(InputStream in, BundleInfo info, int length) throws IOException {
+		final byte[] data = new byte[length];
+		int received = 0;
+		while (received < length) {
+			final int count;
+			try {
+				count = in.read(data, received, length - received);
+			} catch (IOException e) {
+				LOGGER.w("Connection failure while receiving payload");
+				break;
+			}
+			
+			if (count == -1)
+				break;
+			
+			received += count;
+		}
+		
+		if (received < length) {
+			throw new TruncatedBundleException(received > 0 && info.canFragment() ?
+					new Bundle(
+							info.fragment(0, length),
+							DataBlock.wrap(data, 0, received),
+							false
+					) : null
+			);
+		}
+		
+		return DataBlock.wrap(data);
+	}
+	
+	private DataBlock spool(InputStream in, BundleInfo info, int length) throws IOException {
+		final File file = File.createTempFile("bundle-", ".payload", directory);
+		LOGGER.v(String.format("Spooling %d bytes to %s", length, file));
+		
+		int received = 0;
+		boolean failed = false;
+		final OutputStream out = new FileOutputStream(file);
+		final ByteBuffer buffer = BufferPool.heap().acquire(CHUNK_SIZE);
+		try {
+			final byte[] chunk = buffer.array();
+			while (received < length) {
+				final int count;
+				try {
+					count = in.read(chunk, 0, Math.min(chunk.length, length - received));
+				} catch (IOException e) {
+					LOGGER.w("Connection failure while receiving payload");
+					break;
+				}
+				
+				if (count == -1)
+					break;
+				
+				out.write(chunk, 0, count);
+				received += count;
+			}
+		} catch (IOException e) {
+			failed = true;
+			throw e;
+		} finally {
+			BufferPool.heap().release(buffer);
+			try {
+				out.close();
+			} finally {
+				if (failed)
+					file.delete();
+			}
+		}
+		
+		if (received < length) {
+			if (received == 0 || !info.canFragment()) {
+				file.delete();
+				throw new TruncatedBundleException(null);
+			}
+			
+			throw new TruncatedBundleException(new Bundle(
+					info.fragment(0, length),
+					DataBlock.spool(file),
+					false
+			));
+		}
+		
+		return DataBlock.spool(file);
+	}
+	
+	private static int readByte(InputStream in) throws IOException {
+		final int b = in.read();
+		if (b == -1)
+			throw new EOFException();
+		
+		return b;
+	}
+	
+	/**
+	 * Copies an SDNV of up to 5 bytes from {@code in} into {@code data}.
+	 * 
+	 * @return the offset after the copied SDNV
+	 */
+	private static int readSDNV(InputStream in, byte[] data, int offset) throws IOException {
+		for (int i = 0; i < 5; i++) {
+			final int b = readByte(in);
+			data[offset++] = (byte) b;
+			if ((b & 0x80) == 0)
+				return offset;
+		}
+		
+		throw new ParsingException("SDNV overflow");
+	}
+	
+	/**
+	 * Reads until {@code length} bytes arrive or the stream ends.
+	 * 
+	 * @return the number of bytes read
+	 */
+	private static int fill(InputStream in, byte[] data, int offset, int length) throws IOException {
+		int count = 0;
+		for (int r; count < length && (r = in.read(data, offset + count, length - count)) != -1; count += r);
+		return count;
+	}
+	
+	
+	/**
+	 * Thrown when the stream ends in the middle of a payload. The bytes
+	 * received so far are kept as a fragment when the bundle allows it.
+	 */
+	public static class TruncatedBundleException extends EOFException {
+		private static final long serialVersionUID = -2873547063620178313L;
+		private final transient Bundle fragment;
+		
+		public TruncatedBundleException(Bundle fragment) {
+			super("Truncated payload");
+			this.fragment = fragment;
+		}
+		
+		/**
+		 * @return the received part of the bundle or {@code null}
+		 */
+		public Bundle getFragment() {
+			return fragment;
+		}
+	}
+}
@@ -0,0 +1,233 @@
+/**
+ * Amazon-DTN - Lightweight Delay Tolerant Networking Implementation
+ * Copyright (C) 2013  Dórian C. Langbeck
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package br.ufpa.adtn.bundle;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+import br.ufpa.adtn.core.EID;
+import br.ufpa.adtn.util.DataBlock;
+import br.ufpa.adtn.util.Logger;
+
+/**
+ * Rebuilds bundles from their fragments. Fragments may arrive in any order
+ * and overlap each other; each original bundle has a buffer of its total
+ * length where fragments are copied at their offsets.
+ */
+public final class FragmentReassembler {
+	private static final Logger LOGGER = new Logger("FragmentReassembler");
+	
+	private final Map<Key, Entry> entries;
+	private final long capacity;
+	private long used;
+	
+	/**
+	 * @param capacity maximum number of bytes kept by partial bundles
+	 */
+	public FragmentReassembler(long capacity) {
+		this.entries = new HashMap<Key, Entry>();
+		this.capacity = capacity;
+		this.used = 0L;
+	}
+	
+	/**
+	 * Adds {@code fragment} and returns the original bundle when it was the
+	 * last missing piece, or {@code null} otherwise. The fragment payload is
+	 * copied, so it may be released as soon as this call returns.
+	 */
+	public synchronized Bundle add(Bundle fragment) throws IOException {
+		final BundleInfo info = fragment.getInfo();
+		if (!info.isFragment())
+			throw new IllegalArgumentException("Not a fragment");
+		
+		purge();
+		
+		final int total = info.getTotalDataLength();
+		final int offset = info.getFragmentOffset();
+		final int length = fragment.getPayloadLength();
+		if (total <= 0 || offset < 0 || offset + length > total) {
+			LOGGER.w(String.format(
+					"Fragment %016x out of bounds [IGNORING]",
+					fragment.getUniqueID()
+			));
+			return null;
+		}
+		
+		final Key key = new Key(info);
+		Entry entry = entries.get(key);
+		if (entry == null) {
+			if (used + total > capacity) {
+				LOGGER.w(String.format(
+						"No space to reassemble %d bytes [IGNORING]",
+						total
+				));
+				return null;
+			}
+			
+			entry = new Entry(info, total);
+			entries.put(key, entry);
+			used += total;
+		} else if (entry.data.length != total) {
+			LOGGER.w(String.format(
+					"Fragment %016x total length mismatch [IGNORING]",
+					fragment.getUniqueID()
+			));
+			return null;
+		}
+		
+		final ByteBuffer data = fragment.getPayload().read();
+		data.get(entry.data, offset, length);
+		entry.cover(offset, offset + length);
+		
+		if (!entry.isComplete())
+			return null;
+		
+		entries.remove(key);
+		used -= total;
+		
+		return new Bundle(
+				entry.info.reassembled(),
+				DataBlock.wrap(entry.data),
+				false
+		);
+	}
+	
+	/**
+	 * Discards the partial copy of a bundle that arrived whole.
+	 */
+	public synchronized void discard(BundleInfo info) {
+		final Entry entry = entries.remove(new Key(info));
+		if (entry != null)
+			used -= entry.data.length;
+	}
+	
+	/**
+	 * Discards partial bundles whose lifetime is over.
+	 */
+	public synchronized void purge() {
+		for (Iterator<Entry> it = entries.values().iterator(); it.hasNext();) {
+			final Entry entry = it.next();
+			if (entry.info.getSecondsToExpiration() > 0)
+				continue;
+			
+			LOGGER.d(String.format(
+					"Partial bundle from %s expired with %d of %d bytes",
+					entry.info.getSource(),
+					entry.covered,
+					entry.data.length
+			));
+			
+			used -= entry.data.length;
+			it.remove();
+		}
+	}
+	
+	public synchronized int getPending() {
+		return entries.size();
+	}
+	
+	public synchronized long getUsed() {
+		return used;
+	}
+	
+	
+	private static class Key {
+		private final long creation_time;
+		private final int creation_seq;
+		private final EID source;
+		
+		public Key(BundleInfo info) {
+			this.creation_time = info.getCreationTime();
+			this.creation_seq = info.getCreationSequence();
+			this.source = info.getSource();
+		}
+
+		@Override
+		public int hashCode() {
+			final int prime = 31;
+			int result = 1;
+			result = prime * result + source.hashCode();
+			result = prime * result + creation_seq;
+			result = prime * result + (int) (creation_time ^ (creation_time >>> 32));
+			return result;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)					return true;
+			if (!(obj instanceof Key))			return false;
+			
+			final Key other = (Key) obj;
+			return	creation_time == other.creation_time &&
+					creation_seq == other.creation_seq &&
+					source.equals(other.source);
+		}
+	}
+	
+	
+	private static class Entry {
+		
+		/**
+		 * Received ranges, as start offset to end offset. Overlapping and
+		 * adjacent ranges are always merged.
+		 */
+		private final TreeMap<Integer, Integer> ranges;
+		private final BundleInfo info;
+		private final byte[] data;
+		private int covered;
+		
+		public Entry(BundleInfo info, int total) {
+			this.ranges = new TreeMap<Integer, Integer>();
+			this.data = new byte[total];
+			this.info = info;
+			this.covered = 0;
+		}
+		
+		public void cover(int start, int end) {
+			final Map.Entry<Integer, Integer> floor = ranges.floorEntry(start);
+			if (floor != null && floor.getValue() >= start) {
+				if (floor.getValue() >= end)
+					return;
+				
+				start = floor.getKey();
+				covered -= floor.getValue() - start;
+				ranges.remove(start);
+			}
+			
+			for (Map.Entry<Integer, Integer> next = ranges.ceilingEntry(start);
+					next != null && next.getKey() <= end;
+					next = ranges.ceilingEntry(start)) {
+				
+				end = Math.max(end, next.getValue());
+				covered -= next.getValue() - next.getKey();
+				ranges.remove(next.getKey());
+			}
+			
+			ranges.put(start, end);
+			covered += end - start;
+		}
+		
+		public boolean isComplete() {
+			return covered == data.length;
+		}
+	}
+}
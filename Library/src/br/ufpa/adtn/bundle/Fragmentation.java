@@ -0,0 +1,87 @@
+/**
+ * Amazon-DTN - Lightweight Delay Tolerant Networking Implementation
+ * Copyright (C) 2013  Dórian C. Langbeck
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package br.ufpa.adtn.bundle;
+
+import java.io.IOException;
+
+import br.ufpa.adtn.util.DataBlock;
+
+/**
+ * Proactive and reactive fragmentation (RFC 5050, section 5.8).
+ * 
+ * Fragments share the payload of the original bundle, so the original
+ * payload may be released as soon as the fragments are created.
+ */
+public final class Fragmentation {
+	
+	/**
+	 * Returns {@code true} if {@code bundle} may be split in fragments of
+	 * {@code size} payload bytes.
+	 */
+	public static boolean canFragment(Bundle bundle, int size) {
+		return	size > 0 &&
+				bundle.getInfo().canFragment() &&
+				bundle.getPayloadLength() > size;
+	}
+	
+	/**
+	 * Splits {@code bundle} in fragments carrying at most {@code size}
+	 * payload bytes each.
+	 */
+	public static Bundle[] fragment(Bundle bundle, int size) throws IOException {
+		if (!canFragment(bundle, size))
+			throw new IllegalArgumentException("Bundle can not be fragmented");
+		
+		final BundleInfo info = bundle.getInfo();
+		final DataBlock payload = bundle.getPayload();
+		final int length = payload.getLength();
+		final Bundle[] fragments = new Bundle[(length + size - 1) / size];
+		
+		for (int i = 0, offset = 0; offset < length; i++, offset += size) {
+			fragments[i] = new Bundle(
+					info.fragment(offset, length),
+					payload.subBlock(offset, Math.min(size, length - offset)),
+					false
+			);
+		}
+		
+		return fragments;
+	}
+	
+	/**
+	 * Reactive fragmentation at the sender side. Returns the fragment that
+	 * still has to be sent after the first {@code sent} payload bytes of
+	 * {@code bundle} reached the next hop, or {@code null} if there is
+	 * nothing to fragment.
+	 */
+	public static Bundle remainder(Bundle bundle, int sent) throws IOException {
+		final BundleInfo info = bundle.getInfo();
+		final DataBlock payload = bundle.getPayload();
+		final int length = payload.getLength();
+		if (sent <= 0 || sent >= length || !info.canFragment())
+			return null;
+		
+		return new Bundle(
+				info.fragment(sent, length),
+				payload.subBlock(sent, length - sent),
+				false
+		);
+	}
+	
+	private Fragmentation() { }
+}
@@ -17,6 +17,7 @@
  */
 package br.ufpa.adtn.core;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
@@ -30,6 +31,9 @@ import javax.xml.parsers.ParserConfigurationException;
 import org.xml.sax.SAXException;
 
 import br.ufpa.adtn.bundle.Bundle;
+import br.ufpa.adtn.bundle.BundleReader;
+import br.ufpa.adtn.bundle.FragmentReassembler;
+import br.ufpa.adtn.bundle.Fragmentation;
 import br.ufpa.adtn.core.BaseCL.IAdapter;
 import br.ufpa.adtn.core.BaseCL.IConnection;
 import br.ufpa.adtn.core.BaseCL.IDiscovery;
@@ -41,9 +45,10 @@ import br.ufpa.adtn.core.configuration.SimulationConfiguration;
 import br.ufpa.adtn.core.registration.BundleRegistry;
 import br.ufpa.adtn.core.registration.Registration;
 import br.ufpa.adtn.core.registration.Registry;
+import br.ufpa.adtn.util.BufferPool;
 import br.ufpa.adtn.util.BundleOutbox;
 import br.ufpa.adtn.util.EventQueue;
-import br.ufpa.adtn.util.EventQueue.Event;
+import br.ufpa.adtn.util.GroupCommit;
 import br.ufpa.adtn.util.Logger;
 import br.ufpa.adtn.util.PeriodicEvent;
 import br.ufpa.adtn.util.Properties;
@@ -59,6 +64,7 @@ public final class BPAgent {
 	}
 
 	private static final Collection<BundleStorageChangeListener> storageListeners;
+	private static final ExpirationService expirations;
 	private static final Registration<String, Bundle> registration;
 	private static final Collection<RouterStub<?, ?>> routers;
 	private static final Collection<PeriodicEvent> events;
@@ -69,7 +75,11 @@ public final class BPAgent {
 	private static final Logger LOGGER;
 
 	private static SimulationConfiguration sConfig;
+	private static FragmentReassembler reassembler;
+	private static BundleReader bReader;
 	private static BundleStorage bStorage;
+	private static DropPolicy dropPolicy;
+	private static int fragmentSize;
 	private static boolean simulatedMode;
 	private static ClassLoader cLoader;
 	private static State state;
@@ -84,7 +94,24 @@ public final class BPAgent {
 		LOGGER = new Logger("BPAgent");
 		eQueue = new EventQueue();
 		bOutbox = new BundleOutbox();
+		expirations = new ExpirationService(eQueue, new ExpirationService.Handler() {
+			@Override
+			public void onExpired(Collection<Long> uniqueIDs) {
+				for (long uniqueID : uniqueIDs) {
+					LOGGER.v(String.format("Bundle %016x expired", uniqueID));
+					final Bundle bundle = bStorage.get(uniqueID);
+					if (bundle != null)
+						purgeBundle(bundle, false);
+				}
+				
+				// Fragments that will not be completed expire as well
+				reassembler.purge();
+			}
+		});
 		state = State.CLEAR;
+		bReader = new BundleReader(null, config.getSpoolThreshold());
+		dropPolicy = new DropPolicy.DropTail();
+		bOutbox.setOrder(new SendOrder.OldestFirst());
 		bStorage = null;
 		cLoader = null;
 	}
@@ -245,12 +272,64 @@ public final class BPAgent {
 				bStorage = BundleStorage.createStorage(
 						sModel,
 						config.getStorageSize(),
-						null
+						config.getMainProperties()
 				);
 			} catch (Exception e) {
 				throw new InicializationException("Storage load failure", e);
 			}
 			
+			final BundleStorage storage = bStorage;
+			Runtime.getRuntime().addShutdownHook(new Thread("BPAgent-Storage") {
+				
+				@Override
+				public void run() {
+					storage.close();
+				}
+			});
+			
+			InformationHub.STORAGE.setStorage(bStorage);
+			bOutbox.setStorage(bStorage);
+			
+			final String policy = config.getDropPolicy();
+			try {
+				dropPolicy = DropPolicy.createPolicy(policy, config.getMainProperties());
+			} catch (IllegalArgumentException e) {
+				throw new InicializationException("Invalid drop policy: " + policy, e);
+			}
+			
+			LOGGER.i(String.format("Using \"%s\" as drop policy", policy));
+			
+			final String order = config.getSendOrder();
+			try {
+				bOutbox.setOrder(SendOrder.createOrder(order, config.getMainProperties()));
+			} catch (IllegalArgumentException e) {
+				throw new InicializationException("Invalid send order: " + order, e);
+			}
+			
+			LOGGER.i(String.format("Using \"%s\" as send order", order));
+			
+			// Bundles kept by persistent storages across restarts
+			for (Bundle bundle : bStorage.getBundles()) {
+				expirations.register(bundle);
+				bOutbox.add(bundle);
+			}
+			
+			final String spool = config.getSpoolDirectory();
+			bReader = new BundleReader(
+					spool == null ? null : new File(spool),
+					config.getSpoolThreshold()
+			);
+			
+			if (config.isBufferLeakDetectionEnabled()) {
+				LOGGER.i("Buffer leak detection enabled");
+				BufferPool.setLeakDetection(true);
+			}
+			
+			reassembler = new FragmentReassembler(config.getStorageSize());
+			fragmentSize = config.getFragmentSize();
+			if (fragmentSize > 0)
+				LOGGER.i(String.format("Fragmenting bundles larger than %d bytes", fragmentSize));
+			
 			LOGGER.d("Processing Routers");
 			for (RouterConfiguration router : config.getRouters()) {
 				final String registration = router.getRegistration();
@@ -393,21 +472,94 @@ public final class BPAgent {
 		checkStateAndChange(State.STARTING, State.STARTED);
 	}
 	
+	static BundleReader getBundleReader() {
+		return bReader;
+	}
+	
+	private static boolean isLocal(EID eid) {
+		return eid.getSSP().equals("//" + getHostname());
+	}
+	
 	static void notifyBundleReceived(IConnection conn, Bundle bundle) {
 		LOGGER.v("Bundle received from " + bundle.getSource());
 		
 		final EID dest = bundle.getDestination();
-		if (!dest.getSSP().equals("//" + getHostname())) {
+		if (!isLocal(dest)) {
 			// TODO Remove
 			LOGGER.w("NOT FOR ME");
+			bundle.getPayload().release();
 			return;
 		}
 		
+		if (bundle.getInfo().isFragment()) {
+			final Bundle fragment = bundle;
+			try {
+				bundle = reassembler.add(fragment);
+			} catch (IOException e) {
+				LOGGER.e("Fragment reassembly failure", e);
+				bundle = null;
+			} finally {
+				fragment.getPayload().release();
+			}
+			
+			if (bundle == null)
+				return;
+			
+			LOGGER.d(String.format("Bundle %016x reassembled", bundle.getUniqueID()));
+		} else {
+			reassembler.discard(bundle.getInfo());
+		}
+		
 		if (!registration.publish(dest.getScheme(), bundle)) {
 			LOGGER.w(String.format(
 					"No registration found to reveice bundle from %s to %s",
 					bundle.getSource(), dest
 			));
+			bundle.getPayload().release();
+		}
+	}
+
+	/**
+	 * Replaces a stored bundle, whose first {@code acked} payload bytes the
+	 * next hop acknowledged, by a fragment with the rest of it.
+	 */
+	static void notifyBundlePartiallyTransferred(Bundle bundle, int acked) {
+		final Bundle stored = bStorage.get(bundle.getUniqueID());
+		if (stored == null || !stored.equals(bundle))
+			return;
+		
+		final Bundle remainder;
+		try {
+			remainder = Fragmentation.remainder(bundle, acked);
+		} catch (IOException e) {
+			LOGGER.e("Reactive fragmentation failure", e);
+			return;
+		}
+		
+		if (remainder == null)
+			return;
+		
+		// It may have been removed meanwhile, e.g. by expiring
+		if (!deleteBundle(stored, false)) {
+			remainder.getPayload().release();
+			return;
+		}
+		
+		LOGGER.d(String.format(
+				"Bundle %016x partially sent (%d bytes). Keeping fragment %016x",
+				bundle.getUniqueID(),
+				acked,
+				remainder.getUniqueID()
+		));
+		
+		addBundle(remainder);
+	}
+
+	static void notifyBundleTransferred(Bundle bundle) {
+		// Bundles never stored, as the routers' own, would not be removed
+		synchronized (bStorage) {
+			if (bStorage.contains(bundle.getUniqueID()))
+				dropPolicy.onForwarded(bundle);
 		}
 	}
 
@@ -478,29 +630,107 @@ public final class BPAgent {
 		LOGGER.v(String.format("Bundle add requested for %016x", uniqueID));
 		if (expiration <= 0) {
 			LOGGER.w(String.format("Bundle already expired %016x", uniqueID));
+			bundle.getPayload().release();
 			return;
 		}
 		
-		eQueue.post(new BundleExpirationEvent(bundle));
-		if (!bStorage.add(bundle)) {
-			LOGGER.w(String.format("Bundle being dropped %016x", uniqueID));
-			InformationHub.onDeleted(bundle, true);
+		if (!isLocal(bundle.getDestination()) && Fragmentation.canFragment(bundle, fragmentSize)) {
+			final Bundle[] fragments;
+			try {
+				fragments = Fragmentation.fragment(bundle, fragmentSize);
+			} catch (IOException e) {
+				LOGGER.e("Fragmentation failure", e);
+				bundle.getPayload().release();
+				return;
+			}
+			
+			LOGGER.d(String.format(
+					"Bundle %016x split in %d fragments",
+					uniqueID,
+					fragments.length
+			));
+			
+			bundle.getPayload().release();
+			for (Bundle fragment : fragments)
+				addBundle(fragment);
+			
 			return;
 		}
 		
-		bOutbox.add(bundle);
-
-		synchronized (storageListeners) {
-			for (BundleStorageChangeListener listener : storageListeners)
-				listener.notifyBundleAdded(eQueue, bundle);
+		final Bundle stored;
+		synchronized (bStorage) {
+			// Make room for it, if the drop policy finds it worth
+			final Collection<Bundle> victims = dropPolicy.selectVictims(bStorage, bundle);
+			if (victims != null) {
+				for (Bundle victim : victims) {
+					LOGGER.d(String.format(
+							"Dropping bundle %016x in favor of %016x",
+							victim.getUniqueID(),
+							uniqueID
+					));
+					deleteBundle(victim, true);
+				}
+			}
+			
+			// Under the lock, so no other bundle takes the space released
+			stored = bStorage.store(bundle);
+		}
+		
+		if (stored == null) {
+			LOGGER.w(String.format("Bundle being dropped %016x", uniqueID));
+			InformationHub.onDeleted(bundle, true);
+			bundle.getPayload().release();
+			return;
 		}
+		
+		// Persistent storages keep their own copy of the payload
+		if (stored != bundle)
+			bundle.getPayload().release();
+		
+		expirations.register(stored);
+		bOutbox.add(stored);
+		
+		// Routers may announce it to other nodes, so only once it is durable
+		GroupCommit.whenDone(bStorage.commit(), new Runnable() {
+			
+			@Override
+			public void run() {
+				if (!bStorage.contains(stored.getUniqueID()))
+					return;
+				
+				synchronized (storageListeners) {
+					for (BundleStorageChangeListener listener : storageListeners)
+						listener.notifyBundleAdded(eQueue, stored);
+				}
+			}
+		});
 	}
 	
+	/**
+	 * Removes a stored bundle and releases its payload. Bundles not stored,
+	 * or already removed, are left untouched.
+	 */
 	public static void removeBundle(Bundle bundle) {
 		LOGGER.v(String.format("Bundle remove requested %016x", bundle.getUniqueID()));
-		InformationHub.onDeleted(bundle, false);
+		deleteBundle(bundle, false);
+	}
+	
+	private static boolean deleteBundle(Bundle bundle, boolean dropped) {
+		// Every stored bundle is tracked until it leaves the storage
+		if (!expirations.cancel(bundle)) {
+			LOGGER.d(String.format("Bundle %016x not stored [IGNORING]", bundle.getUniqueID()));
+			return false;
+		}
+		
+		purgeBundle(bundle, dropped);
+		return true;
+	}
+	
+	private static void purgeBundle(Bundle bundle, boolean dropped) {
+		InformationHub.onDeleted(bundle, dropped);
 		bStorage.remove(bundle);
 		bOutbox.remove(bundle);
+		dropPolicy.onRemoved(bundle);
 		
 		synchronized (storageListeners) {
 			for (BundleStorageChangeListener listener : storageListeners)
@@ -511,6 +741,23 @@ public final class BPAgent {
 	public static long getStorageAvailable() {
 		return bStorage.getAvailable();
 	}
+	
+	/**
+	 * Highest utility given to {@code bundle} by the routers, or zero if
+	 * none of them has an opinion about it.
+	 */
+	static float getBundleUtility(Bundle bundle) {
+		float utility = Float.NaN;
+		synchronized (routers) {
+			for (RouterStub<?, ?> stub : routers) {
+				final float u = stub.router.getBundleUtility(bundle);
+				if (!Float.isNaN(u) && (Float.isNaN(utility) || u > utility))
+					utility = u;
+			}
+		}
+		
+		return Float.isNaN(utility) ? 0 : utility;
+	}
 
 
 
@@ -525,21 +772,6 @@ public final class BPAgent {
 		
 		public void init() {
 			router.init(config.getProperties());
-		}
-	}
-	
-	
-	private static class BundleExpirationEvent extends Event {
-		private final Bundle bundle;
-		
-		public BundleExpirationEvent(Bundle bundle) {
-			this.bundle = bundle;
-		}
-
-		@Override
-		public void execute() throws Throwable {
-			LOGGER.v(String.format("Bundle %016x expired", bundle.getUniqueID()));
-			removeBundle(bundle);
 		}
 	}
 	
@@ -563,6 +795,7 @@ public final class BPAgent {
 						"No connection available for EID %s in router %s",
 						source.toString(), router.getClass()
 				));
+				bundle.getPayload().release();
 				return;
 			}
 			
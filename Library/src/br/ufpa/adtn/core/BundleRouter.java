@@ -21,6 +21,7 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ExecutionException;
 
+import br.ufpa.adtn.bundle.Bundle;
 import br.ufpa.adtn.util.EventQueue;
 import br.ufpa.adtn.util.EventQueue.Event;
 import br.ufpa.adtn.util.Logger;
@@ -111,12 +112,12 @@ public abstract class BundleRouter<R extends BundleRouter<R, LC>, LC extends Lin
 	
 	public void notifyLinkNear(Link link) {
 		checkState();
-		eQueue.post(new LinkNearEvent(link));
+		eQueue.fire(new LinkNearEvent(link));
 	}
 	
 	public void notifyDestroyed(boolean await) {
 		checkState();
-		eQueue.post(new Event() {
+		eQueue.fire(new Event() {
 			@Override
 			public void execute() throws Throwable {
 				onDestroy();
@@ -128,6 +129,16 @@ public abstract class BundleRouter<R extends BundleRouter<R, LC>, LC extends Lin
 		checkState();
 		return local_eid;
 	}
+	
+	/**
+	 * How likely this router is to deliver {@code bundle}, higher values
+	 * meaning more likely, or {@code Float.NaN} if it has no opinion. Used by the "utility" drop
+	 * policy and called out of the router's event queue, so it must be
+	 * thread-safe and cheap.
+	 */
+	public float getBundleUtility(Bundle bundle) {
+		return Float.NaN;
+	}
 
 
 	protected void onCreate(Properties config) { }
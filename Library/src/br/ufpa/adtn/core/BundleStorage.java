@@ -22,15 +22,26 @@ import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import br.ufpa.adtn.bundle.Bundle;
+import br.ufpa.adtn.bundle.BundleInfo;
+import br.ufpa.adtn.util.GroupCommit;
 import br.ufpa.adtn.util.Logger;
 import br.ufpa.adtn.util.Properties;
+import br.ufpa.adtn.util.collections.LongObjectMap;
 
 public abstract class BundleStorage {
 	public static final int REASON_OK			= 0x00;
@@ -40,9 +51,42 @@ public abstract class BundleStorage {
 	private static final Map<String, Constructor<? extends BundleStorage>> MODELS;
 	private static final Logger LOGGER = new Logger("BundleStorage");
 	
+	static final Comparator<Bundle> CREATION_ORDER = new Comparator<Bundle>() {
+		
+		@Override
+		public int compare(Bundle b1, Bundle b2) {
+			final BundleInfo i1 = b1.getInfo();
+			final BundleInfo i2 = b2.getInfo();
+			
+			int r = compare(i1.getCreationTime(), i2.getCreationTime());
+			if (r == 0)
+				r = compare(i1.getCreationSequence(), i2.getCreationSequence());
+			
+			if (r == 0)
+				r = compare(i1.getUniqueID(), i2.getUniqueID());
+			
+			return r;
+		}
+		
+		private int compare(long v1, long v2) {
+			return v1 < v2 ? -1 : (v1 == v2 ? 0 : 1);
+		}
+	};
+	
 	static {
 		MODELS = new HashMap<String, Constructor<? extends BundleStorage>>();
 		registerModel("memory", MemoryStorage.class);
+		registerModel("log", LogStorage.class);
+		
+		// Needs sqljet and the antlr runtime its SQL parser uses
+		try {
+			Class.forName("org.antlr.runtime.Parser");
+			registerModel("sqlite", Class.forName(
+					"br.ufpa.adtn.storage.sqlite.SQLiteBundleStorage"
+			).asSubclass(BundleStorage.class));
+		} catch (Throwable t) {
+			LOGGER.d("SQLite storage model not available");
+		}
 	}
 	
 	public synchronized static Collection<String> getModels() {
@@ -87,6 +131,8 @@ public abstract class BundleStorage {
 	}
 	
 	private final long capacity;
+	private ContentStore contents;
+	private StorageQuotas quotas;
 	private boolean initialized;
 	private long used;
 	
@@ -114,13 +160,89 @@ public abstract class BundleStorage {
 		return bundles;
 	}
 	
+	/**
+	 * Returns the bundles that expire before {@code time}, given in
+	 * {@link SystemClock#secs()} seconds, the ones expiring first coming
+	 * first.
+	 */
+	public Collection<Bundle> getBundlesExpiringBefore(long time) {
+		final SortedMap<Long, List<Bundle>> expiring = new TreeMap<Long, List<Bundle>>();
+		synchronized (this) {
+			for (Bundle bundle : getBundles()) {
+				final long expiration = bundle.getInfo().getExpirationTime();
+				if (expiration >= time)
+					continue;
+				
+				List<Bundle> bundles = expiring.get(expiration);
+				if (bundles == null)
+					expiring.put(expiration, bundles = new ArrayList<Bundle>());
+				
+				bundles.add(bundle);
+			}
+		}
+		
+		final List<Bundle> bundles = new ArrayList<Bundle>();
+		for (List<Bundle> group : expiring.values())
+			bundles.addAll(group);
+		
+		return bundles;
+	}
+	
+	/**
+	 * Returns the stored bundle with the given unique ID, or {@code null}
+	 * if there is none.
+	 */
+	public synchronized Bundle get(long uniqueID) {
+		for (Bundle bundle : getBundles())
+			if (bundle.getUniqueID() == uniqueID)
+				return bundle;
+		
+		return null;
+	}
+	
+	/**
+	 * Whether a bundle with the given unique ID is stored.
+	 */
+	public synchronized boolean contains(long uniqueID) {
+		return get(uniqueID) != null;
+	}
+	
+	/**
+	 * Returns at most {@code count} bundles, sorted by creation timestamp
+	 * from the oldest one.
+	 */
+	public Collection<Bundle> getOldestBundles(int count) {
+		final List<Bundle> bundles;
+		synchronized (this) {
+			bundles = new ArrayList<Bundle>(getBundles());
+		}
+		
+		Collections.sort(bundles, CREATION_ORDER);
+		return count < bundles.size() ? bundles.subList(0, count) : bundles;
+	}
+	
 	private final void init(Properties config) throws IllegalStateException {
 		synchronized (this) {
 			if (initialized)
 				throw new IllegalStateException("Already initialized");
 			
 			onInit(config);
+			quotas = new StorageQuotas(capacity, config);
 			initialized = true;
+			
+			/*
+			 * Payloads larger than "storage-dedup-threshold" bytes are kept
+			 * only once, if the model keeps the payloads it is given.
+			 */
+			final long threshold = config == null ? 0 : config.getLong("storage-dedup-threshold", 0L);
+			if (threshold > 0 && sharesPayloads())
+				contents = new ContentStore(threshold);
+			
+			// Persistent models may come back with bundles
+			for (Bundle bundle : getBundles()) {
+				used += bundle.getPayloadLength();
+				quotas.add(bundle);
+			}
 		}
 	}
 
@@ -136,12 +258,63 @@ public abstract class BundleStorage {
 		return used;
 	}
 	
+	/**
+	 * Usage and limits of the storage by source, destination and
+	 * registration.
+	 */
+	public final StorageQuotas getQuotas() {
+		return quotas;
+	}
+	
+	/**
+	 * Bytes of the capacity that storing {@code bundle} would take, which
+	 * are less than its payload length if the payload is already stored.
+	 */
+	public synchronized long getRequiredSpace(Bundle bundle) {
+		return contents == null ? bundle.getPayloadLength() : contents.getCost(bundle);
+	}
+	
+	/**
+	 * Bytes of the capacity that removing the stored {@code bundle} would
+	 * release, which are less than its payload length if other bundles
+	 * share its payload.
+	 */
+	public synchronized long getReleasedSpace(Bundle bundle) {
+		return contents == null ? bundle.getPayloadLength() : contents.getRefund(bundle);
+	}
+	
+	/**
+	 * Returns a future completed once every bundle stored or removed so far
+	 * is on the disk. Persistent models may defer their writes to do them
+	 * in batches; the others complete it right away.
+	 */
+	public Future<Void> commit() {
+		return GroupCommit.DONE;
+	}
+	
+	/**
+	 * Makes what was stored or removed so far durable and stops the
+	 * background work of the model. The storage must not be used
+	 * afterwards.
+	 */
+	public void close() { }
+	
 	protected void onInit(Properties config) { }
 	
+	/**
+	 * Whether the model keeps the very payloads of the bundles it is given,
+	 * so bundles with identical payloads may share a single one. Models
+	 * that copy payloads to a storage of their own must not override it.
+	 */
+	protected boolean sharesPayloads() {
+		return false;
+	}
+	
 	public final void remove(Bundle bundle) {
 		LOGGER.v(String.format("Removing bundle %016x", bundle.getUniqueID()));
 		synchronized (this) {
-			used -= bundle.getPayloadLength();
+			used -= contents == null ? bundle.getPayloadLength() : contents.remove(bundle);
+			quotas.remove(bundle);
 			if (used < 0) {
 				LOGGER.e(String.format(
 						"Used space calculation error: %d [Set to 0]",
@@ -151,33 +324,73 @@ public abstract class BundleStorage {
 			}
 			
 			delete(bundle);
+			release(bundle);
 		}
 	}
+	
+	/**
+	 * Drops the reference the payload of the removed {@code bundle} was
+	 * stored with. Models whose payloads hold none of their own override
+	 * it.
+	 */
+	protected void release(Bundle bundle) {
+		bundle.getPayload().release();
+	}
 
 	public final boolean add(Bundle bundle) {
+		return store(bundle) != null;
+	}
+	
+	/**
+	 * Adds {@code bundle} and returns the instance kept by the storage, or
+	 * {@code null} if it was refused. Models that move payloads out of the
+	 * heap keep a copy of the bundle, which must be used from then on; the
+	 * payload of the given one is not needed by the storage anymore.
+	 */
+	public final Bundle store(Bundle bundle) {
 		final long uniqueID = bundle.getUniqueID();
 		LOGGER.v(String.format("Adding bundle %016x", uniqueID));
 		synchronized (this) {
-			final long blen = bundle.getPayloadLength();
+			final long blen = getRequiredSpace(bundle);
 			if (used + blen > capacity) {
 				LOGGER.w("Storage capacity overflow");
-				return false;
+				return null;
 			}
 			
-			final int reason = put(bundle);
+			if (!quotas.admits(bundle)) {
+				LOGGER.w(String.format("Bundle %016x exceeds its storage quota", uniqueID));
+				return null;
+			}
+			
+			// Another instance if its payload is already stored
+			final Bundle shared = contents == null ? bundle : contents.share(bundle);
+			final int reason = put(shared);
 			if (reason != REASON_OK) {
 				LOGGER.w(String.format(
 						"Storage model refused bundle %016x for reason %d",
 						uniqueID,
 						reason
 				));
-				return false;
+				
+				if (shared != bundle)
+					shared.getPayload().release();
+				
+				return null;
 			}
-
-			used += blen;
-			return true;
+			
+			used += contents == null ? blen : contents.add(shared);
+			quotas.add(shared);
+			return getStored(shared);
 		}
 	}
+	
+	/**
+	 * Returns the instance kept for {@code bundle} by the last successful
+	 * {@link #put(Bundle)}.
+	 */
+	protected Bundle getStored(Bundle bundle) {
+		return bundle;
+	}
 
 	public abstract Collection<Bundle> getBundles();
 	protected abstract void delete(Bundle bundle);
@@ -185,7 +398,20 @@ public abstract class BundleStorage {
 
 
 
+	/**
+	 * Heap storage. Besides the bundles themselves, it keeps them indexed by
+	 * unique ID, source, destination, expiration time and creation timestamp,
+	 * so queries cost about the size of their results instead of the number
+	 * of stored bundles. Indexes are only changed under the storage lock.
+	 * Bundles with identical payloads may share them, see
+	 * "storage-dedup-threshold".
+	 */
 	public static class MemoryStorage extends BundleStorage {
+		private final SortedMap<Long, Set<Bundle>> byExpiration;
+		private final Map<EID, Set<Bundle>> byDestination;
+		private final Map<EID, Set<Bundle>> bySource;
+		private final LongObjectMap<Bundle> byID;
+		private final Set<Bundle> byCreation;
 		private final Collection<Bundle> roBundles;
 		private final Collection<Bundle> bundles;
 		
@@ -193,21 +419,105 @@ public abstract class BundleStorage {
 			super(capacity);
 			this.bundles = new HashSet<Bundle>();
 			this.roBundles = Collections.unmodifiableCollection(bundles);
+			this.byExpiration = new TreeMap<Long, Set<Bundle>>();
+			this.byDestination = new HashMap<EID, Set<Bundle>>();
+			this.bySource = new HashMap<EID, Set<Bundle>>();
+			this.byID = new LongObjectMap<Bundle>();
+			this.byCreation = new TreeSet<Bundle>(CREATION_ORDER);
+		}
+		
+		@Override
+		protected boolean sharesPayloads() {
+			return true;
 		}
 	
 		@Override
 		public Collection<Bundle> getBundles() {
 			return roBundles;
 		}
+		
+		@Override
+		public synchronized Bundle get(long uniqueID) {
+			return byID.get(uniqueID);
+		}
+		
+		@Override
+		public synchronized Collection<Bundle> getBundlesFor(EID dst) {
+			return copy(byDestination.get(dst));
+		}
+		
+		@Override
+		public synchronized Collection<Bundle> getBundlesFrom(EID src) {
+			return copy(bySource.get(src));
+		}
+		
+		@Override
+		public synchronized Collection<Bundle> getBundlesExpiringBefore(long time) {
+			final List<Bundle> expiring = new ArrayList<Bundle>();
+			for (Set<Bundle> group : byExpiration.headMap(time).values())
+				expiring.addAll(group);
+			
+			return expiring;
+		}
+		
+		@Override
+		public synchronized Collection<Bundle> getOldestBundles(int count) {
+			final List<Bundle> oldest = new ArrayList<Bundle>(Math.min(count, byCreation.size()));
+			final Iterator<Bundle> it = byCreation.iterator();
+			while (oldest.size() < count && it.hasNext())
+				oldest.add(it.next());
+			
+			return oldest;
+		}
 	
 		@Override
 		protected void delete(Bundle bundle) {
-			bundles.remove(bundle);
+			if (!bundles.remove(bundle))
+				return;
+			
+			final BundleInfo info = bundle.getInfo();
+			byID.remove(info.getUniqueID());
+			unindex(byExpiration, info.getExpirationTime(), bundle);
+			unindex(byDestination, info.getDestination(), bundle);
+			unindex(bySource, info.getSource(), bundle);
+			byCreation.remove(bundle);
 		}
 	
 		@Override
 		protected int put(Bundle bundle) {
-			return bundles.add(bundle) ? 0 : REASON_DUPLICATED;
+			if (byID.containsKey(bundle.getUniqueID()) || !bundles.add(bundle))
+				return REASON_DUPLICATED;
+			
+			// Distinct bundles sharing creation timestamp and unique ID
+			if (!byCreation.add(bundle)) {
+				bundles.remove(bundle);
+				return REASON_DUPLICATED;
+			}
+			
+			final BundleInfo info = bundle.getInfo();
+			byID.put(info.getUniqueID(), bundle);
+			index(byExpiration, info.getExpirationTime(), bundle);
+			index(byDestination, info.getDestination(), bundle);
+			index(bySource, info.getSource(), bundle);
+			return REASON_OK;
+		}
+		
+		private static <K> void index(Map<K, Set<Bundle>> index, K key, Bundle bundle) {
+			Set<Bundle> group = index.get(key);
+			if (group == null)
+				index.put(key, group = new LinkedHashSet<Bundle>());
+			
+			group.add(bundle);
+		}
+		
+		private static <K> void unindex(Map<K, Set<Bundle>> index, K key, Bundle bundle) {
+			final Set<Bundle> group = index.get(key);
+			if (group != null && group.remove(bundle) && group.isEmpty())
+				index.remove(key);
+		}
+		
+		private static Collection<Bundle> copy(Set<Bundle> group) {
+			return group == null ? new ArrayList<Bundle>(0) : new ArrayList<Bundle>(group);
 		}
 	}
 }
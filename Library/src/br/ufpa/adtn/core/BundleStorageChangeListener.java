@@ -32,7 +32,7 @@ public abstract class BundleStorageChangeListener {
 		if (this.eQueue != null)
 			eQueue = this.eQueue;
 		
-		eQueue.post(new Event() {
+		eQueue.fire(new Event() {
 			@Override
 			public void execute() throws Throwable {
 				onBundleRemoved(bundle);
@@ -44,7 +44,7 @@ public abstract class BundleStorageChangeListener {
 		if (this.eQueue != null)
 			eQueue = this.eQueue;
 		
-		eQueue.post(new Event() {
+		eQueue.fire(new Event() {
 			@Override
 			public void execute() throws Throwable {
 				onBundleAdded(bundle);
@@ -0,0 +1,413 @@
+/**
+ * Amazon-DTN - Lightweight Delay Tolerant Networking Implementation
+ * Copyright (C) 2013  Dórian C. Langbeck
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package br.ufpa.adtn.core;
+
+import java.util.Arrays;
+
+import br.ufpa.adtn.bundle.BundleInfo;
+import br.ufpa.adtn.util.collections.IntObjectMap;
+
+/**
+ * Metadata of stored bundles kept in parallel primitive arrays, one slot
+ * per bundle, so storages can index a large number of bundles without an
+ * object graph per bundle. The columns hold the whole primary block, so
+ * {@link #getInfo(int)} rebuilds it when the bundle is needed. EIDs are kept
+ * by their {@link EID#getId() ID}, lookups by unique ID go through an open
+ * addressing hash of slots and the rows of each source and destination are
+ * chained, so queries by them cost the size of their results. The table
+ * holds the EIDs of its rows, which keeps their IDs from being reused.
+ * 
+ * A row costs under 100 bytes: 76 in columns plus two to four hash buckets,
+ * which are kept at most half full. Fragments also keep their offset and
+ * total length in a map of their own.
+ * 
+ * Not thread-safe.
+ */
+public final class BundleTable {
+	public static final int NONE = -1;
+	
+	private static final int FREE = -1;
+	
+	// Columns
+	private long[] uniqueIDs;
+	private long[] creations;
+	private long[] locations;
+	private int[] sequences;
+	private int[] lifetimes;
+	private int[] destinations;
+	private int[] sources;
+	private int[] reportTos;
+	private int[] custodians;
+	private int[] payloadLengths;
+	private int[] headLengths;
+	private int[] flags;
+	
+	// Rows with the same source and destination, linked by slot
+	private int[] srcNext;
+	private int[] srcPrev;
+	private int[] dstNext;
+	private int[] dstPrev;
+	
+	// First slot of each EID ID
+	private int[] srcHeads;
+	private int[] dstHeads;
+	
+	// EIDs of the rows by ID and how many rows reference each
+	private EID[] eids;
+	private int[] holds;
+	
+	// Offset and total length of the fragments
+	private final IntObjectMap<int[]> fragments;
+	
+	// Slot + 1 of each bucket, 0 when empty
+	private int[] buckets;
+	
+	private int[] freeSlots;
+	private int freeCount;
+	private int limit;
+	private int size;
+	
+	public BundleTable() {
+		this(64);
+	}
+	
+	public BundleTable(int capacity) {
+		this.fragments = new IntObjectMap<int[]>();
+		this.srcHeads = new int[0];
+		this.dstHeads = new int[0];
+		this.eids = new EID[0];
+		this.holds = new int[0];
+		this.freeSlots = new int[0];
+		this.freeCount = 0;
+		this.limit = 0;
+		this.size = 0;
+		
+		resize(Math.max(capacity, 16));
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	/**
+	 * Number of slots in use or freed, all of them below this value.
+	 */
+	public int getLimit() {
+		return limit;
+	}
+	
+	public boolean isUsed(int slot) {
+		return slot >= 0 && slot < limit && payloadLengths[slot] != FREE;
+	}
+	
+	/**
+	 * Adds a row and returns its slot, or {@link #NONE} if there is one
+	 * with the same unique ID already.
+	 */
+	public int insert(BundleInfo info, int headLength, int payloadLength, long location) {
+		final long uniqueID = info.getUniqueID();
+		if (find(uniqueID) != NONE)
+			return NONE;
+		
+		final int slot;
+		if (freeCount > 0) {
+			slot = freeSlots[--freeCount];
+		} else {
+			if (limit == uniqueIDs.length)
+				resize(limit * 2);
+			
+			slot = limit++;
+		}
+		
+		uniqueIDs[slot] = uniqueID;
+		creations[slot] = info.getCreationTime();
+		locations[slot] = location;
+		sequences[slot] = info.getCreationSequence();
+		lifetimes[slot] = (int) info.getLifetime();
+		destinations[slot] = hold(info.getDestination());
+		sources[slot] = hold(info.getSource());
+		reportTos[slot] = hold(info.getReportTo());
+		custodians[slot] = hold(info.getCustodian());
+		payloadLengths[slot] = payloadLength;
+		headLengths[slot] = headLength;
+		flags[slot] = info.getFlags();
+		
+		if (info.isFragment())
+			fragments.put(slot, new int[] { info.getFragmentOffset(), info.getTotalDataLength() });
+		
+		link(slot);
+		srcHeads = chain(srcHeads, sources[slot], slot, srcNext, srcPrev);
+		dstHeads = chain(dstHeads, destinations[slot], slot, dstNext, dstPrev);
+		size++;
+		return slot;
+	}
+	
+	public void remove(int slot) {
+		if (!isUsed(slot))
+			throw new IllegalArgumentException("Slot not in use");
+		
+		unlink(slot);
+		unchain(srcHeads, sources[slot], slot, srcNext, srcPrev);
+		unchain(dstHeads, destinations[slot], slot, dstNext, dstPrev);
+		drop(destinations[slot]);
+		drop(sources[slot]);
+		drop(reportTos[slot]);
+		drop(custodians[slot]);
+		fragments.remove(slot);
+		payloadLengths[slot] = FREE;
+		
+		if (freeCount == freeSlots.length)
+			freeSlots = Arrays.copyOf(freeSlots, Math.max(16, freeCount * 2));
+		
+		freeSlots[freeCount++] = slot;
+		size--;
+	}
+	
+	public int find(long uniqueID) {
+		final int mask = buckets.length - 1;
+		for (int b = hash(uniqueID) & mask; ; b = (b + 1) & mask) {
+			final int slot = buckets[b] - 1;
+			if (slot == NONE)
+				return NONE;
+			
+			if (uniqueIDs[slot] == uniqueID)
+				return slot;
+		}
+	}
+	
+	/**
+	 * Returns the slots of the rows from {@code src}.
+	 */
+	public int[] findBySource(EID src) {
+		return select(srcHeads, src.getId(), srcNext);
+	}
+	
+	/**
+	 * Returns the slots of the rows to {@code dst}.
+	 */
+	public int[] findByDestination(EID dst) {
+		return select(dstHeads, dst.getId(), dstNext);
+	}
+	
+	/**
+	 * Rebuilds the primary block of the bundle in {@code slot}.
+	 */
+	public BundleInfo getInfo(int slot) {
+		final int[] fragment = fragments.get(slot);
+		return BundleInfo.restore(
+				eids[destinations[slot]],
+				eids[custodians[slot]],
+				eids[reportTos[slot]],
+				eids[sources[slot]],
+				creations[slot],
+				sequences[slot],
+				fragment == null ? 0 : fragment[0],
+				fragment == null ? 0 : fragment[1],
+				lifetimes[slot],
+				flags[slot]
+		);
+	}
+	
+	public long getUniqueID(int slot) {
+		return uniqueIDs[slot];
+	}
+	
+	public EID getDestination(int slot) {
+		return eids[destinations[slot]];
+	}
+	
+	public EID getSource(int slot) {
+		return eids[sources[slot]];
+	}
+	
+	public long getCreationTime(int slot) {
+		return creations[slot];
+	}
+	
+	public long getLifetime(int slot) {
+		return lifetimes[slot];
+	}
+	
+	public int getPayloadLength(int slot) {
+		return payloadLengths[slot];
+	}
+	
+	public int getHeadLength(int slot) {
+		return headLengths[slot];
+	}
+	
+	public int getFlags(int slot) {
+		return flags[slot];
+	}
+	
+	/**
+	 * Where the bundle is kept, in a storage defined way.
+	 */
+	public long getLocation(int slot) {
+		return locations[slot];
+	}
+	
+	public void setLocation(int slot, long location) {
+		locations[slot] = location;
+	}
+	
+	/**
+	 * Holds {@code eid} for one more row and returns its ID.
+	 */
+	private int hold(EID eid) {
+		final int id = eid.getId();
+		if (id >= eids.length) {
+			final int length = Math.max(id + 1, Math.max(16, eids.length * 2));
+			eids = Arrays.copyOf(eids, length);
+			holds = Arrays.copyOf(holds, length);
+		}
+		
+		eids[id] = eid;
+		holds[id]++;
+		return id;
+	}
+	
+	private void drop(int id) {
+		if (--holds[id] == 0)
+			eids[id] = null;
+	}
+	
+	private static int[] select(int[] heads, int id, int[] next) {
+		int[] slots = new int[8];
+		int count = 0;
+		for (int slot = id < heads.length ? heads[id] : NONE; slot != NONE; slot = next[slot]) {
+			if (count == slots.length)
+				slots = Arrays.copyOf(slots, count * 2);
+			
+			slots[count++] = slot;
+		}
+		
+		return Arrays.copyOf(slots, count);
+	}
+	
+	/**
+	 * Puts {@code slot} in front of the rows of EID {@code id}, growing
+	 * {@code heads} to hold that ID if needed.
+	 */
+	private static int[] chain(int[] heads, int id, int slot, int[] next, int[] prev) {
+		if (id >= heads.length) {
+			final int length = heads.length;
+			heads = Arrays.copyOf(heads, Math.max(id + 1, Math.max(16, length * 2)));
+			Arrays.fill(heads, length, heads.length, NONE);
+		}
+		
+		final int first = heads[id];
+		next[slot] = first;
+		prev[slot] = NONE;
+		if (first != NONE)
+			prev[first] = slot;
+		
+		heads[id] = slot;
+		return heads;
+	}
+	
+	private static void unchain(int[] heads, int id, int slot, int[] next, int[] prev) {
+		if (prev[slot] == NONE)
+			heads[id] = next[slot];
+		else
+			next[prev[slot]] = next[slot];
+		
+		if (next[slot] != NONE)
+			prev[next[slot]] = prev[slot];
+	}
+	
+	private void link(int slot) {
+		final int mask = buckets.length - 1;
+		int b = hash(uniqueIDs[slot]) & mask;
+		while (buckets[b] != 0)
+			b = (b + 1) & mask;
+		
+		buckets[b] = slot + 1;
+	}
+	
+	/**
+	 * Linear probing removal: entries after the emptied bucket are shifted
+	 * back so no tombstones are needed.
+	 */
+	private void unlink(int slot) {
+		final int mask = buckets.length - 1;
+		int b = hash(uniqueIDs[slot]) & mask;
+		while (buckets[b] != slot + 1)
+			b = (b + 1) & mask;
+		
+		for (int next = (b + 1) & mask; buckets[next] != 0; next = (next + 1) & mask) {
+			final int home = hash(uniqueIDs[buckets[next] - 1]) & mask;
+			
+			// Moves it back unless its home lies between the hole and it
+			if (((next - home) & mask) >= ((next - b) & mask)) {
+				buckets[b] = buckets[next];
+				b = next;
+			}
+		}
+		
+		buckets[b] = 0;
+	}
+	
+	private void resize(int capacity) {
+		if (uniqueIDs == null) {
+			uniqueIDs = new long[capacity];
+			creations = new long[capacity];
+			locations = new long[capacity];
+			sequences = new int[capacity];
+			lifetimes = new int[capacity];
+			destinations = new int[capacity];
+			sources = new int[capacity];
+			reportTos = new int[capacity];
+			custodians = new int[capacity];
+			payloadLengths = new int[capacity];
+			headLengths = new int[capacity];
+			flags = new int[capacity];
+			srcNext = new int[capacity];
+			srcPrev = new int[capacity];
+			dstNext = new int[capacity];
+			dstPrev = new int[capacity];
+		} else {
+			uniqueIDs = Arrays.copyOf(uniqueIDs, capacity);
+			creations = Arrays.copyOf(creations, capacity);
+			locations = Arrays.copyOf(locations, capacity);
+			sequences = Arrays.copyOf(sequences, capacity);
+			lifetimes = Arrays.copyOf(lifetimes, capacity);
+			destinations = Arrays.copyOf(destinations, capacity);
+			sources = Arrays.copyOf(sources, capacity);
+			reportTos = Arrays.copyOf(reportTos, capacity);
+			custodians = Arrays.copyOf(custodians, capacity);
+			payloadLengths = Arrays.copyOf(payloadLengths, capacity);
+			headLengths = Arrays.copyOf(headLengths, capacity);
+			flags = Arrays.copyOf(flags, capacity);
+			srcNext = Arrays.copyOf(srcNext, capacity);
+			srcPrev = Arrays.copyOf(srcPrev, capacity);
+			dstNext = Arrays.copyOf(dstNext, capacity);
+			dstPrev = Arrays.copyOf(dstPrev, capacity);
+		}
+		
+		buckets = new int[Integer.highestOneBit(capacity - 1) << 2];
+		for (int slot = 0; slot < limit; slot++)
+			if (payloadLengths[slot] != FREE)
+				link(slot);
+	}
+	
+	private static int hash(long uniqueID) {
+		final long h = uniqueID * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+}
@@ -0,0 +1,288 @@
+/**
+ * Amazon-DTN - Lightweight Delay Tolerant Networking Implementation
+ * Copyright (C) 2013  Dórian C. Langbeck
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package br.ufpa.adtn.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+import br.ufpa.adtn.bundle.Bundle;
+import br.ufpa.adtn.util.DataBlock;
+import br.ufpa.adtn.util.Logger;
+import br.ufpa.adtn.util.collections.LongObjectMap;
+
+/**
+ * Reference-counted store of payloads addressed by their SHA-256 digest,
+ * so stored bundles with identical payloads share a single block and count
+ * it once against the storage capacity. Payloads shorter than the
+ * threshold are not worth hashing and are left alone. A digest match is
+ * only trusted once the bytes are compared, since payloads come from
+ * untrusted peers.
+ * 
+ * Only used under the lock of the owning {@link BundleStorage}.
+ */
+final class ContentStore {
+	private static final Logger LOGGER = new Logger("ContentStore");
+	private static final String ALGORITHM = "SHA-256";
+	private static final int BUFFER_SIZE = 0x2000;
+	
+	private final Map<ByteBuffer, Content> contents;
+	private final LongObjectMap<Content> byBundle;
+	private final MessageDigest md;
+	private final byte[] buffer;
+	private final byte[] other;
+	private final long threshold;
+	
+	// Digest of the last hashed block, usually asked again right after
+	private DataBlock lastBlock;
+	private ByteBuffer lastDigest;
+	
+	// Content found holding the same bytes as the last hashed block
+	private Content lastMatch;
+	
+	public ContentStore(long threshold) {
+		this.contents = new HashMap<ByteBuffer, Content>();
+		this.byBundle = new LongObjectMap<Content>();
+		this.buffer = new byte[BUFFER_SIZE];
+		this.other = new byte[BUFFER_SIZE];
+		this.threshold = threshold;
+		
+		try {
+			this.md = MessageDigest.getInstance(ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			throw new InicializationException(ALGORITHM + " not available", e);
+		}
+	}
+	
+	/**
+	 * Bytes that storing {@code bundle} would take, zero if its payload is
+	 * already there.
+	 */
+	public long getCost(Bundle bundle) {
+		final ByteBuffer digest = digest(bundle);
+		if (digest != null && lookup(digest, bundle.getPayload()) != null)
+			return 0;
+		
+		return bundle.getPayloadLength();
+	}
+	
+	/**
+	 * Bytes that removing the stored {@code bundle} would release, zero if
+	 * other bundles share its payload.
+	 */
+	public long getRefund(Bundle bundle) {
+		final Content content = byBundle.get(bundle.getUniqueID());
+		if (content != null && content.references > 1)
+			return 0;
+		
+		return bundle.getPayloadLength();
+	}
+	
+	/**
+	 * Returns the instance of {@code bundle} to be stored: a new one
+	 * holding a reference to the stored payload if there is one with the
+	 * same content, otherwise {@code bundle} itself.
+	 */
+	public Bundle share(Bundle bundle) {
+		final ByteBuffer digest = digest(bundle);
+		final Content content = digest == null ? null : lookup(digest, bundle.getPayload());
+		if (content == null)
+			return bundle;
+		
+		// So that add() finds the digest of the new instance without hashing
+		lastBlock = content.block;
+		lastDigest = content.digest;
+		lastMatch = content;
+		
+		return Bundle.restore(bundle.getInfo().copy(), content.block.retain());
+	}
+	
+	/**
+	 * Accounts for {@code bundle}, given by {@link #share(Bundle)}, as
+	 * stored. Returns the bytes it took.
+	 */
+	public long add(Bundle bundle) {
+		final ByteBuffer digest = digest(bundle);
+		if (digest == null)
+			return bundle.getPayloadLength();
+		
+		Content content = contents.get(digest);
+		final long cost;
+		if (content == null) {
+			contents.put(digest, content = new Content(digest, bundle.getPayload().retain()));
+			cost = bundle.getPayloadLength();
+		} else if (content.block == bundle.getPayload() || lookup(digest, bundle.getPayload()) != null) {
+			cost = 0;
+		} else {
+			// Same digest, other bytes: kept apart from the stored one
+			return bundle.getPayloadLength();
+		}
+		
+		content.references++;
+		byBundle.put(bundle.getUniqueID(), content);
+		return cost;
+	}
+	
+	/**
+	 * Forgets the stored {@code bundle}. Returns the bytes released.
+	 */
+	public long remove(Bundle bundle) {
+		// The cache must not keep released blocks alive or match them again
+		if (lastBlock == bundle.getPayload())
+			forgetLast();
+		
+		final Content content = byBundle.remove(bundle.getUniqueID());
+		if (content == null)
+			return bundle.getPayloadLength();
+		
+		if (--content.references > 0)
+			return 0;
+		
+		if (lastMatch == content || lastBlock == content.block)
+			forgetLast();
+		
+		contents.remove(content.digest);
+		content.block.release();
+		return content.block.getLength();
+	}
+	
+	private void forgetLast() {
+		lastBlock = null;
+		lastDigest = null;
+		lastMatch = null;
+	}
+	
+	/**
+	 * Number of distinct payloads kept.
+	 */
+	public int size() {
+		return contents.size();
+	}
+	
+	/**
+	 * Returns the content stored under {@code digest} if it holds the same
+	 * bytes as {@code block}.
+	 */
+	private Content lookup(ByteBuffer digest, DataBlock block) {
+		final Content content = contents.get(digest);
+		if (content == null || content.block == block || (block == lastBlock && content == lastMatch))
+			return content;
+		
+		try {
+			if (equals(content.block, block)) {
+				if (block == lastBlock)
+					lastMatch = content;
+				
+				return content;
+			}
+		} catch (IOException e) {
+			LOGGER.w("Stored payload could not be compared", e);
+			return null;
+		}
+		
+		LOGGER.w("Payloads with the same digest but different contents");
+		return null;
+	}
+	
+	private boolean equals(DataBlock a, DataBlock b) throws IOException {
+		if (a.getLength() != b.getLength())
+			return false;
+		
+		final InputStream ia = a.open();
+		try {
+			final InputStream ib = b.open();
+			try {
+				for (int count; (count = fill(ia, buffer)) > 0; ) {
+					if (fill(ib, other) != count)
+						return false;
+					
+					for (int i = 0; i < count; i++)
+						if (buffer[i] != other[i])
+							return false;
+				}
+				
+				return true;
+			} finally {
+				ib.close();
+			}
+		} finally {
+			ia.close();
+		}
+	}
+	
+	/**
+	 * Reads into {@code dst} until it is full or the stream ends. Returns
+	 * the bytes read.
+	 */
+	private static int fill(InputStream in, byte[] dst) throws IOException {
+		int pos = 0;
+		for (int count; pos < dst.length && (count = in.read(dst, pos, dst.length - pos)) != -1; )
+			pos += count;
+		
+		return pos;
+	}
+	
+	private ByteBuffer digest(Bundle bundle) {
+		final DataBlock block = bundle.getPayload();
+		if (block.getLength() < threshold)
+			return null;
+		
+		if (block == lastBlock)
+			return lastDigest;
+		
+		final Content content = byBundle.get(bundle.getUniqueID());
+		if (content != null && content.block == block)
+			return content.digest;
+		
+		md.reset();
+		try {
+			final InputStream in = block.open();
+			try {
+				for (int count; (count = in.read(buffer)) != -1; )
+					md.update(buffer, 0, count);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			LOGGER.w(String.format("Payload of bundle %016x could not be hashed", bundle.getUniqueID()), e);
+			return null;
+		}
+		
+		lastDigest = ByteBuffer.wrap(md.digest());
+		lastMatch = null;
+		lastBlock = block;
+		return lastDigest;
+	}
+	
+	
+	private static class Content {
+		private final ByteBuffer digest;
+		private final DataBlock block;
+		private int references;
+		
+		private Content(ByteBuffer digest, DataBlock block) {
+			this.digest = digest;
+			this.block = block;
+			this.references = 0;
+		}
+	}
+}
@@ -17,11 +17,13 @@
  */
 package br.ufpa.adtn.core;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 
 import br.ufpa.adtn.bundle.Bundle;
+import br.ufpa.adtn.bundle.BundleReader.TruncatedBundleException;
 import br.ufpa.adtn.util.CompressedInputStream;
 import br.ufpa.adtn.util.CompressedOutputStream;
 import br.ufpa.adtn.util.Logger;
@@ -546,6 +548,7 @@ public abstract class ConvergenceLayer<TAdapter extends ConvergenceLayer<TAdapte
 		protected final void notifyReceived(Bundle bundle) {
 			if (!registered) {
 				LOGGER.d("Bundle received, but this ConvergenceLayer is not registered. [Ignoring]");
+				bundle.getPayload().release();
 				return;
 			}
 			
@@ -553,9 +556,48 @@ public abstract class ConvergenceLayer<TAdapter extends ConvergenceLayer<TAdapte
 			adapter.connector.notifyBundleReceived(this, bundle);
 		}
 
+		/**
+		 * Reads a bundle taking {@code length} bytes of {@code in} and
+		 * delivers it. Large payloads are spooled to disk while they arrive.
+		 * 
+		 * @return {@code false} if the input ended before the whole bundle
+		 * arrived. The received part of the payload, if any, is delivered as
+		 * a fragment.
+		 */
+		protected final boolean receiveBundle(InputStream in, int length) throws IOException {
+			try {
+				notifyReceived(BPAgent.getBundleReader().read(in, length));
+				return true;
+			} catch (TruncatedBundleException e) {
+				final Bundle fragment = e.getFragment();
+				if (fragment != null) {
+					notifyReceived(fragment);
+				} else {
+					LOGGER.d("Truncated bundle received. [Ignoring]");
+				}
+				
+				return false;
+			} catch (EOFException e) {
+				LOGGER.d("Truncated bundle received. [Ignoring]");
+				return false;
+			}
+		}
+		
 		protected final void notifyTransferAborted(Bundle bundle) {
 			InformationHub.onTransferAborted(bundle, getEndpointID());
 		}
+		
+		/**
+		 * Same as {@link #notifyTransferAborted(Bundle)} when the other side
+		 * acknowledged the first {@code payloadAcked} bytes of the payload.
+		 * Only the remaining bytes will be sent again. Bytes written without
+		 * such acknowledgement may have been lost, so they do not count.
+		 */
+		protected final void notifyTransferAborted(Bundle bundle, int payloadAcked) {
+			notifyTransferAborted(bundle);
+			if (payloadAcked > 0)
+				adapter.connector.notifyBundlePartiallyTransferred(this, bundle, payloadAcked);
+		}
 
 		protected final void notifyTransferStarted(Bundle bundle) {
 			InformationHub.onTransferStarted(bundle, getEndpointID());
@@ -568,6 +610,8 @@ public abstract class ConvergenceLayer<TAdapter extends ConvergenceLayer<TAdapte
 					eid,
 					eid.equals(bundle.getDestination())
 			);
+			
+			adapter.connector.notifyBundleTransferred(this, bundle);
 		}
 
 
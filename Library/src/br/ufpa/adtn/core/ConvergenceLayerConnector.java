@@ -32,6 +32,14 @@ public class ConvergenceLayerConnector extends BPAgentConnector {
 		BPAgent.notifyBundleReceived(conn, bundle);
 	}
 
+	void notifyBundleTransferred(IConnection conn, Bundle bundle) {
+		BPAgent.notifyBundleTransferred(bundle);
+	}
+
+	void notifyBundlePartiallyTransferred(IConnection conn, Bundle bundle, int acked) {
+		BPAgent.notifyBundlePartiallyTransferred(bundle, acked);
+	}
+
 	void notifyAdapterStoped(Throwable reason) {
 		BPAgent.notifyAdapterStoped(adapter, reason);
 	}
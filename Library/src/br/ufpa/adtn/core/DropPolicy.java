@@ -0,0 +1,321 @@
+/**
+ * Amazon-DTN - Lightweight Delay Tolerant Networking Implementation
+ * Copyright (C) 2013  Dórian C. Langbeck
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package br.ufpa.adtn.core;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import br.ufpa.adtn.bundle.Bundle;
+import br.ufpa.adtn.util.Properties;
+import br.ufpa.adtn.util.collections.LongLongMap;
+
+/**
+ * Decides which stored bundles are dropped when a new one does not fit in
+ * the storage. Each policy gives a value to the bundles; the ones with the
+ * lowest values are dropped first, ties being broken by dropping the oldest
+ * one. A stored bundle is only dropped in favor of a bundle with a higher
+ * value, otherwise the incoming bundle is the one dropped.
+ */
+public abstract class DropPolicy {
+	private static final Map<String, Class<? extends DropPolicy>> POLICIES;
+	
+	static {
+		POLICIES = new HashMap<String, Class<? extends DropPolicy>>();
+		registerPolicy("drop-tail", DropTail.class);
+		registerPolicy("drop-oldest", DropOldest.class);
+		registerPolicy("drop-expiring", DropExpiring.class);
+		registerPolicy("drop-largest", DropLargest.class);
+		registerPolicy("mofo", MostForwarded.class);
+		registerPolicy("utility", RouterUtility.class);
+	}
+	
+	public synchronized static Collection<String> getPolicies() {
+		return Collections.unmodifiableCollection(POLICIES.keySet());
+	}
+	
+	public synchronized static boolean hasPolicyRegistered(String policy) {
+		return POLICIES.containsKey(policy);
+	}
+	
+	public synchronized static void registerPolicy(String policy, Class<? extends DropPolicy> pClass) throws IllegalArgumentException {
+		if (POLICIES.containsKey(policy))
+			throw new IllegalArgumentException("Policy already registered");
+		
+		try {
+			pClass.getConstructor();
+		} catch (NoSuchMethodException e) {
+			throw new IllegalArgumentException("Policy does not have a default constructor", e);
+		} catch (SecurityException e) {
+			throw new IllegalArgumentException("Default constructor is not accessible", e);
+		}
+		
+		POLICIES.put(policy, pClass);
+	}
+	
+	public synchronized static DropPolicy createPolicy(String policy, Properties config) throws IllegalArgumentException {
+		final Class<? extends DropPolicy> pClass = POLICIES.get(policy);
+		if (pClass == null)
+			throw new IllegalArgumentException("Invalid policy");
+		
+		try {
+			final DropPolicy instance = pClass.getConstructor().newInstance();
+			instance.onInit(config);
+			return instance;
+		} catch (NoSuchMethodException e) {
+			throw new InicializationException("Policy instantiation failure", e);
+		} catch (InvocationTargetException e) {
+			throw new InicializationException("Policy instantiation failure", e);
+		} catch (InstantiationException e) {
+			throw new InicializationException("Policy instantiation failure", e);
+		} catch (IllegalAccessException e) {
+			throw new InicializationException("Policy instantiation failure", e);
+		}
+	}
+	
+	
+	/**
+	 * Returns the stored bundles to be dropped so {@code incoming} fits in
+	 * {@code storage}, or {@code null} if it is {@code incoming} the one to
+	 * be dropped. The returned collection is empty if there is room enough.
+	 * 
+	 * A copy of a bundle already stored is always dropped, as storing it
+	 * would be refused anyway.
+	 * 
+	 * Quotas come first: {@code incoming} is dropped if it exceeds one, or
+	 * if its flow would be above its fair share of the full storage, while
+	 * bundles of flows above theirs are dropped before any other one,
+	 * whatever their value.
+	 */
+	public final Collection<Bundle> selectVictims(BundleStorage storage, Bundle incoming) {
+		if (storage.contains(incoming.getUniqueID()))
+			return null;
+		
+		final StorageQuotas quotas = storage.getQuotas();
+		if (!quotas.admits(incoming))
+			return null;
+		
+		long needed = storage.getRequiredSpace(incoming) - storage.getAvailable();
+		if (needed <= 0)
+			return Collections.emptyList();
+		
+		if (incoming.getPayloadLength() > storage.getCapacity())
+			return null;
+		
+		final StorageQuotas.Kind fairness = quotas.getFairness();
+		final long share = quotas.getFairShare(incoming);
+		final Object iFlow = quotas.flowOf(incoming);
+		if (share != Long.MAX_VALUE && quotas.getUsage(fairness, iFlow) + incoming.getPayloadLength() > share)
+			return null;
+		
+		List<Candidate> ranked = rank(storage);
+		final List<Bundle> victims = new ArrayList<Bundle>();
+		if (share != Long.MAX_VALUE) {
+			// Bytes each flow would keep after its victims are gone
+			final Map<Object, Long> kept = quotas.getUsage(fairness);
+			final List<Candidate> others = new ArrayList<Candidate>(ranked.size());
+			for (Candidate candidate : ranked) {
+				final Object flow = quotas.flowOf(candidate.bundle);
+				final Long left = kept.get(flow);
+				if (left == null || left <= share) {
+					others.add(candidate);
+					continue;
+				}
+				
+				kept.put(flow, left - candidate.bundle.getPayloadLength());
+				victims.add(candidate.bundle);
+				needed -= storage.getReleasedSpace(candidate.bundle);
+				if (needed <= 0)
+					return victims;
+			}
+			
+			ranked = others;
+		}
+		
+		final Candidate in = new Candidate(incoming, getValue(incoming));
+		for (Candidate candidate : ranked) {
+			if (in.compareTo(candidate) <= 0)
+				return null;
+			
+			victims.add(candidate.bundle);
+			needed -= storage.getReleasedSpace(candidate.bundle);
+			if (needed <= 0)
+				return victims;
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Called when the stored {@code bundle} was sent to a next hop, before
+	 * {@link #onRemoved(Bundle)} if it is removed.
+	 */
+	public void onForwarded(Bundle bundle) { }
+	
+	/**
+	 * Called when {@code bundle} left the storage, dropped or not.
+	 */
+	public void onRemoved(Bundle bundle) { }
+	
+	protected void onInit(Properties config) { }
+	
+	/**
+	 * Stored bundles sorted from the first one to be dropped. Values are
+	 * taken once, so they can change while the bundles are being sorted.
+	 */
+	protected List<Candidate> rank(BundleStorage storage) {
+		final List<Candidate> candidates = new ArrayList<Candidate>();
+		synchronized (storage) {
+			for (Bundle bundle : storage.getBundles())
+				candidates.add(new Candidate(bundle, getValue(bundle)));
+		}
+		
+		Collections.sort(candidates);
+		return candidates;
+	}
+	
+	/**
+	 * How much worth keeping {@code bundle} is.
+	 */
+	protected abstract double getValue(Bundle bundle);
+	
+	
+	protected static final class Candidate implements Comparable<Candidate> {
+		private final Bundle bundle;
+		private final double value;
+		
+		public Candidate(Bundle bundle, double value) {
+			this.bundle = bundle;
+			this.value = value;
+		}
+		
+		public Bundle getBundle() {
+			return bundle;
+		}
+		
+		@Override
+		public int compareTo(Candidate other) {
+			final int r = Double.compare(value, other.value);
+			return r != 0 ? r : BundleStorage.CREATION_ORDER.compare(bundle, other.bundle);
+		}
+	}
+	
+	/**
+	 * Never drops stored bundles, the incoming one is refused instead. This
+	 * is the default policy.
+	 */
+	public static class DropTail extends DropPolicy {
+
+		@Override
+		protected List<Candidate> rank(BundleStorage storage) {
+			return Collections.emptyList();
+		}
+		
+		@Override
+		protected double getValue(Bundle bundle) {
+			return 0;
+		}
+	}
+	
+	public static class DropOldest extends DropPolicy {
+		
+		@Override
+		protected List<Candidate> rank(BundleStorage storage) {
+			final List<Candidate> candidates = new ArrayList<Candidate>();
+			for (Bundle bundle : storage.getOldestBundles(Integer.MAX_VALUE))
+				candidates.add(new Candidate(bundle, getValue(bundle)));
+			
+			return candidates;
+		}
+
+		@Override
+		protected double getValue(Bundle bundle) {
+			return bundle.getInfo().getCreationTime();
+		}
+	}
+	
+	public static class DropExpiring extends DropPolicy {
+		
+		@Override
+		protected List<Candidate> rank(BundleStorage storage) {
+			final List<Candidate> candidates = new ArrayList<Candidate>();
+			for (Bundle bundle : storage.getBundlesExpiringBefore(Long.MAX_VALUE))
+				candidates.add(new Candidate(bundle, getValue(bundle)));
+			
+			// Bundles expiring in the same second come in insertion order
+			Collections.sort(candidates);
+			return candidates;
+		}
+
+		@Override
+		protected double getValue(Bundle bundle) {
+			return bundle.getInfo().getExpirationTime();
+		}
+	}
+	
+	public static class DropLargest extends DropPolicy {
+
+		@Override
+		protected double getValue(Bundle bundle) {
+			return -bundle.getPayloadLength();
+		}
+	}
+	
+	/**
+	 * MOFO: drops the bundles forwarded the most times, as they are the ones
+	 * most likely to have other copies around.
+	 */
+	public static class MostForwarded extends DropPolicy {
+		private final LongLongMap forwards;
+		
+		public MostForwarded() {
+			this.forwards = new LongLongMap();
+		}
+		
+		@Override
+		public synchronized void onForwarded(Bundle bundle) {
+			forwards.add(bundle.getUniqueID(), 1);
+		}
+		
+		@Override
+		public synchronized void onRemoved(Bundle bundle) {
+			forwards.remove(bundle.getUniqueID(), 0);
+		}
+
+		@Override
+		protected synchronized double getValue(Bundle bundle) {
+			return -forwards.get(bundle.getUniqueID(), 0);
+		}
+	}
+	
+	/**
+	 * Drops the bundles the routers are less likely to deliver, as told by
+	 * {@link BundleRouter#getBundleUtility(Bundle)}.
+	 */
+	public static class RouterUtility extends DropPolicy {
+
+		@Override
+		protected double getValue(Bundle bundle) {
+			return BPAgent.getBundleUtility(bundle);
+		}
+	}
+}
@@ -17,41 +17,76 @@
  */
 package br.ufpa.adtn.core;
 
+import java.io.ObjectStreamException;
 import java.io.Serializable;
 import java.lang.ref.Reference;
-import java.lang.ref.SoftReference;
+import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import br.ufpa.adtn.util.SDNV;
 
 
 
+/**
+ * Endpoint identifier. EIDs are interned: there is a single instance of
+ * each one, numbered by a dense ID, so they can be compared by identity
+ * and used as keys of primitive maps through {@link #getId()}.
+ * 
+ * Lookups do not lock. The interned EIDs are indexed by their text and, for
+ * the ones decoded from bundles, by their encoded bytes in an open
+ * addressing table. New EIDs are added under the class lock.
+ * 
+ * The index only keeps weak references, so EIDs no longer referenced by
+ * stored bundles, routers or links are collected and their IDs reused by
+ * new EIDs. An ID is thus valid while its EID is held: whoever keeps IDs
+ * instead of EIDs, as {@link BundleTable} does, must hold the EIDs too.
+ */
 public final class EID implements Serializable {
 	private static final long serialVersionUID = 3774973384300603807L;
+	private static final int INITIAL_CAPACITY = 64;
 
-	private static final Map<String, WeakReference<String>> G_STRINGS;
-	private static final Map<String, SoftReference<EID>> INTERNAL;
+	private static final ConcurrentMap<String, Entry> NAMES;
+	private static final ReferenceQueue<EID> COLLECTED;
+	private static final Map<String, String> STRINGS;
+	private static volatile AtomicReferenceArray<Entry> table;
+	private static volatile AtomicReferenceArray<Entry> ids;
+	private static int[] freeIds;
+	private static int freeCount;
+	private static int count;
+	private static int used;
 	public static final EID NULL;
 	
 	static {
-		G_STRINGS = new WeakHashMap<String, WeakReference<String>>();
-		INTERNAL = new HashMap<String, SoftReference<EID>>();
+		NAMES = new ConcurrentHashMap<String, Entry>();
+		COLLECTED = new ReferenceQueue<EID>();
+		STRINGS = new HashMap<String, String>();
+		table = new AtomicReferenceArray<Entry>(INITIAL_CAPACITY);
+		ids = new AtomicReferenceArray<Entry>(INITIAL_CAPACITY);
+		freeIds = new int[INITIAL_CAPACITY];
+		freeCount = 0;
+		count = 0;
+		used = 0;
 		NULL = EID.get("dtn:none");
 	}
 	
+	/**
+	 * Shares the scheme strings among EIDs, there are a few of them. Called
+	 * with the class lock held.
+	 */
 	private static String getIntern(String s) {
-		final Reference<String> ref = G_STRINGS.get(s);
-		if (ref != null) {
-			final String data = ref.get();
-			if (data != null)
-				return data;
-		}
+		final String data = STRINGS.get(s);
+		if (data != null)
+			return data;
 		
-		G_STRINGS.put(s, new WeakReference<String>(s));
+		STRINGS.put(s, s);
 		return s;
 	}
 	
@@ -63,37 +98,182 @@ public final class EID implements Serializable {
 	}
 	
 	public static EID get(String scheme, String ssp) {
-		return get(String.format("%s:%s", scheme, ssp));
+		return get(scheme + ':' + ssp);
 	}
 	
 	public static EID get(String eid) throws ParsingException {
 		if (eid == null)
 			return NULL;
 		
-		synchronized (INTERNAL) {
-			final SoftReference<EID> ref = INTERNAL.get(eid);
-			if (ref != null) {
-				EID ie = ref.get();
-				if (ie == null) {
-					ie = parse(eid);
-					INTERNAL.put(eid, new SoftReference<EID>(ie));
-				}
-				
-				return ie;
-			} else {
-				final EID ie = parse(eid);
-				INTERNAL.put(eid, new SoftReference<EID>(ie));
-				return ie;
-			}
-		}
+		final EID ie = get(NAMES.get(eid));
+		return ie != null ? ie : intern(eid);
+	}
+	
+	/**
+	 * Returns the EID whose scheme and SSP are the NUL terminated strings
+	 * starting at {@code scheme} and {@code ssp} in {@code dictionary}.
+	 * Known EIDs are found from the bytes, without building any string.
+	 */
+	public static EID get(byte[] dictionary, int scheme, int ssp) throws ParsingException {
+		final int sLength = terminator(dictionary, scheme) - scheme;
+		final int pLength = terminator(dictionary, ssp) - ssp;
+		final EID ie = find(dictionary, scheme, sLength, ssp, pLength);
+		if (ie != null)
+			return ie;
+		
+		return get(
+				new String(dictionary, scheme, sLength) + ':' +
+				new String(dictionary, ssp, pLength)
+		);
+	}
+	
+	/**
+	 * Returns the EID with the given {@link #getId() ID}, or {@code null}
+	 * if there is none.
+	 */
+	public static EID byId(int id) {
+		final AtomicReferenceArray<Entry> ids = EID.ids;
+		return (id >= 0 && id < ids.length()) ? get(ids.get(id)) : null;
+	}
+	
+	/**
+	 * Bound of the IDs given so far, all of them below it.
+	 */
+	public synchronized static int getCount() {
+		return count;
+	}
+	
+	private static EID get(Entry entry) {
+		return entry != null ? entry.get() : null;
 	}
 	
-	private static EID parse(String eid) throws ParsingException {
+	private synchronized static EID intern(String eid) throws ParsingException {
+		EID ie = get(NAMES.get(eid));
+		if (ie != null)
+			return ie;
+		
 		final String[] parts = eid.split(":", 2);
 		if (parts.length != 2)
 			throw new ParsingException(eid);
 		
-		return new EID(parts[0], parts[1]);
+		expunge();
+		
+		final int id;
+		AtomicReferenceArray<Entry> ids = EID.ids;
+		if (freeCount > 0) {
+			id = freeIds[--freeCount];
+		} else {
+			if (count == ids.length())
+				EID.ids = ids = copy(ids, ids.length() << 1);
+			
+			id = count++;
+		}
+		
+		ie = new EID(parts[0], parts[1], id);
+		final Entry entry = new Entry(ie, eid);
+		ids.set(id, entry);
+		
+		// Collected EIDs keep their buckets until the table is rebuilt
+		AtomicReferenceArray<Entry> table = EID.table;
+		if (++used << 1 > table.length()) {
+			used = 1;
+			for (int i = 0, l = table.length(); i < l; i++)
+				if (get(table.get(i)) != null)
+					used++;
+			
+			int capacity = INITIAL_CAPACITY;
+			while (used << 2 > capacity)
+				capacity <<= 1;
+			
+			final AtomicReferenceArray<Entry> rebuilt = new AtomicReferenceArray<Entry>(capacity);
+			for (int i = 0, l = table.length(); i < l; i++) {
+				final Entry e = table.get(i);
+				if (get(e) != null)
+					put(rebuilt, e);
+			}
+			
+			EID.table = table = rebuilt;
+		}
+		
+		put(table, entry);
+		NAMES.put(eid, entry);
+		return ie;
+	}
+	
+	/**
+	 * Forgets the EIDs collected, freeing their IDs. Called with the class
+	 * lock held.
+	 */
+	private static void expunge() {
+		Reference<? extends EID> ref;
+		while ((ref = COLLECTED.poll()) != null) {
+			final Entry entry = (Entry) ref;
+			NAMES.remove(entry.name, entry);
+			ids.set(entry.id, null);
+			
+			if (freeCount == freeIds.length)
+				freeIds = Arrays.copyOf(freeIds, freeCount << 1);
+			
+			freeIds[freeCount++] = entry.id;
+		}
+	}
+	
+	private static AtomicReferenceArray<Entry> copy(AtomicReferenceArray<Entry> src, int length) {
+		final AtomicReferenceArray<Entry> dst = new AtomicReferenceArray<Entry>(length);
+		for (int i = 0, l = src.length(); i < l; i++)
+			dst.set(i, src.get(i));
+		
+		return dst;
+	}
+	
+	private static void put(AtomicReferenceArray<Entry> table, Entry entry) {
+		final int mask = table.length() - 1;
+		int i = entry.hash & mask;
+		while (table.get(i) != null)
+			i = (i + 1) & mask;
+		
+		table.set(i, entry);
+	}
+	
+	private static EID find(byte[] data, int scheme, int sLength, int ssp, int pLength) {
+		final int h = spread(hash(31 * hash(1, data, scheme, sLength) + ':', data, ssp, pLength));
+		
+		final AtomicReferenceArray<Entry> table = EID.table;
+		final int mask = table.length() - 1;
+		for (int i = h & mask; ; i = (i + 1) & mask) {
+			final Entry entry = table.get(i);
+			if (entry == null)
+				return null;
+			
+			if (entry.hash != h)
+				continue;
+			
+			final EID e = entry.get();
+			if (e != null && e.matches(data, scheme, sLength, ssp, pLength))
+				return e;
+		}
+	}
+	
+	private static int hash(int h, byte[] data, int offset, int length) {
+		for (int i = offset, end = offset + length; i < end; i++)
+			h = 31 * h + data[i];
+		
+		return h;
+	}
+	
+	/**
+	 * Mixes the high bits into the low ones, which pick the slot.
+	 */
+	private static int spread(int h) {
+		return h ^ (h >>> 16);
+	}
+	
+	private static int terminator(byte[] data, int offset) {
+		int end = offset;
+		while (data[end] != (byte) 0)
+			end++;
+		
+		return end;
 	}
 	
 	public static EID decode(ByteBuffer buffer) {
@@ -102,10 +282,33 @@ public final class EID implements Serializable {
 		 * a EID length.
 		 */
 		final int len = SDNV.decodeShort(buffer);
-		final byte[] bbuf = new byte[len];
-		buffer.get(bbuf);
+		if (buffer.remaining() < len)
+			throw new BufferUnderflowException();
 		
-		return get(new String(bbuf));
+		final byte[] bbuf;
+		final int off;
+		if (buffer.hasArray()) {
+			bbuf = buffer.array();
+			off = buffer.arrayOffset() + buffer.position();
+			buffer.position(buffer.position() + len);
+		} else {
+			bbuf = new byte[len];
+			off = 0;
+			buffer.get(bbuf);
+		}
+		
+		for (int i = off, end = off + len; i < end; i++) {
+			if (bbuf[i] != (byte) ':')
+				continue;
+			
+			final EID ie = find(bbuf, off, i - off, i + 1, end - i - 1);
+			if (ie != null)
+				return ie;
+			
+			break;
+		}
+		
+		return get(new String(bbuf, off, len));
 	}
 	
 	public static boolean isValidHostname(String hostname) {
@@ -124,11 +327,13 @@ public final class EID implements Serializable {
 	private final String scheme;
 	private final String ssp;
 	private final int len;
+	private final int id;
 	
 	private final byte[] rawData;
+	private final int rawHash;
 	private final int dLength;
 	
-	private EID(String scheme, String ssp) throws IllegalArgumentException {
+	private EID(String scheme, String ssp, int id) throws IllegalArgumentException {
 		if (scheme == null || ssp == null)
 			throw new IllegalArgumentException();
 		
@@ -147,13 +352,20 @@ public final class EID implements Serializable {
 		System.arraycopy(schemeData, 0, rawData, 0, scheme_len);
 		rawData[scheme_len] = (byte) ':';
 		
+		this.rawHash = spread(hash(1, rawData, 0, dLength));
 		this.len = scheme.length() + ssp.length() + 1;
-		
-		
-		synchronized (G_STRINGS) {
-			this.scheme = getIntern(scheme);
-			this.ssp = getIntern(ssp);
-		}
+		this.scheme = getIntern(scheme);
+		this.ssp = ssp;
+		this.id = id;
+	}
+	
+	/**
+	 * Dense number of this EID, from zero, unique while it is held.
+	 * 
+	 * @see #byId(int)
+	 */
+	public int getId() {
+		return id;
 	}
 	
 	public String getScheme() {
@@ -185,6 +397,21 @@ public final class EID implements Serializable {
 		return String.format("%s:%s", scheme, ssp);
 	}
 	
+	private boolean matches(byte[] data, int scheme, int sLength, int ssp, int pLength) {
+		if (sLength + pLength + 1 != dLength || rawData[sLength] != (byte) ':')
+			return false;
+		
+		for (int i = 0; i < sLength; i++)
+			if (rawData[i] != data[scheme + i])
+				return false;
+		
+		for (int i = 0; i < pLength; i++)
+			if (rawData[sLength + 1 + i] != data[ssp + i])
+				return false;
+		
+		return true;
+	}
+	
 	public int encode(ByteBuffer buffer) {
 		final int total = SDNV.writeInt(buffer, dLength) + dLength;
 		buffer.put(rawData);
@@ -195,6 +422,14 @@ public final class EID implements Serializable {
 		return scheme.equals(this.scheme) ? this : EID.get(scheme, ssp);
 	}
 	
+	/**
+	 * Deserialized EIDs are replaced by the interned ones, whose IDs are
+	 * the ones valid here.
+	 */
+	private Object readResolve() throws ObjectStreamException {
+		return get(scheme, ssp);
+	}
+	
 	@Override
 	public int hashCode() {
 		final int prime = 31;
@@ -225,4 +460,21 @@ public final class EID implements Serializable {
 			return false;
 		return true;
 	}
+	
+	
+	/**
+	 * Index entry of an EID, which does not keep it from being collected.
+	 */
+	private static final class Entry extends WeakReference<EID> {
+		private final String name;
+		private final int hash;
+		private final int id;
+		
+		public Entry(EID eid, String name) {
+			super(eid, COLLECTED);
+			this.name = name;
+			this.hash = eid.rawHash;
+			this.id = eid.id;
+		}
+	}
 }
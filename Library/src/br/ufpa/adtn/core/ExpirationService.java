@@ -0,0 +1,135 @@
+/**
+ * Amazon-DTN - Lightweight Delay Tolerant Networking Implementation
+ * Copyright (C) 2013  Dórian C. Langbeck
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package br.ufpa.adtn.core;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import br.ufpa.adtn.bundle.Bundle;
+import br.ufpa.adtn.util.EventQueue;
+import br.ufpa.adtn.util.EventQueue.Event;
+import br.ufpa.adtn.util.Logger;
+import br.ufpa.adtn.util.TimingWheel;
+import br.ufpa.adtn.util.TimingWheel.Timeout;
+import br.ufpa.adtn.util.collections.LongObjectMap;
+
+/**
+ * Expires bundles at the end of their lifetimes. The unique IDs of the
+ * bundles are kept in a {@link TimingWheel} ticking once per
+ * {@link SystemClock} second, so simulated time is followed, and the
+ * bundles themselves are left to the storage. The wheel only ticks while it
+ * has bundles, and everything due in a tick is handed to the
+ * {@link Handler} at once.
+ */
+final class ExpirationService {
+	private static final Logger LOGGER = new Logger("ExpirationService");
+	
+	private final LongObjectMap<Timeout<Long>> timeouts;
+	private final EventQueue eQueue;
+	private final Handler handler;
+	private final Event tick;
+	private TimingWheel<Long> wheel;
+	private boolean ticking;
+	
+	public ExpirationService(EventQueue eQueue, Handler handler) {
+		this.timeouts = new LongObjectMap<Timeout<Long>>();
+		this.handler = handler;
+		this.eQueue = eQueue;
+		this.ticking = false;
+		this.wheel = null;
+		
+		this.tick = new Event() {
+			@Override
+			public void execute() throws Throwable {
+				tick();
+			}
+		};
+	}
+	
+	/**
+	 * Starts tracking {@code bundle}, which is not kept. Returns
+	 * {@code false} if it was already being tracked.
+	 */
+	public synchronized boolean register(Bundle bundle) {
+		final long uniqueID = bundle.getUniqueID();
+		if (timeouts.containsKey(uniqueID))
+			return false;
+		
+		// Created late so it starts from the simulated time, if any
+		if (wheel == null)
+			wheel = new TimingWheel<Long>(SystemClock.secs());
+		
+		timeouts.put(uniqueID, wheel.schedule(
+				uniqueID,
+				bundle.getInfo().getExpirationTime()
+		));
+		
+		if (!ticking) {
+			ticking = true;
+			eQueue.schedule(tick, 1, TimeUnit.SECONDS);
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Stops tracking {@code bundle}. Returns {@code false} if it was not
+	 * being tracked, either because it has already expired or because it was
+	 * never registered.
+	 */
+	public synchronized boolean cancel(Bundle bundle) {
+		final Timeout<Long> timeout = timeouts.remove(bundle.getUniqueID());
+		return timeout != null && wheel.cancel(timeout);
+	}
+	
+	public synchronized int size() {
+		return timeouts.size();
+	}
+	
+	private void tick() {
+		final List<Long> expired = new ArrayList<Long>();
+		synchronized (this) {
+			wheel.advance(SystemClock.secs(), expired);
+			for (Long uniqueID : expired)
+				timeouts.remove(uniqueID);
+			
+			if (timeouts.isEmpty()) {
+				ticking = false;
+			} else {
+				eQueue.schedule(tick, 1, TimeUnit.SECONDS);
+			}
+		}
+		
+		if (!expired.isEmpty()) {
+			LOGGER.v(String.format("%d bundles expired", expired.size()));
+			handler.onExpired(expired);
+		}
+	}
+	
+	
+	interface Handler {
+		
+		/**
+		 * Called from the event queue with the unique IDs of the bundles
+		 * that expired in the same tick. They are not tracked anymore.
+		 */
+		void onExpired(Collection<Long> uniqueIDs);
+	}
+}
@@ -9,9 +9,11 @@ import java.util.concurrent.TimeUnit;
 
 import br.ufpa.adtn.bundle.Bundle;
 import br.ufpa.adtn.routing.dlife.SocialInformation;
+import br.ufpa.adtn.util.BufferPool;
 import br.ufpa.adtn.util.Logger;
 import br.ufpa.adtn.util.PeriodicEvent;
 import br.ufpa.adtn.util.TrafficMeter;
+import br.ufpa.adtn.util.collections.LongLongMap;
 
 public class InformationHub {
 	public final static TrafficMeter COMPRESSED_CONVERGENCE_LAYER_METER;
@@ -19,6 +21,7 @@ public class InformationHub {
 	public final static TrafficMeter DISCOVERY_METER;
 	
 	public final static BluetoothHub BLUETOOTH;
+	public final static StorageHub STORAGE;
 	public final static BundleHub DATA_BUNDLE;
 	public final static BundleHub META_BUNDLE;
 	public final static BundleHub BUNDLE;
@@ -34,6 +37,7 @@ public class InformationHub {
 		BUNDLE = new BundleHub("BundleGeneral");
 		DISCOVERY_METER = new TrafficMeter();
 		BLUETOOTH = new BluetoothHub();
+		STORAGE = new StorageHub();
 		PROPHET = new ProphetHub();
 		DLIFE = new DLifeHub();
 	}
@@ -94,12 +98,12 @@ public class InformationHub {
 		private int relayed;
 		private int sent;
 
-		private final Map<Long, Long> receivedTime;
+		private final LongLongMap receivedTime;
 		
 		private BundleHub(String hubname) {
 			this.hubname = hubname;
 
-			this.receivedTime = new HashMap<Long, Long>();
+			this.receivedTime = new LongLongMap();
 			this.payloadReceived = 0;
 			this.dataReceived = 0;
 			this.payloadSent = 0;
@@ -251,14 +255,14 @@ public class InformationHub {
 						bundle.getDestination()
 				));
 			} else {
-				final Long t = receivedTime.remove(uniqueID);
+				final long t = receivedTime.remove(uniqueID, -1);
 				LOGGER.i(String.format(
 						"(%s) %s - Deleted: [ ID: %016x ; BufferTime: %s ]",
 						new Date(SystemClock.millis()),
 						hubname,
 						uniqueID,
 						bundle.getDestination(),
-						(t == null) ? "unknow" : SystemClock.millis() - t
+						(t == -1) ? "unknow" : SystemClock.millis() - t
 				));
 			}
 		}
@@ -337,6 +341,79 @@ public class InformationHub {
 	}
 	
 	
+	public static class StorageHub {
+		private static final int STATUS_TOP = 5;
+		
+		private volatile BundleStorage storage;
+		
+		private StorageHub() { }
+		
+		void setStorage(BundleStorage storage) {
+			this.storage = storage;
+		}
+		
+		public long getUsed() {
+			final BundleStorage storage = this.storage;
+			return storage == null ? 0 : storage.getUsed();
+		}
+		
+		public long getCapacity() {
+			final BundleStorage storage = this.storage;
+			return storage == null ? 0 : storage.getCapacity();
+		}
+		
+		/**
+		 * Bytes used by each class of {@code kind} with bundles stored.
+		 */
+		public Map<Object, Long> getUsage(StorageQuotas.Kind kind) {
+			final BundleStorage storage = this.storage;
+			return storage == null ? new HashMap<Object, Long>() : storage.getQuotas().getUsage(kind);
+		}
+		
+		private String getStatus(Date now) {
+			final StringBuilder status = new StringBuilder(String.format(
+					"(%s) Storage [ Used: %d / %d",
+					now,
+					getUsed(),
+					getCapacity()
+			));
+			
+			for (StorageQuotas.Kind kind : StorageQuotas.Kind.values()) {
+				final Map<Object, Long> usage = getUsage(kind);
+				
+				// The classes using the most, the others only in the totals
+				final List<Map.Entry<Object, Long>> top = new ArrayList<Map.Entry<Object, Long>>(STATUS_TOP + 1);
+				long total = 0;
+				for (Map.Entry<Object, Long> entry : usage.entrySet()) {
+					total += entry.getValue();
+					
+					int i = top.size();
+					while (i > 0 && top.get(i - 1).getValue() < entry.getValue())
+						i--;
+					
+					if (i < STATUS_TOP) {
+						top.add(i, entry);
+						if (top.size() > STATUS_TOP)
+							top.remove(STATUS_TOP);
+					}
+				}
+				
+				status.append(String.format(
+						" ; %s: %d in %d classes",
+						kind.getName(),
+						total,
+						usage.size()
+				));
+				
+				for (Map.Entry<Object, Long> entry : top)
+					status.append(' ').append(entry.getKey()).append('=').append(entry.getValue());
+			}
+			
+			return status.append(" ]").toString();
+		}
+	}
+	
+	
 	public static interface OnChangeListener<T> {
 		public void onChanged(T data);
 	}
@@ -401,9 +478,12 @@ public class InformationHub {
 					meter.getTotalSent()
 			));
 			
+			LOGGER.i(STORAGE.getStatus(now));
 			LOGGER.i(String.format(
-					"(%s) Storage [ %d ]",
-					BPAgent.getStorageAvailable()
+					"(%s) Buffers [ Heap: %s ; Direct: %s ]",
+					now,
+					BufferPool.heap().getStatistics(),
+					BufferPool.direct().getStatistics()
 			));
 			
 //			if (log_dlife) {
@@ -401,11 +401,23 @@ public final class Link {
 		}
 	}
 	
+	/**
+	 * Queues {@code bundles} in the given order, stopping if the connection
+	 * is closed meanwhile. Unsent bundles stay in the outbox.
+	 */
 	void sendAll(Collection<Bundle> bundles) {
 		final IConnection conn = getConnectionToSend();
-		if (conn != null)
-			for (Bundle bundle : bundles)
-				conn.send(bundle);
+		if (conn == null)
+			return;
+		
+		for (Bundle bundle : bundles) {
+			if (conn.isClosed()) {
+				LOGGER.d("Connection closed while sending bundles");
+				break;
+			}
+			
+			conn.send(bundle);
+		}
 	}
 	
 	void send(Bundle bundle) {
@@ -422,7 +434,7 @@ public final class Link {
 	 */
 	
 	void notifyConnectionClosed(IConnection connection) {
-		EVENTS.post(new ConnectionClosedEvent(connection));
+		EVENTS.fire(new ConnectionClosedEvent(connection));
 	}
 	
 	void notifyConnectionRegistered(IConnection connection) {   
@@ -434,11 +446,11 @@ public final class Link {
 	}
 
 	<R extends BundleRouter<R, LC>, LC extends LinkConnection<LC, R>> void requestUnpark(final R router) {
-		EVENTS.post(new UnparkEvent<R, LC>(router));
+		EVENTS.fire(new UnparkEvent<R, LC>(router));
 	}
 
 	<R extends BundleRouter<R, LC>, LC extends LinkConnection<LC, R>> void requestPark(final R router) {
-		EVENTS.post(new ParkEvent<R, LC>(router));
+		EVENTS.fire(new ParkEvent<R, LC>(router));
 	}
 
 
@@ -63,7 +63,7 @@ public abstract class LinkConnection<LC extends LinkConnection<LC, R>, R extends
 	 * request be processed in the Router event queue.
 	 */
 	void notifyParked() {
-		eventQueue.post(new Event() {
+		eventQueue.fire(new Event() {
 			@Override
 			public void execute() throws Throwable {
 				if (parked) {
@@ -83,7 +83,7 @@ public abstract class LinkConnection<LC extends LinkConnection<LC, R>, R extends
 	 * request be processed in the Router event queue.
 	 */
 	void notifyUnparked() {
-		eventQueue.post(new Event() {
+		eventQueue.fire(new Event() {
 			@Override
 			public void execute() throws Throwable {
 				if (!parked) {
@@ -99,7 +99,7 @@ public abstract class LinkConnection<LC extends LinkConnection<LC, R>, R extends
 	}
 	
 	void notifyBundleReceived(final Bundle bundle) {
-		eventQueue.post(new Event() {
+		eventQueue.fire(new Event() {
 			@Override
 			public void execute() throws Throwable {
 				onBundleReceived(bundle);
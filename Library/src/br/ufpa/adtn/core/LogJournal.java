@@ -0,0 +1,579 @@
+/**
+ * Amazon-DTN - Lightweight Delay Tolerant Networking Implementation
+ * Copyright (C) 2013  Dórian C. Langbeck
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package br.ufpa.adtn.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import br.ufpa.adtn.util.Logger;
+
+/**
+ * Snapshot and write-ahead journal of the {@link LogStorage} index, so it is
+ * rebuilt at startup from the changes made since the last snapshot instead
+ * of reading every record of every segment.
+ * 
+ * Each change is appended to the journal as
+ * <pre>
+ * length (4) | CRC32 (4) | operation (1) | body
+ * </pre>
+ * and replay stops at the first incomplete or corrupted entry, which is
+ * what a torn write leaves behind. Once enough entries are written, the
+ * journal is set aside and merged in background with the previous snapshot
+ * into a new one. Snapshot records are sorted by unique ID, so the merge
+ * streams through the old snapshot holding only the journal in memory.
+ * Snapshots end with the last known end of each segment and a CRC32 of the
+ * whole file.
+ */
+final class LogJournal {
+	private static final Logger LOGGER = new Logger("LogJournal");
+	private static final String SNAPSHOT = "index.snapshot";
+	private static final String SNAPSHOT_TMP = "index.snapshot.tmp";
+	private static final String JOURNAL = "index.journal";
+	private static final String OLD_JOURNAL = "index.journal.old";
+	private static final int MAGIC = 0x4C534E50;
+	private static final int MAX_ENTRY_LENGTH = 0x100000;
+	
+	private static final byte OP_ADD	= 0x01;
+	private static final byte OP_DELETE	= 0x02;
+	private static final byte OP_MOVE	= 0x03;
+	
+	private final File directory;
+	private final int overhead;
+	private volatile FileChannel channel;
+	private RandomAccessFile rFile;
+	private int pending;
+	
+	/**
+	 * @param overhead bytes of each segment record besides head and payload
+	 */
+	public LogJournal(File directory, int overhead) {
+		this.directory = directory;
+		this.overhead = overhead;
+		this.pending = 0;
+	}
+	
+	/**
+	 * Replays the snapshot and then the journals into {@code visitor}.
+	 * Returns {@code false}, before calling it, if there is no valid
+	 * snapshot to start from.
+	 */
+	public boolean load(Visitor visitor) throws IOException {
+		final File snapshot = new File(directory, SNAPSHOT);
+		if (!snapshot.isFile())
+			return false;
+		
+		if (!verify(snapshot)) {
+			LOGGER.w("Corrupted index snapshot");
+			return false;
+		}
+		
+		final DataInputStream in = open(snapshot);
+		try {
+			in.readInt();
+			while (in.readByte() != 0) {
+				final long uniqueID = in.readLong();
+				final int segment = in.readInt();
+				final long offset = in.readLong();
+				final int plen = in.readInt();
+				final byte[] head = new byte[in.readInt()];
+				in.readFully(head);
+				visitor.add(uniqueID, segment, offset, head, plen);
+			}
+			
+			for (int i = in.readInt(); i > 0; i--)
+				visitor.end(in.readInt(), in.readLong());
+		} finally {
+			in.close();
+		}
+		
+		final File old = new File(directory, OLD_JOURNAL);
+		if (old.isFile())
+			pending += replay(old, visitor);
+		
+		final File journal = new File(directory, JOURNAL);
+		if (journal.isFile()) {
+			pending += replay(journal, visitor);
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Drops snapshot and journals, so the index must be journaled again from
+	 * scratch.
+	 */
+	public void reset() throws IOException {
+		close();
+		new File(directory, SNAPSHOT).delete();
+		new File(directory, OLD_JOURNAL).delete();
+		new File(directory, JOURNAL).delete();
+		pending = 0;
+	}
+	
+	/**
+	 * Opens the journal for appending.
+	 */
+	public void open() throws IOException {
+		rFile = new RandomAccessFile(new File(directory, JOURNAL), "rw");
+		channel = rFile.getChannel();
+		channel.position(channel.size());
+	}
+	
+	/**
+	 * Forces the entries written so far to the disk. May be called while
+	 * entries are appended; a journal set aside meanwhile was forced by
+	 * {@link #rotate()}.
+	 */
+	public void force() throws IOException {
+		for (FileChannel c; (c = channel) != null; ) {
+			try {
+				c.force(false);
+				return;
+			} catch (ClosedChannelException e) {
+				if (channel == c)
+					throw e;
+			}
+		}
+	}
+	
+	public void close() {
+		if (rFile == null)
+			return;
+		
+		try {
+			rFile.close();
+		} catch (IOException e) { }
+		
+		rFile = null;
+		channel = null;
+	}
+	
+	/**
+	 * Entries written since the last checkpoint.
+	 */
+	public int getPending() {
+		return pending;
+	}
+	
+	public void add(long uniqueID, int segment, long offset, byte[] head, int payloadLength) throws IOException {
+		final ByteBuffer entry = entry(OP_ADD, 28 + head.length);
+		entry.putLong(uniqueID);
+		entry.putInt(segment);
+		entry.putLong(offset);
+		entry.putInt(payloadLength);
+		entry.putInt(head.length);
+		entry.put(head);
+		append(entry);
+	}
+	
+	public void delete(long uniqueID) throws IOException {
+		final ByteBuffer entry = entry(OP_DELETE, 8);
+		entry.putLong(uniqueID);
+		append(entry);
+	}
+	
+	public void move(long uniqueID, int segment, long offset) throws IOException {
+		final ByteBuffer entry = entry(OP_MOVE, 20);
+		entry.putLong(uniqueID);
+		entry.putInt(segment);
+		entry.putLong(offset);
+		append(entry);
+	}
+	
+	/**
+	 * Sets the journal aside to be merged by {@link #checkpoint(Collection)}
+	 * and starts a new one. A journal left aside by an unfinished checkpoint
+	 * is merged first, in which case the current one is kept.
+	 */
+	public void rotate() throws IOException {
+		final File old = new File(directory, OLD_JOURNAL);
+		if (old.exists())
+			return;
+		
+		channel.force(false);
+		close();
+		if (!new File(directory, JOURNAL).renameTo(old)) {
+			open();
+			throw new IOException("Journal could not be set aside");
+		}
+		
+		open();
+		pending = 0;
+	}
+	
+	/**
+	 * Merges the journal set aside by {@link #rotate()} into a new snapshot.
+	 * Segment ends are kept only for {@code segments}. Safe to run while
+	 * entries are appended to the current journal.
+	 */
+	public void checkpoint(Collection<Integer> segments) throws IOException {
+		final File old = new File(directory, OLD_JOURNAL);
+		final File snapshot = new File(directory, SNAPSHOT);
+		final File tmp = new File(directory, SNAPSHOT_TMP);
+		
+		if (snapshot.isFile() && !verify(snapshot))
+			throw new IOException("Corrupted index snapshot");
+		
+		// Last operation of each bundle in the journal
+		final Collector collector = new Collector();
+		if (old.isFile())
+			replay(old, collector);
+		else if (snapshot.isFile())
+			return;
+		
+		final Map<Integer, Long> ends = collector.ends;
+		final TreeMap<Long, Operation> ops = collector.ops;
+		final CRC32 crc = new CRC32();
+		final FileOutputStream fos = new FileOutputStream(tmp);
+		try {
+			final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+					new CheckedOutputStream(fos, crc)
+			));
+			out.writeInt(MAGIC);
+			
+			final Iterator<Operation> it = ops.values().iterator();
+			Operation op = it.hasNext() ? it.next() : null;
+			if (snapshot.isFile()) {
+				final DataInputStream in = open(snapshot);
+				try {
+					in.readInt();
+					while (in.readByte() != 0) {
+						final Operation record = new Operation(OP_ADD, in.readLong());
+						record.segment = in.readInt();
+						record.offset = in.readLong();
+						record.payloadLength = in.readInt();
+						record.head = new byte[in.readInt()];
+						in.readFully(record.head);
+						
+						// Journal entries of smaller IDs first
+						while (op != null && op.uniqueID < record.uniqueID) {
+							if (op.type == OP_ADD)
+								write(out, op, ends);
+							
+							op = it.hasNext() ? it.next() : null;
+						}
+						
+						if (op == null || op.uniqueID != record.uniqueID) {
+							write(out, record, ends);
+							continue;
+						}
+						
+						if (op.type == OP_ADD) {
+							write(out, op, ends);
+						} else if (op.type == OP_MOVE) {
+							record.segment = op.segment;
+							record.offset = op.offset;
+							write(out, record, ends);
+						}
+						
+						op = it.hasNext() ? it.next() : null;
+					}
+					
+					for (int i = in.readInt(); i > 0; i--)
+						extend(ends, in.readInt(), in.readLong());
+				} finally {
+					in.close();
+				}
+			}
+			
+			for (; op != null; op = it.hasNext() ? it.next() : null)
+				if (op.type == OP_ADD)
+					write(out, op, ends);
+			
+			out.writeByte(0);
+			ends.keySet().retainAll(segments);
+			out.writeInt(ends.size());
+			for (Map.Entry<Integer, Long> end : ends.entrySet()) {
+				out.writeInt(end.getKey());
+				out.writeLong(end.getValue());
+			}
+			
+			out.flush();
+			new DataOutputStream(fos).writeInt((int) crc.getValue());
+			fos.getFD().sync();
+		} finally {
+			fos.close();
+		}
+		
+		if (!tmp.renameTo(snapshot) && !(snapshot.delete() && tmp.renameTo(snapshot)))
+			throw new IOException("Snapshot could not be replaced");
+		
+		old.delete();
+		LOGGER.d(String.format("Index snapshot written (%d journal entries merged)", collector.count));
+	}
+	
+	private void write(DataOutputStream out, Operation record, Map<Integer, Long> ends) throws IOException {
+		out.writeByte(1);
+		out.writeLong(record.uniqueID);
+		out.writeInt(record.segment);
+		out.writeLong(record.offset);
+		out.writeInt(record.payloadLength);
+		out.writeInt(record.head.length);
+		out.write(record.head);
+		extend(ends, record.segment, record.offset + overhead + record.head.length + record.payloadLength);
+	}
+	
+	private static void extend(Map<Integer, Long> ends, int segment, long end) {
+		final Long current = ends.get(segment);
+		if (current == null || current < end)
+			ends.put(segment, end);
+	}
+	
+	private static ByteBuffer entry(byte op, int length) {
+		final ByteBuffer entry = ByteBuffer.allocate(9 + length);
+		entry.putInt(1 + length);
+		entry.putInt(0);
+		entry.put(op);
+		return entry;
+	}
+	
+	private void append(ByteBuffer entry) throws IOException {
+		final CRC32 crc = new CRC32();
+		crc.update(entry.array(), 8, entry.position() - 8);
+		entry.putInt(4, (int) crc.getValue());
+		entry.flip();
+		
+		final long position = channel.position();
+		try {
+			while (entry.hasRemaining())
+				channel.write(entry);
+		} catch (IOException e) {
+			// Do not leave a partial entry behind the next one
+			channel.truncate(position);
+			channel.position(position);
+			throw e;
+		}
+		
+		pending++;
+	}
+	
+	/**
+	 * Replays the valid entries of {@code file}, cutting off what follows
+	 * the first invalid one. Returns how many entries were replayed.
+	 */
+	private static int replay(File file, Visitor visitor) throws IOException {
+		final DataInputStream in = open(file);
+		int count = 0;
+		long valid = 0;
+		try {
+			while (true) {
+				final int length;
+				try {
+					length = in.readInt();
+				} catch (EOFException e) {
+					break;
+				}
+				
+				if (length <= 0 || length > MAX_ENTRY_LENGTH)
+					break;
+				
+				final int expected = in.readInt();
+				final byte[] data = new byte[length];
+				try {
+					in.readFully(data);
+				} catch (EOFException e) {
+					break;
+				}
+				
+				final CRC32 crc = new CRC32();
+				crc.update(data);
+				if ((int) crc.getValue() != expected)
+					break;
+				
+				final ByteBuffer entry = ByteBuffer.wrap(data);
+				final byte op = entry.get();
+				final long uniqueID = entry.getLong();
+				if (op == OP_ADD) {
+					final int segment = entry.getInt();
+					final long offset = entry.getLong();
+					final int plen = entry.getInt();
+					final byte[] head = new byte[entry.getInt()];
+					entry.get(head);
+					visitor.add(uniqueID, segment, offset, head, plen);
+				} else if (op == OP_DELETE) {
+					visitor.delete(uniqueID);
+				} else if (op == OP_MOVE) {
+					visitor.move(uniqueID, entry.getInt(), entry.getLong());
+				} else {
+					break;
+				}
+				
+				valid += 8 + length;
+				count++;
+			}
+		} catch (RuntimeException e) {
+			// Garbage that happened to pass the checks above
+			LOGGER.w("Malformed journal entry", e);
+		} catch (EOFException e) {
+			// Truncated in the middle of an entry header
+		} finally {
+			in.close();
+		}
+		
+		if (valid < file.length()) {
+			LOGGER.w(String.format(
+					"Discarding %d bytes of incomplete or corrupted entries at the end of %s",
+					file.length() - valid,
+					file.getName()
+			));
+			
+			final RandomAccessFile rFile = new RandomAccessFile(file, "rw");
+			try {
+				rFile.setLength(valid);
+			} finally {
+				rFile.close();
+			}
+		}
+		
+		return count;
+	}
+	
+	private static boolean verify(File snapshot) throws IOException {
+		final long length = snapshot.length();
+		if (length < 13)
+			return false;
+		
+		final CRC32 crc = new CRC32();
+		final DataInputStream in = new DataInputStream(new CheckedInputStream(
+				new BufferedInputStream(new FileInputStream(snapshot)), crc
+		));
+		try {
+			if (in.readInt() != MAGIC)
+				return false;
+			
+			final byte[] buffer = new byte[0x2000];
+			for (long left = length - 8; left > 0; ) {
+				final int count = in.read(buffer, 0, (int) Math.min(buffer.length, left));
+				if (count < 0)
+					return false;
+				
+				left -= count;
+			}
+			
+			final int expected = (int) crc.getValue();
+			return new DataInputStream(in).readInt() == expected;
+		} finally {
+			in.close();
+		}
+	}
+	
+	private static DataInputStream open(File file) throws IOException {
+		return new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+	}
+	
+	
+	interface Visitor {
+		void add(long uniqueID, int segment, long offset, byte[] head, int payloadLength) throws IOException;
+		void delete(long uniqueID);
+		void move(long uniqueID, int segment, long offset);
+		
+		/**
+		 * Last known end of {@code segment}, records beyond it were never
+		 * journaled.
+		 */
+		void end(int segment, long end);
+	}
+	
+	private static class Operation {
+		private final long uniqueID;
+		private final byte type;
+		private int payloadLength;
+		private long offset;
+		private int segment;
+		private byte[] head;
+		
+		private Operation(byte type, long uniqueID) {
+			this.uniqueID = uniqueID;
+			this.type = type;
+		}
+	}
+	
+	/**
+	 * Collapses journal entries into the last operation of each bundle,
+	 * keeping the end of every record ever added.
+	 */
+	private class Collector implements Visitor {
+		private final TreeMap<Long, Operation> ops = new TreeMap<Long, Operation>();
+		private final Map<Integer, Long> ends = new HashMap<Integer, Long>();
+		private int count = 0;
+
+		@Override
+		public void add(long uniqueID, int segment, long offset, byte[] head, int payloadLength) {
+			final Operation op = new Operation(OP_ADD, uniqueID);
+			op.payloadLength = payloadLength;
+			op.segment = segment;
+			op.offset = offset;
+			op.head = head;
+			
+			ops.put(uniqueID, op);
+			extend(ends, segment, offset + overhead + head.length + payloadLength);
+			count++;
+		}
+
+		@Override
+		public void delete(long uniqueID) {
+			ops.put(uniqueID, new Operation(OP_DELETE, uniqueID));
+			count++;
+		}
+
+		@Override
+		public void move(long uniqueID, int segment, long offset) {
+			count++;
+			
+			final Operation previous = ops.get(uniqueID);
+			if (previous != null && previous.type == OP_DELETE)
+				return;
+			
+			if (previous != null && previous.type == OP_ADD) {
+				previous.segment = segment;
+				previous.offset = offset;
+				extend(ends, segment, offset + overhead + previous.head.length + previous.payloadLength);
+				return;
+			}
+			
+			final Operation op = new Operation(OP_MOVE, uniqueID);
+			op.segment = segment;
+			op.offset = offset;
+			ops.put(uniqueID, op);
+		}
+
+		@Override
+		public void end(int segment, long end) {
+			extend(ends, segment, end);
+		}
+	}
+}
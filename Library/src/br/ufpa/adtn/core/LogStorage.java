@@ -0,0 +1,1012 @@
+/**
+ * Amazon-DTN - Lightweight Delay Tolerant Networking Implementation
+ * Copyright (C) 2013  Dórian C. Langbeck
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package br.ufpa.adtn.core;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+
+import br.ufpa.adtn.bundle.Bundle;
+import br.ufpa.adtn.bundle.BundleInfo;
+import br.ufpa.adtn.util.BufferPool;
+import br.ufpa.adtn.util.ChainOfSegments;
+import br.ufpa.adtn.util.DataBlock;
+import br.ufpa.adtn.util.GatheringWriter;
+import br.ufpa.adtn.util.GroupCommit;
+import br.ufpa.adtn.util.Logger;
+import br.ufpa.adtn.util.Properties;
+
+/**
+ * Persistent storage model that appends bundles to segment files, so they
+ * survive restarts and are not limited by the heap. Only the bundle
+ * metadata stays in memory, in a {@link BundleTable} whose location column
+ * holds the segment and offset of each record. Bundles are rebuilt from it
+ * when requested, with payloads over the segment files that take no
+ * reference of their own: each record keeps the segment it was written to
+ * open until it is removed, so the bundles handed out before a compaction
+ * moved it still read from there.
+ * 
+ * Each record is laid out as:
+ * <pre>
+ * state (1) | head length (4) | payload length (4) | CRC32 (4) | head | payload
+ * </pre>
+ * where the head holds the primary block and the payload block header, and
+ * the CRC covers the head and the payload length. Removing a bundle only
+ * overwrites its state byte; segments whose removed records exceed
+ * "log-compaction-threshold" have their remaining records copied to the
+ * active segment in background and are deleted afterwards.
+ * 
+ * Every change to the index is also written to a {@link LogJournal}, which
+ * is merged in background into a snapshot of the index every
+ * "log-checkpoint-interval" entries. On recovery the snapshot and journal
+ * are replayed and only what was appended to each segment after its last
+ * journaled record is scanned; without a valid snapshot every segment is
+ * scanned as before.
+ * 
+ * Writes are not forced one by one: a {@link GroupCommit} forces the
+ * segments and the journal written since the last commit at once, so
+ * bursts of bundles share a single sync. {@link #commit()} tells when
+ * they are durable.
+ * 
+ * Properties:
+ * <ul>
+ * <li>storage-directory: where segments are kept (default "storage")</li>
+ * <li>log-segment-size: size after which a new segment is started</li>
+ * <li>log-compaction-threshold: ratio of removed bytes that triggers the
+ * compaction of a segment</li>
+ * <li>log-sync: whether records are forced to the disk</li>
+ * <li>log-commit-delay: milliseconds a write may wait for others to be
+ * forced along with it</li>
+ * <li>log-commit-batch: writes after which they are forced without
+ * waiting any longer</li>
+ * <li>log-checkpoint-interval: journal entries after which a new snapshot
+ * of the index is written</li>
+ * </ul>
+ */
+public class LogStorage extends BundleStorage {
+	private static final Logger LOGGER = new Logger("LogStorage");
+	private static final String SEGMENT_PREFIX = "segment-";
+	private static final String SEGMENT_SUFFIX = ".log";
+	static final int HEADER_LENGTH = 13;
+	private static final int BUFFER_SIZE = 0x10000;
+	private static final int OFFSET_BITS = 40;
+	private static final long OFFSET_MASK = (1L << OFFSET_BITS) - 1;
+	
+	private static final byte STATE_DELETED	= 0x00;
+	private static final byte STATE_LIVE	= 0x01;
+	
+	private final TreeMap<Integer, Segment> segments;
+	private final Set<Segment> dirty;
+	private final Collection<Bundle> roBundles;
+	private final BundleTable table;
+	private final ExecutorService compactor;
+	
+	private float compactionThreshold;
+	private int checkpointInterval;
+	private boolean checkpointing;
+	private GroupCommit commits;
+	private LogJournal journal;
+	private long segmentSize;
+	private File directory;
+	private Segment active;
+	private Segment[] origins;
+	private boolean sync;
+	private Bundle stored;
+	
+	public LogStorage(long capacity) {
+		super(capacity);
+		this.segments = new TreeMap<Integer, Segment>();
+		this.dirty = new HashSet<Segment>();
+		this.table = new BundleTable();
+		this.origins = new Segment[table.getLimit()];
+		this.roBundles = new BundleView();
+		this.compactor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			
+			@Override
+			public Thread newThread(Runnable r) {
+				final Thread t = new Thread(r, "LogStorage-Compactor");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+	
+	@Override
+	protected void onInit(Properties config) {
+		if (config == null)
+			config = new Properties();
+		
+		directory = new File(config.getString("storage-directory", "storage"));
+		segmentSize = config.getLong("log-segment-size", 0x1000000L);
+		compactionThreshold = config.getFloat("log-compaction-threshold", 0.5f);
+		sync = config.getBoolean("log-sync", true);
+		checkpointInterval = config.getInteger("log-checkpoint-interval", 4096);
+		journal = new LogJournal(directory, HEADER_LENGTH);
+		
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new InicializationException("Can not create storage directory " + directory);
+		
+		try {
+			recover();
+			if (sync)
+				journal.force();
+		} catch (IOException e) {
+			throw new InicializationException("Storage recovery failure", e);
+		}
+		
+		if (sync) {
+			commits = new GroupCommit(
+					"LogStorage-Committer",
+					new GroupCommit.Committer() {
+						
+						@Override
+						public void commit() throws IOException {
+							force();
+						}
+					},
+					config.getInteger("log-commit-batch", 64),
+					config.getLong("log-commit-delay", 5L)
+			);
+		}
+	}
+	
+	@Override
+	public synchronized Future<Void> commit() {
+		return commits == null ? GroupCommit.DONE : commits.getPending();
+	}
+
+	@Override
+	public void close() {
+		final GroupCommit commits;
+		synchronized (this) {
+			commits = this.commits;
+		}
+		
+		// Out of the lock, since the last commit takes it
+		if (commits != null)
+			commits.close();
+		
+		/*
+		 * Only the writing side is closed: retiring the segments would
+		 * delete the files of the records kept.
+		 */
+		compactor.shutdown();
+		synchronized (this) {
+			for (Segment segment : segments.values()) {
+				try {
+					segment.rFile.close();
+				} catch (IOException e) { }
+			}
+			
+			journal.close();
+		}
+	}
+
+	@Override
+	public Collection<Bundle> getBundles() {
+		return roBundles;
+	}
+
+	@Override
+	public synchronized Bundle get(long uniqueID) {
+		final int slot = table.find(uniqueID);
+		return slot == BundleTable.NONE ? null : materialize(slot);
+	}
+	
+	@Override
+	public synchronized boolean contains(long uniqueID) {
+		return table.find(uniqueID) != BundleTable.NONE;
+	}
+
+	@Override
+	public Collection<Bundle> getBundlesFor(EID dst) {
+		synchronized (this) {
+			return select(table.findByDestination(dst));
+		}
+	}
+	
+	@Override
+	public Collection<Bundle> getBundlesFrom(EID src) {
+		synchronized (this) {
+			return select(table.findBySource(src));
+		}
+	}
+
+	@Override
+	protected int put(Bundle bundle) {
+		final long uniqueID = bundle.getUniqueID();
+		if (table.find(uniqueID) != BundleTable.NONE)
+			return REASON_DUPLICATED;
+		
+		try {
+			stored = append(bundle);
+			scheduleCheckpoint(false);
+			return REASON_OK;
+		} catch (IOException e) {
+			LOGGER.e(String.format("Bundle %016x could not be written", uniqueID), e);
+			return REASON_UNKNOWN;
+		}
+	}
+	
+	@Override
+	protected Bundle getStored(Bundle bundle) {
+		final Bundle stored = this.stored;
+		this.stored = null;
+		return stored;
+	}
+
+	@Override
+	protected void delete(Bundle bundle) {
+		final int slot = table.find(bundle.getUniqueID());
+		if (slot == BundleTable.NONE)
+			return;
+		
+		final Segment segment = segmentOf(slot);
+		final long length = recordLength(slot);
+		try {
+			journal.delete(bundle.getUniqueID());
+			segment.markDeleted(offsetOf(slot));
+			written(segment);
+		} catch (IOException e) {
+			LOGGER.e(String.format(
+					"Removal of bundle %016x not persisted",
+					bundle.getUniqueID()
+			), e);
+		}
+		
+		unregister(slot);
+		discard(segment, length);
+		scheduleCheckpoint(false);
+	}
+	
+	/**
+	 * Payloads are views over the segments, which are kept open by the
+	 * records themselves until {@link #delete(Bundle)}.
+	 */
+	@Override
+	protected void release(Bundle bundle) { }
+	
+	private Collection<Bundle> select(int[] slots) {
+		final List<Bundle> selected = new ArrayList<Bundle>(slots.length);
+		for (int slot : slots)
+			selected.add(materialize(slot));
+		
+		return selected;
+	}
+	
+	private Bundle materialize(int slot) {
+		try {
+			return Bundle.restore(table.getInfo(slot), segmentOf(slot).shared.view(
+					offsetOf(slot) + HEADER_LENGTH + table.getHeadLength(slot),
+					table.getPayloadLength(slot)
+			));
+		} catch (IOException e) {
+			throw new IllegalStateException(String.format(
+					"Bundle %016x unreadable",
+					table.getUniqueID(slot)
+			), e);
+		}
+	}
+	
+	private int register(Bundle bundle, Segment segment, long offset, int headLength, int payloadLength) {
+		final int slot = table.insert(
+				bundle.getInfo(),
+				headLength,
+				payloadLength,
+				((long) segment.id << OFFSET_BITS) | offset
+		);
+		
+		if (slot >= origins.length)
+			origins = Arrays.copyOf(origins, table.getLimit() * 2);
+		
+		origins[slot] = segment;
+		segment.pins++;
+		return slot;
+	}
+	
+	private void unregister(int slot) {
+		table.remove(slot);
+		origins[slot].unpin();
+		origins[slot] = null;
+	}
+	
+	private Segment segmentOf(int slot) {
+		return segments.get((int) (table.getLocation(slot) >>> OFFSET_BITS));
+	}
+	
+	private long offsetOf(int slot) {
+		return table.getLocation(slot) & OFFSET_MASK;
+	}
+	
+	private long recordLength(int slot) {
+		return HEADER_LENGTH + (long) table.getHeadLength(slot) + table.getPayloadLength(slot);
+	}
+	
+	private Bundle append(Bundle bundle) throws IOException {
+		final ByteBuffer buffer = BufferPool.heap().acquire(BUFFER_SIZE);
+		try {
+			final ChainOfSegments chain = new ChainOfSegments();
+			bundle.serialize(chain, buffer);
+			
+			final ByteBuffer[] data = chain.getSegments();
+			long total = 0;
+			for (int i = 0; i < data.length; i++)
+				total += data[i].remaining();
+			
+			final int plen = bundle.getPayloadLength();
+			final byte[] head = new byte[(int) (total - plen)];
+			gather(data, head);
+			
+			final ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+			header.put(STATE_LIVE);
+			header.putInt(head.length);
+			header.putInt(plen);
+			header.putInt(checksum(head, plen));
+			header.flip();
+			
+			final ByteBuffer[] record = new ByteBuffer[data.length + 1];
+			System.arraycopy(data, 0, record, 1, data.length);
+			record[0] = header;
+			
+			final Segment segment = reserve(HEADER_LENGTH + total);
+			final long offset = segment.size;
+			try {
+				segment.channel.position(offset);
+				new GatheringWriter(record).writeFully(segment.channel);
+				journal.add(bundle.getUniqueID(), segment.id, offset, head, plen);
+			} catch (IOException e) {
+				// Do not leave a partial record behind the next one
+				segment.rFile.setLength(offset);
+				throw e;
+			}
+			
+			segment.size += HEADER_LENGTH + total;
+			segment.live++;
+			written(segment);
+			
+			final Bundle stored = restore(segment, offset, head, plen);
+			register(stored, segment, offset, head.length, plen);
+			return stored;
+		} finally {
+			BufferPool.heap().release(buffer);
+		}
+	}
+	
+	private static Bundle restore(Segment segment, long offset, byte[] head, int plen) throws IOException {
+		final BundleInfo info = BundleInfo.parse(ByteBuffer.wrap(head));
+		return Bundle.restore(info, segment.shared.view(
+				offset + HEADER_LENGTH + head.length,
+				plen
+		));
+	}
+	
+	/**
+	 * Returns the segment to append {@code length} bytes to, starting a new
+	 * one when the active is full.
+	 */
+	private Segment reserve(long length) throws IOException {
+		if (active == null || (active.size > 0 && (active.size + length > segmentSize || active.size + length > OFFSET_MASK))) {
+			final int id = segments.isEmpty() ? 0 : segments.lastKey() + 1;
+			final Segment previous = active;
+			
+			active = new Segment(id, new File(directory, String.format(
+					"%s%08d%s",
+					SEGMENT_PREFIX,
+					id,
+					SEGMENT_SUFFIX
+			)));
+			segments.put(id, active);
+			LOGGER.d(String.format("Segment %s started", active.file.getName()));
+			
+			if (previous != null)
+				check(previous);
+		}
+		
+		return active;
+	}
+	
+	private void discard(Segment segment, long length) {
+		segment.dead += length;
+		segment.live--;
+		
+		if (segment != active)
+			check(segment);
+	}
+	
+	/**
+	 * Retires a sealed segment without records left or schedules its
+	 * compaction once enough of it was removed.
+	 */
+	private void check(final Segment segment) {
+		if (segment.live == 0) {
+			retire(segment);
+		} else if (!segment.compacting && segment.dead >= segment.size * compactionThreshold) {
+			segment.compacting = true;
+			compactor.execute(new Runnable() {
+				
+				@Override
+				public void run() {
+					compact(segment);
+				}
+			});
+		}
+	}
+	
+	private void retire(Segment segment) {
+		if (segments.remove(segment.id) == null)
+			return;
+		
+		LOGGER.d(String.format("Segment %s retired", segment.file.getName()));
+		segment.close();
+	}
+	
+	/**
+	 * Copies the records still alive in {@code segment} to the active one,
+	 * one at a time so writers are held back only for a single record. The
+	 * bundles handed out keep reading from the old file, which is deleted
+	 * once the records written there are removed and the payloads retained
+	 * from it are released.
+	 */
+	private void compact(Segment segment) {
+		final List<Long> records = new ArrayList<Long>();
+		synchronized (this) {
+			if (!segments.containsKey(segment.id))
+				return;
+			
+			for (int slot = 0, limit = table.getLimit(); slot < limit; slot++)
+				if (table.isUsed(slot) && segmentOf(slot) == segment)
+					records.add(table.getUniqueID(slot));
+		}
+		
+		LOGGER.d(String.format(
+				"Compacting %s (%d records, %d of %d bytes removed)",
+				segment.file.getName(),
+				records.size(),
+				segment.dead,
+				segment.size
+		));
+		
+		try {
+			for (long uniqueID : records) {
+				synchronized (this) {
+					final int slot = table.find(uniqueID);
+					if (slot == BundleTable.NONE || segmentOf(slot) != segment)
+						continue;
+					
+					move(slot);
+					scheduleCheckpoint(false);
+				}
+			}
+		} catch (IOException e) {
+			LOGGER.e(String.format("Compaction of %s failed", segment.file.getName()), e);
+		} finally {
+			synchronized (this) {
+				segment.compacting = false;
+				if (segment.live == 0)
+					retire(segment);
+			}
+		}
+	}
+	
+	/**
+	 * Merges the journal into a new snapshot in background once enough
+	 * entries were written to it.
+	 */
+	private void scheduleCheckpoint(boolean force) {
+		if (checkpointing || (!force && journal.getPending() < checkpointInterval))
+			return;
+		
+		try {
+			journal.rotate();
+		} catch (IOException e) {
+			LOGGER.e("Journal rotation failed", e);
+			return;
+		}
+		
+		final Collection<Integer> ids = new ArrayList<Integer>(segments.keySet());
+		checkpointing = true;
+		compactor.execute(new Runnable() {
+			
+			@Override
+			public void run() {
+				try {
+					journal.checkpoint(ids);
+				} catch (IOException e) {
+					LOGGER.e("Index snapshot failed", e);
+				} finally {
+					synchronized (LogStorage.this) {
+						checkpointing = false;
+					}
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Reports a write to {@code segment} and to the journal, to be forced
+	 * by the next commit.
+	 */
+	private void written(Segment segment) {
+		if (commits == null)
+			return;
+		
+		dirty.add(segment);
+		commits.submit();
+	}
+	
+	/**
+	 * Forces the segments written since the last call and then the journal.
+	 * Runs on the commit thread while writers go on.
+	 */
+	private void force() throws IOException {
+		final Segment[] forcing;
+		synchronized (this) {
+			forcing = dirty.toArray(new Segment[dirty.size()]);
+			dirty.clear();
+		}
+		
+		for (Segment segment : forcing) {
+			try {
+				segment.channel.force(false);
+			} catch (ClosedChannelException e) {
+				// Retired meanwhile, nothing left there to keep
+			}
+		}
+		
+		journal.force();
+	}
+	
+	private void move(int slot) throws IOException {
+		final long length = recordLength(slot);
+		final Segment source = segmentOf(slot);
+		final long offset = offsetOf(slot);
+		final Segment target = reserve(length);
+		
+		target.channel.position(target.size);
+		for (long pos = 0; pos < length; ) {
+			final long count = source.channel.transferTo(offset + pos, length - pos, target.channel);
+			if (count <= 0)
+				throw new IOException("Segment truncated");
+			
+			pos += count;
+		}
+		
+		if (sync)
+			target.channel.force(false);
+		
+		/*
+		 * Otherwise the old copy would come back on recovery if the bundle
+		 * is removed later. Should a crash happen before this, both copies
+		 * are alive and the latest one wins.
+		 */
+		source.markDeleted(offset);
+		journal.move(table.getUniqueID(slot), target.id, target.size);
+		written(source);
+		
+		table.setLocation(slot, ((long) target.id << OFFSET_BITS) | target.size);
+		target.size += length;
+		target.live++;
+		
+		source.dead += length;
+		source.live--;
+	}
+	
+	private void recover() throws IOException {
+		final File[] files = directory.listFiles(new FileFilter() {
+			
+			@Override
+			public boolean accept(File file) {
+				final String name = file.getName();
+				return file.isFile() &&
+						name.startsWith(SEGMENT_PREFIX) &&
+						name.endsWith(SEGMENT_SUFFIX);
+			}
+		});
+		
+		if (files != null) {
+			for (File file : files) {
+				final String name = file.getName();
+				try {
+					final int id = Integer.parseInt(name.substring(
+							SEGMENT_PREFIX.length(),
+							name.length() - SEGMENT_SUFFIX.length()
+					));
+					
+					segments.put(id, new Segment(id, file));
+				} catch (NumberFormatException e) {
+					LOGGER.w("Ignoring " + name);
+				}
+			}
+		}
+		
+		final Map<Long, Journaled> records = new HashMap<Long, Journaled>();
+		final Map<Integer, Long> ends = new HashMap<Integer, Long>();
+		final boolean indexed = journal.load(new LogJournal.Visitor() {
+			
+			@Override
+			public void add(long uniqueID, int segment, long offset, byte[] head, int plen) {
+				records.put(uniqueID, new Journaled(segment, offset, head, plen));
+				end(segment, offset + HEADER_LENGTH + head.length + plen);
+			}
+			
+			@Override
+			public void delete(long uniqueID) {
+				records.remove(uniqueID);
+			}
+			
+			@Override
+			public void move(long uniqueID, int segment, long offset) {
+				final Journaled record = records.get(uniqueID);
+				if (record == null)
+					return;
+				
+				record.segment = segment;
+				record.offset = offset;
+				end(segment, offset + HEADER_LENGTH + record.head.length + record.plen);
+			}
+			
+			@Override
+			public void end(int segment, long end) {
+				final Long current = ends.get(segment);
+				if (current == null || current < end)
+					ends.put(segment, end);
+			}
+		});
+		
+		if (!indexed)
+			journal.reset();
+		
+		/*
+		 * Segments shorter than their journaled records lost writes that
+		 * were never forced to the disk, so the journal can not be trusted
+		 * for them.
+		 */
+		for (Segment segment : segments.values()) {
+			final Long end = ends.get(segment.id);
+			if (end != null && end > segment.channel.size()) {
+				LOGGER.w(String.format("%s is behind the journal", segment.file.getName()));
+				ends.remove(segment.id);
+			}
+		}
+		
+		for (Map.Entry<Long, Journaled> entry : records.entrySet()) {
+			final Journaled record = entry.getValue();
+			final Segment segment = segments.get(record.segment);
+			if (segment == null || !ends.containsKey(segment.id))
+				continue;
+			
+			try {
+				register(
+						restore(segment, record.offset, record.head, record.plen),
+						segment,
+						record.offset,
+						record.head.length,
+						record.plen
+				);
+			} catch (ParsingException e) {
+				LOGGER.w(String.format("Unreadable journal record of bundle %016x", entry.getKey()), e);
+			}
+		}
+		
+		journal.open();
+		for (Segment segment : segments.values()) {
+			final Long end = ends.get(segment.id);
+			scan(segment, end == null ? 0 : end);
+		}
+		
+		for (Segment segment : segments.values()) {
+			segment.dead = segment.size;
+			segment.live = 0;
+		}
+		
+		for (int slot = 0, limit = table.getLimit(); slot < limit; slot++) {
+			if (table.isUsed(slot)) {
+				final Segment segment = segmentOf(slot);
+				segment.dead -= recordLength(slot);
+				segment.live++;
+			}
+		}
+		
+		if (!segments.isEmpty())
+			active = segments.lastEntry().getValue();
+		
+		for (Segment segment : new ArrayList<Segment>(segments.values()))
+			if (segment != active)
+				check(segment);
+		
+		LOGGER.i(String.format(
+				"%d bundles recovered from %d segments in %s",
+				table.size(),
+				segments.size(),
+				directory
+		));
+		
+		scheduleCheckpoint(!indexed);
+	}
+	
+	/**
+	 * Reads the records of {@code segment} from {@code pos} on, journaling
+	 * the ones found alive.
+	 */
+	private void scan(Segment segment, long pos) throws IOException {
+		final FileChannel channel = segment.channel;
+		final ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+		final long size = channel.size();
+		
+		while (pos < size) {
+			header.clear();
+			if (!readFully(channel, header, pos))
+				break;
+			
+			header.flip();
+			final byte state = header.get();
+			final int hlen = header.getInt();
+			final int plen = header.getInt();
+			final int crc = header.getInt();
+			
+			if ((state != STATE_LIVE && state != STATE_DELETED) || hlen <= 0 || plen < 0)
+				break;
+			
+			final long length = HEADER_LENGTH + (long) hlen + plen;
+			if (pos + length > size)
+				break;
+			
+			if (state == STATE_DELETED) {
+				pos += length;
+				continue;
+			}
+			
+			final byte[] head = new byte[hlen];
+			if (!readFully(channel, ByteBuffer.wrap(head), pos + HEADER_LENGTH) || checksum(head, plen) != crc)
+				break;
+			
+			final Bundle bundle;
+			try {
+				bundle = restore(segment, pos, head, plen);
+			} catch (ParsingException e) {
+				LOGGER.w(String.format("Unreadable record at %s:%d", segment.file.getName(), pos), e);
+				segment.markDeleted(pos);
+				pos += length;
+				continue;
+			}
+			
+			/*
+			 * A compaction interrupted by a crash leaves two copies of the
+			 * same bundle; the latest one wins.
+			 */
+			final int previous = table.find(bundle.getUniqueID());
+			if (previous != BundleTable.NONE) {
+				segmentOf(previous).markDeleted(offsetOf(previous));
+				unregister(previous);
+			}
+			
+			journal.add(bundle.getUniqueID(), segment.id, pos, head, plen);
+			register(bundle, segment, pos, hlen, plen);
+			pos += length;
+		}
+		
+		if (pos < size) {
+			LOGGER.w(String.format(
+					"Discarding %d bytes of incomplete or corrupted records at the end of %s",
+					size - pos,
+					segment.file.getName()
+			));
+			segment.rFile.setLength(pos);
+		}
+		
+		segment.size = pos;
+	}
+	
+	private static boolean readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			final int count = channel.read(buffer, position);
+			if (count == -1)
+				return false;
+			
+			position += count;
+		}
+		
+		return true;
+	}
+	
+	private static void gather(ByteBuffer[] data, byte[] dst) {
+		int pos = 0;
+		for (int i = 0; i < data.length && pos < dst.length; i++) {
+			final ByteBuffer segment = data[i].duplicate();
+			final int count = Math.min(segment.remaining(), dst.length - pos);
+			segment.get(dst, pos, count);
+			pos += count;
+		}
+	}
+	
+	private static int checksum(byte[] head, int plen) {
+		final CRC32 crc = new CRC32();
+		crc.update(head);
+		crc.update(plen >>> 24);
+		crc.update(plen >>> 16);
+		crc.update(plen >>> 8);
+		crc.update(plen);
+		return (int) crc.getValue();
+	}
+	
+	
+	private static class Journaled {
+		private final byte[] head;
+		private final int plen;
+		private long offset;
+		private int segment;
+		
+		private Journaled(int segment, long offset, byte[] head, int plen) {
+			this.segment = segment;
+			this.offset = offset;
+			this.head = head;
+			this.plen = plen;
+		}
+	}
+	
+	private static class Segment {
+		private final DataBlock.SharedFile shared;
+		private final RandomAccessFile rFile;
+		private final FileChannel channel;
+		private final File file;
+		private final int id;
+		
+		private boolean compacting;
+		private boolean closed;
+		private long size;
+		private long dead;
+		private int live;
+		
+		// Records written here, wherever they were moved to
+		private int pins;
+		
+		private Segment(int id, File file) throws IOException {
+			this.rFile = new RandomAccessFile(file, "rw");
+			this.channel = rFile.getChannel();
+			this.file = file;
+			this.id = id;
+			
+			this.compacting = false;
+			this.closed = false;
+			this.pins = 0;
+			this.size = 0;
+			this.dead = 0;
+			this.live = 0;
+			
+			try {
+				this.shared = DataBlock.SharedFile.open(file, true);
+			} catch (IOException e) {
+				rFile.close();
+				throw e;
+			}
+		}
+		
+		private void markDeleted(long offset) throws IOException {
+			channel.write(ByteBuffer.wrap(new byte[] { STATE_DELETED }), offset);
+		}
+		
+		/**
+		 * Stops writing to this segment. The file itself is deleted once
+		 * the records written here are removed and the payloads still
+		 * reading from it are released.
+		 */
+		private void close() {
+			try {
+				rFile.close();
+			} catch (IOException e) { }
+			
+			closed = true;
+			if (pins == 0)
+				shared.release();
+		}
+		
+		private void unpin() {
+			if (--pins == 0 && closed)
+				shared.release();
+		}
+	}
+	
+	
+	/**
+	 * Bundles rebuilt from the table. Iterators walk the unique IDs stored
+	 * when they were created, skipping the bundles removed since then.
+	 */
+	private class BundleView extends AbstractCollection<Bundle> {
+
+		@Override
+		public Iterator<Bundle> iterator() {
+			final long[] uniqueIDs;
+			synchronized (LogStorage.this) {
+				uniqueIDs = new long[table.size()];
+				for (int slot = 0, i = 0, limit = table.getLimit(); slot < limit; slot++)
+					if (table.isUsed(slot))
+						uniqueIDs[i++] = table.getUniqueID(slot);
+			}
+			
+			return new Iterator<Bundle>() {
+				private int index = 0;
+				private Bundle next = advance();
+				
+				private Bundle advance() {
+					Bundle bundle = null;
+					while (bundle == null && index < uniqueIDs.length)
+						bundle = get(uniqueIDs[index++]);
+					
+					return bundle;
+				}
+
+				@Override
+				public boolean hasNext() {
+					return next != null;
+				}
+
+				@Override
+				public Bundle next() {
+					if (!hasNext())
+						throw new NoSuchElementException();
+					
+					final Bundle bundle = next;
+					next = advance();
+					return bundle;
+				}
+
+				@Override
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+			};
+		}
+
+		@Override
+		public int size() {
+			synchronized (LogStorage.this) {
+				return table.size();
+			}
+		}
+		
+		@Override
+		public boolean contains(Object o) {
+			if (!(o instanceof Bundle))
+				return false;
+			
+			final Bundle bundle = get(((Bundle) o).getUniqueID());
+			return bundle != null && bundle.equals(o);
+		}
+	}
+}
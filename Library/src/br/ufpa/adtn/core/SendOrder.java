@@ -0,0 +1,242 @@
+/**
+ * Amazon-DTN - Lightweight Delay Tolerant Networking Implementation
+ * Copyright (C) 2013  Dórian C. Langbeck
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package br.ufpa.adtn.core;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import br.ufpa.adtn.bundle.Bundle;
+import br.ufpa.adtn.bundle.BundleInfo;
+import br.ufpa.adtn.util.Properties;
+
+/**
+ * Decides which bundles waiting for a next hop are sent first, so a short
+ * contact carries the ones that matter most. Each order gives bundles a
+ * key, the lowest keys being sent first, so queues can be kept sorted from
+ * the keys alone. Bundles with the same key are sent oldest first, which
+ * makes every order total.
+ */
+public abstract class SendOrder implements Comparator<Bundle> {
+	private static final Map<String, Class<? extends SendOrder>> ORDERS;
+	
+	static {
+		ORDERS = new HashMap<String, Class<? extends SendOrder>>();
+		registerOrder("oldest-first", OldestFirst.class);
+		registerOrder("earliest-expiry", EarliestExpiry.class);
+		registerOrder("smallest-first", SmallestFirst.class);
+		registerOrder("priority", Priority.class);
+		registerOrder("utility", RouterUtility.class);
+	}
+	
+	public synchronized static Collection<String> getOrders() {
+		return Collections.unmodifiableCollection(ORDERS.keySet());
+	}
+	
+	public synchronized static boolean hasOrderRegistered(String order) {
+		return ORDERS.containsKey(order);
+	}
+	
+	public synchronized static void registerOrder(String order, Class<? extends SendOrder> oClass) throws IllegalArgumentException {
+		if (ORDERS.containsKey(order))
+			throw new IllegalArgumentException("Order already registered");
+		
+		try {
+			oClass.getConstructor();
+		} catch (NoSuchMethodException e) {
+			throw new IllegalArgumentException("Order does not have a default constructor", e);
+		} catch (SecurityException e) {
+			throw new IllegalArgumentException("Default constructor is not accessible", e);
+		}
+		
+		ORDERS.put(order, oClass);
+	}
+	
+	public synchronized static SendOrder createOrder(String order, Properties config) throws IllegalArgumentException {
+		final Class<? extends SendOrder> oClass = ORDERS.get(order);
+		if (oClass == null)
+			throw new IllegalArgumentException("Invalid order");
+		
+		try {
+			final SendOrder instance = oClass.getConstructor().newInstance();
+			instance.onInit(config);
+			return instance;
+		} catch (NoSuchMethodException e) {
+			throw new InicializationException("Order instantiation failure", e);
+		} catch (InvocationTargetException e) {
+			throw new InicializationException("Order instantiation failure", e);
+		} catch (InstantiationException e) {
+			throw new InicializationException("Order instantiation failure", e);
+		} catch (IllegalAccessException e) {
+			throw new InicializationException("Order instantiation failure", e);
+		}
+	}
+	
+	
+	@Override
+	public final int compare(Bundle b1, Bundle b2) {
+		final int r = compare(key(b1), key(b2));
+		return r != 0 ? r : BundleStorage.CREATION_ORDER.compare(b1, b2);
+	}
+	
+	/**
+	 * Whether the key of a bundle can change while it waits, as when it
+	 * depends on the routers' opinion. Such orders can not keep bundles
+	 * sorted as they are queued, so they are applied each time the queued
+	 * bundles are taken.
+	 */
+	public boolean isDynamic() {
+		return false;
+	}
+	
+	/**
+	 * Sorts {@code bundles} in this order.
+	 */
+	public void sort(List<Bundle> bundles) {
+		Collections.sort(bundles, this);
+	}
+	
+	protected void onInit(Properties config) { }
+	
+	/**
+	 * Key of {@code bundle} in this order. It must not change while the
+	 * bundle waits, unless the order is {@link #isDynamic() dynamic}.
+	 */
+	public abstract long key(Bundle bundle);
+	
+	protected static int compare(long v1, long v2) {
+		return v1 < v2 ? -1 : (v1 == v2 ? 0 : 1);
+	}
+	
+	
+	/**
+	 * Sends bundles in the order they were created. This is the default
+	 * order.
+	 */
+	public static class OldestFirst extends SendOrder {
+
+		@Override
+		public long key(Bundle bundle) {
+			return 0;
+		}
+	}
+	
+	/**
+	 * Sends first the bundles about to expire, before they are useless.
+	 */
+	public static class EarliestExpiry extends SendOrder {
+
+		@Override
+		public long key(Bundle bundle) {
+			return bundle.getInfo().getExpirationTime();
+		}
+	}
+	
+	/**
+	 * Sends first the smallest payloads, so more bundles get through a
+	 * short contact.
+	 */
+	public static class SmallestFirst extends SendOrder {
+
+		@Override
+		public long key(Bundle bundle) {
+			return bundle.getPayloadLength();
+		}
+	}
+	
+	/**
+	 * Sends first the bundles of the highest class of service asked by the
+	 * applications, the ones expiring earlier first within a class.
+	 */
+	public static class Priority extends SendOrder {
+
+		private static final long EXPIRATION_MASK = (1L << 56) - 1;
+
+		/**
+		 * The inverted class of service in the high byte, the expiration
+		 * time in the others.
+		 */
+		@Override
+		public long key(Bundle bundle) {
+			final BundleInfo info = bundle.getInfo();
+			final long expiration = Math.min(info.getExpirationTime(), EXPIRATION_MASK);
+			return ((long) (3 - info.getPriority()) << 56) | expiration;
+		}
+	}
+	
+	/**
+	 * Sends first the bundles the routers are more likely to deliver, as
+	 * told by {@link BundleRouter#getBundleUtility(Bundle)}.
+	 */
+	public static class RouterUtility extends SendOrder {
+		
+		@Override
+		public boolean isDynamic() {
+			return true;
+		}
+
+		/**
+		 * Utilities are taken once, as they can change while the bundles
+		 * are being sorted and break the order.
+		 */
+		@Override
+		public void sort(List<Bundle> bundles) {
+			final Candidate[] candidates = new Candidate[bundles.size()];
+			for (int i = 0; i < candidates.length; i++) {
+				final Bundle bundle = bundles.get(i);
+				candidates[i] = new Candidate(bundle, BPAgent.getBundleUtility(bundle));
+			}
+			
+			Arrays.sort(candidates);
+			for (int i = 0; i < candidates.length; i++)
+				bundles.set(i, candidates[i].bundle);
+		}
+
+		/**
+		 * The bits of the negated utility, flipped so they compare as
+		 * signed integers the way the floats do.
+		 */
+		@Override
+		public long key(Bundle bundle) {
+			final int bits = Float.floatToIntBits(-BPAgent.getBundleUtility(bundle));
+			return bits ^ ((bits >> 31) & 0x7fffffff);
+		}
+		
+		
+		private static final class Candidate implements Comparable<Candidate> {
+			private final Bundle bundle;
+			private final float utility;
+			
+			public Candidate(Bundle bundle, float utility) {
+				this.bundle = bundle;
+				this.utility = utility;
+			}
+			
+			@Override
+			public int compareTo(Candidate other) {
+				final int r = Float.compare(other.utility, utility);
+				return r != 0 ? r : BundleStorage.CREATION_ORDER.compare(bundle, other.bundle);
+			}
+		}
+	}
+}
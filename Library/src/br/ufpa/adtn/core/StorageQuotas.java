@@ -0,0 +1,255 @@
+/**
+ * Amazon-DTN - Lightweight Delay Tolerant Networking Implementation
+ * Copyright (C) 2013  Dórian C. Langbeck
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package br.ufpa.adtn.core;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+
+import br.ufpa.adtn.bundle.Bundle;
+import br.ufpa.adtn.bundle.BundleInfo;
+import br.ufpa.adtn.util.Properties;
+
+/**
+ * Storage usage by source, by destination and by registration (the scheme
+ * of the destination, e.g. the meta bundles of a router), each one limited
+ * to a share of the capacity. When the storage is full, the flows of one
+ * of these kinds share it with max-min fairness: a flow using more than
+ * its fair share loses room before the others, and can not take more.
+ * Usage counts the payload length of each bundle, shared or not.
+ * 
+ * Properties:
+ * <ul>
+ * <li>storage-quota-source: share of the capacity a single source may use
+ * (default 1)</li>
+ * <li>storage-quota-destination: same, for a single destination</li>
+ * <li>storage-quota-registration: same, for a single registration</li>
+ * <li>storage-quota-registration-&lt;name&gt;: same, for the registration
+ * named &lt;name&gt;</li>
+ * <li>storage-fair-share: kind of flow the full storage is shared among:
+ * "source", "destination" (default), "registration" or "none"</li>
+ * </ul>
+ */
+public final class StorageQuotas {
+	
+	public static enum Kind {
+		SOURCE("source") {
+			
+			@Override
+			Object keyOf(BundleInfo info) {
+				return info.getSource();
+			}
+		},
+		
+		DESTINATION("destination") {
+			
+			@Override
+			Object keyOf(BundleInfo info) {
+				return info.getDestination();
+			}
+		},
+		
+		REGISTRATION("registration") {
+			
+			@Override
+			Object keyOf(BundleInfo info) {
+				return info.getDestination().getScheme();
+			}
+		};
+		
+		private final String name;
+		
+		private Kind(String name) {
+			this.name = name;
+		}
+		
+		public String getName() {
+			return name;
+		}
+		
+		abstract Object keyOf(BundleInfo info);
+	}
+	
+	
+	private final Map<Kind, Map<Object, Long>> usage;
+	private final Map<Kind, Float> limits;
+	private final Map<Object, Float> registrations;
+	private final Properties config;
+	private final long capacity;
+	private final Kind fairness;
+	
+	StorageQuotas(long capacity, Properties config) {
+		if (config == null)
+			config = new Properties();
+		
+		this.usage = new EnumMap<Kind, Map<Object, Long>>(Kind.class);
+		this.limits = new EnumMap<Kind, Float>(Kind.class);
+		this.registrations = new HashMap<Object, Float>();
+		this.capacity = capacity;
+		this.config = config;
+		
+		for (Kind kind : Kind.values()) {
+			usage.put(kind, new HashMap<Object, Long>());
+			limits.put(kind, config.getFloat("storage-quota-" + kind.getName(), 1f));
+		}
+		
+		final String fair = config.getString("storage-fair-share", Kind.DESTINATION.getName());
+		Kind fairness = null;
+		for (Kind kind : Kind.values())
+			if (kind.getName().equals(fair))
+				fairness = kind;
+		
+		if (fairness == null && !fair.equals("none"))
+			throw new InicializationException("Invalid storage-fair-share: " + fair);
+		
+		this.fairness = fairness;
+	}
+	
+	/**
+	 * Returns the kind of flow the full storage is shared among, or
+	 * {@code null} if it is not shared fairly.
+	 */
+	public Kind getFairness() {
+		return fairness;
+	}
+	
+	/**
+	 * Bytes used by the bundles of class {@code key} of {@code kind}.
+	 */
+	public synchronized long getUsage(Kind kind, Object key) {
+		final Long used = usage.get(kind).get(key);
+		return used == null ? 0 : used;
+	}
+	
+	/**
+	 * Bytes used by each class of {@code kind} with bundles stored.
+	 */
+	public synchronized Map<Object, Long> getUsage(Kind kind) {
+		return new HashMap<Object, Long>(usage.get(kind));
+	}
+	
+	/**
+	 * Bytes the bundles of class {@code key} of {@code kind} may use, or
+	 * {@link Long#MAX_VALUE} if they are not limited.
+	 */
+	public synchronized long getLimit(Kind kind, Object key) {
+		Float limit = null;
+		if (kind == Kind.REGISTRATION) {
+			limit = registrations.get(key);
+			if (limit == null) {
+				limit = config.getFloat("storage-quota-registration-" + key, limits.get(kind));
+				registrations.put(key, limit);
+			}
+		} else {
+			limit = limits.get(kind);
+		}
+		
+		// The whole capacity is no quota at all, whatever is shared
+		return limit >= 1f ? Long.MAX_VALUE : (long) (capacity * limit);
+	}
+	
+	/**
+	 * Whether {@code bundle} fits in the quotas of its classes.
+	 */
+	public synchronized boolean admits(Bundle bundle) {
+		final BundleInfo info = bundle.getInfo();
+		final int length = bundle.getPayloadLength();
+		for (Kind kind : Kind.values()) {
+			final Object key = kind.keyOf(info);
+			if (getUsage(kind, key) + length > getLimit(kind, key))
+				return false;
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Max-min fair share of the capacity among the flows stored and the
+	 * flow of {@code incoming}, with {@code incoming} stored. It is
+	 * {@link Long#MAX_VALUE} while every flow fits, or there is no
+	 * fairness.
+	 */
+	public synchronized long getFairShare(Bundle incoming) {
+		if (fairness == null)
+			return Long.MAX_VALUE;
+		
+		final Map<Object, Long> flows = usage.get(fairness);
+		final Object iKey = fairness.keyOf(incoming.getInfo());
+		final long[] demands = new long[flows.size() + (flows.containsKey(iKey) ? 0 : 1)];
+		int i = 0;
+		for (Map.Entry<Object, Long> flow : flows.entrySet()) {
+			demands[i] = flow.getValue();
+			if (flow.getKey().equals(iKey))
+				demands[i] += incoming.getPayloadLength();
+			
+			i++;
+		}
+		
+		if (i < demands.length)
+			demands[i] = incoming.getPayloadLength();
+		
+		// Flows below the water level keep what they use
+		Arrays.sort(demands);
+		long left = capacity;
+		for (int j = 0, n = demands.length; j < demands.length; j++, n--) {
+			final long level = left / n;
+			if (demands[j] > level)
+				return level;
+			
+			left -= demands[j];
+		}
+		
+		return Long.MAX_VALUE;
+	}
+	
+	/**
+	 * Key of the flow {@code bundle} belongs to for fairness purposes.
+	 */
+	Object flowOf(Bundle bundle) {
+		return fairness == null ? null : fairness.keyOf(bundle.getInfo());
+	}
+	
+	synchronized void add(Bundle bundle) {
+		final BundleInfo info = bundle.getInfo();
+		final int length = bundle.getPayloadLength();
+		for (Kind kind : Kind.values()) {
+			final Map<Object, Long> classes = usage.get(kind);
+			final Object key = kind.keyOf(info);
+			final Long used = classes.get(key);
+			classes.put(key, used == null ? length : used + length);
+		}
+	}
+	
+	synchronized void remove(Bundle bundle) {
+		final BundleInfo info = bundle.getInfo();
+		final int length = bundle.getPayloadLength();
+		for (Kind kind : Kind.values()) {
+			final Map<Object, Long> classes = usage.get(kind);
+			final Object key = kind.keyOf(info);
+			final Long used = classes.get(key);
+			if (used == null)
+				continue;
+			
+			if (used - length > 0)
+				classes.put(key, used - length);
+			else
+				classes.remove(key);
+		}
+	}
+}
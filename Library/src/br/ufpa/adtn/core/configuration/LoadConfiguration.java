@@ -96,6 +96,50 @@ public class LoadConfiguration {
 		return config.getLong("storage-size", 0x200000L);
 	}
 	
+	/**
+	 * Policy used to make room for new bundles when the storage is full.
+	 */
+	public String getDropPolicy() {
+		return config.getString("drop-policy", "drop-tail");
+	}
+	
+	/**
+	 * Order in which bundles waiting for a next hop are sent to it.
+	 */
+	public String getSendOrder() {
+		return config.getString("send-order", "oldest-first");
+	}
+	
+	/**
+	 * Maximum payload length of locally stored bundles. Larger bundles are
+	 * split in fragments when added. Zero (default) disables it.
+	 */
+	public int getFragmentSize() {
+		return config.getInteger("fragment-size", 0);
+	}
+	
+	/**
+	 * Received payloads longer than this are spooled to disk.
+	 */
+	public int getSpoolThreshold() {
+		return config.getInteger("spool-threshold", 0x40000);
+	}
+	
+	/**
+	 * Directory of spooled payloads. When not defined the default temporary
+	 * directory is used.
+	 */
+	public String getSpoolDirectory() {
+		return config.getString("spool-directory");
+	}
+	
+	/**
+	 * Tracks pooled buffers to report the ones never released. Debug only.
+	 */
+	public boolean isBufferLeakDetectionEnabled() {
+		return config.getBoolean("buffer-leak-detection", false);
+	}
+	
 	public void setHostname(String hostname) {
 		checkLock();
 		
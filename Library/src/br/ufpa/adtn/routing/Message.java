@@ -219,13 +219,8 @@ public class Message<T extends TLV> implements SerializableFixedObject {
 		buffer.putShort(subMessage);
 		
 		synchronized (tlvList) {
-			//Fixed-length fields
-			int tlen = length;
-			int llen = SDNV.length(tlen);
-			if (SDNV.length(tlen += llen) != llen)
-				tlen++;
-			
-			SDNV.encodeInt(buffer, tlen);
+			final int limit = buffer.limit();
+			SDNV.encodeInt(buffer, encodedLength());
 			
 			/*
 			 * Serialize all TLVs in this message with limited slices of the
@@ -242,19 +237,30 @@ public class Message<T extends TLV> implements SerializableFixedObject {
 				spos += len;
 			}
 			
+			buffer.limit(limit);
 			buffer.position(spos);
-			buffer.limit(spos);
 		}
 	}
 
+	/**
+	 * Returns the exact number of bytes written by {@link #serialize(ByteBuffer)},
+	 * so messages can be serialized in place into a larger buffer.
+	 */
 	@Override
 	public int getLength() {
+		synchronized (tlvList) {
+			// The encoded length counts one byte more than the fixed header has
+			return length - 1 + SDNV.length(encodedLength());
+		}
+	}
+	
+	private int encodedLength() {
+		//Fixed-length fields
 		int tlen = length;
-		int llen = SDNV.length(tlen);
-		tlen += llen;
-		if (SDNV.length(tlen + llen) != llen)
+		final int llen = SDNV.length(tlen);
+		if (SDNV.length(tlen += llen) != llen)
 			tlen++;
 		
-		return length;
+		return tlen;
 	}
 }
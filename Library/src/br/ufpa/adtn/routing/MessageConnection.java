@@ -17,13 +17,12 @@
  */
 package br.ufpa.adtn.routing;
 
-import java.util.HashMap;
-import java.util.Map;
 import java.util.Random;
 
 import br.ufpa.adtn.core.EID;
 import br.ufpa.adtn.core.LinkConnection;
 import br.ufpa.adtn.util.Logger;
+import br.ufpa.adtn.util.collections.IntObjectMap;
 
 public abstract class MessageConnection<LConn extends LinkConnection<?, ?>, T extends TLV, C extends MessageConnection<LConn, T, C>> implements ResponseListener<T> {
 	private static final Logger LOGGER = new Logger("MessageConnection");
@@ -46,12 +45,12 @@ public abstract class MessageConnection<LConn extends LinkConnection<?, ?>, T ex
 		private static final Logger LOGGER = new Logger(MessageConnection.LOGGER, "Provider");
 
 		private final Connector<LConn, T, C> connector;
-		private final Map<Short, C> receivers;
+		private final IntObjectMap<C> receivers;
 		private final LConn connection;
 		private final Random random;
 		
 		public Provider(Connector<LConn, T, C> connector, LConn connection) {
-			this.receivers = new HashMap<Short, C>();
+			this.receivers = new IntObjectMap<C>();
 			this.connection = connection;
 			this.connector = connector;
 			this.random = new Random();
@@ -118,14 +117,14 @@ public abstract class MessageConnection<LConn extends LinkConnection<?, ?>, T ex
 	}
 	
 
-	private final Map<Integer, ResponseListener<T>> listeners;
+	private final IntObjectMap<ResponseListener<T>> listeners;
 	private Connector<LConn, T, C> connector;
 	private LConn connection;
 	private short receiver;
 	private short sender;
 	
 	protected MessageConnection() {
-		this.listeners = new HashMap<Integer, ResponseListener<T>>();
+		this.listeners = new IntObjectMap<ResponseListener<T>>();
 	}
 
 	private void delivery(Message<T> message) {
@@ -54,6 +54,9 @@ public abstract class MessageLinkConnection<MLC extends MessageLinkConnection<ML
 			));
 		} catch (IOException e) {
 			throw new ParsingException(e);
+		} finally {
+			// Meta bundles are consumed here and never reach the storage
+			bundle.getPayload().release();
 		}
 	}
 	
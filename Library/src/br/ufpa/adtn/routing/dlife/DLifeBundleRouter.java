@@ -87,6 +87,18 @@ public final class DLifeBundleRouter extends BundleRouter<DLifeBundleRouter, DLi
 		return crcHelper.update(conn.getEndpointID().toString());
 	}
 	
+	/**
+	 * TECD weight of the bundle destination.
+	 */
+	@Override
+	public float getBundleUtility(Bundle bundle) {
+		final SocialInformation sInfo = this.sInfo;
+		if (sInfo == null)
+			return Float.NaN;
+		
+		return sInfo.getWeight(bundle.getDestination().withScheme(getRegistration()));
+	}
+	
 	@Override
 	protected DLifeLinkConnection createConnection(Link link) {
 		return new DLifeLinkConnection(sInfo);
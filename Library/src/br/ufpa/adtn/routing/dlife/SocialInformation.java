@@ -18,13 +18,12 @@
 package br.ufpa.adtn.routing.dlife;
 
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Map;
 
 import br.ufpa.adtn.core.EID;
 import br.ufpa.adtn.core.SystemClock;
 import br.ufpa.adtn.util.Logger;
+import br.ufpa.adtn.util.collections.IntObjectMap;
 
 /**
  * 
@@ -50,8 +49,11 @@ public class SocialInformation {
 	 * 
 	 * PS: All Neighbor's instances present in a Sample
 	 * must be present here too.
+	 * 
+	 * Keyed by {@link EID#getId()} and guarded by itself, since
+	 * {@link #getWeight(EID)} comes from other threads.
 	 */
-	private final Map<EID, Neighbor> gNeighbors;
+	private final IntObjectMap<Neighbor> gNeighbors;
 	
 	/**
 	 * Storage for all DS of a cycle.
@@ -94,7 +96,7 @@ public class SocialInformation {
     	if (dslen < 2)
     		throw new IllegalArgumentException("DS length must be greater than 2");
     	
-    	this.gNeighbors = new HashMap<EID, Neighbor>();
+    	this.gNeighbors = new IntObjectMap<Neighbor>();
     	this.ds = new Sample[dslen];
     	this.dFactor = dFactor;
     	this.dsdur = dsdur;
@@ -198,13 +200,15 @@ public class SocialInformation {
     }
     
     private Neighbor lookupByNeighbor(EID eid) {
-    	Neighbor neighbor = gNeighbors.get(eid);
-    	if (neighbor == null) {
-    		neighbor = new Neighbor(eid);
-        	gNeighbors.put(eid, neighbor);
+    	synchronized (gNeighbors) {
+	    	Neighbor neighbor = gNeighbors.get(eid.getId());
+	    	if (neighbor == null) {
+	    		neighbor = new Neighbor(eid);
+	        	gNeighbors.put(eid.getId(), neighbor);
+	    	}
+	    	
+	    	return neighbor;
     	}
-    	
-    	return neighbor;
     }
     
     
@@ -313,7 +317,11 @@ public class SocialInformation {
         }
         
         public float getNeighborTECD(EID eid) {
-        	final Neighbor neighbor = gNeighbors.get(eid);
+        	final Neighbor neighbor;
+        	synchronized (gNeighbors) {
+        		neighbor = gNeighbors.get(eid.getId());
+        	}
+        	
         	if (neighbor == null)
         		return Float.NaN;
         	
@@ -20,6 +20,7 @@ package br.ufpa.adtn.routing.prophet;
 import java.util.Collection;
 import java.util.HashSet;
 
+import br.ufpa.adtn.bundle.Bundle;
 import br.ufpa.adtn.core.BundleRouter;
 import br.ufpa.adtn.core.Link;
 import br.ufpa.adtn.routing.prophet.ProphetUtil.BundleSpec;
@@ -76,6 +77,15 @@ public class ProphetBundleRouter extends BundleRouter<ProphetBundleRouter, Proph
 		return crcHelper.update(conn.getEndpointID().toString());
 	}
 
+	@Override
+	public float getBundleUtility(Bundle bundle) {
+		final ProphetDataRouting dataR = this.dataR;
+		if (dataR == null)
+			return Float.NaN;
+		
+		return dataR.peekPredict(bundle.getDestination().withScheme(getRegistration()));
+	}
+
 	@Override
 	protected ProphetLinkConnection createConnection(Link link) {
 		return new ProphetLinkConnection(dataR);
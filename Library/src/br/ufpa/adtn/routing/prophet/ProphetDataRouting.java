@@ -17,12 +17,10 @@
  */
 package br.ufpa.adtn.routing.prophet;
 
-import java.util.HashMap;
-import java.util.Map;
-
 import br.ufpa.adtn.core.EID;
 import br.ufpa.adtn.core.SystemClock;
 import br.ufpa.adtn.util.Logger;
+import br.ufpa.adtn.util.collections.IntObjectMap;
 
 /**
  * This class concentrates the logic of the calculations of the protocol, with 
@@ -46,33 +44,53 @@ public class ProphetDataRouting {
 	
 	private static final float K = 24 * 3600 * 1000; // 24 h * min * sec * millis
 	
-	private Map<EID, Neighbor> neighbors;
+	/**
+	 * Neighbors by {@link EID#getId()}. Guarded by itself, since
+	 * {@link #peekPredict(EID)} comes from other threads.
+	 */
+	private final IntObjectMap<Neighbor> neighbors;
 	
 	public ProphetDataRouting() {
-		this.neighbors = new HashMap<EID, Neighbor>();
+		this.neighbors = new IntObjectMap<Neighbor>();
 	}
 	
 	public NeighborPredict[] getNeighborsPredicts() {
-		final int len = neighbors.size();
-		final NeighborPredict[] preds = new NeighborPredict[len];
-		if (len == 0)
-			LOGGER.d("WARNING!!! NEIGHBORS IS EMPTY!!!");
-		else
-			LOGGER.d("WARNING!!! NEIGHBORS HAS VALUES!!!");
+		synchronized (neighbors) {
+			final int len = neighbors.size();
+			final NeighborPredict[] preds = new NeighborPredict[len];
+			if (len == 0)
+				LOGGER.d("WARNING!!! NEIGHBORS IS EMPTY!!!");
+			else
+				LOGGER.d("WARNING!!! NEIGHBORS HAS VALUES!!!");
+				
+			int i = 0;
+			for (int slot = neighbors.next(-1); slot != -1; slot = neighbors.next(slot)) {
+				final Neighbor n = neighbors.valueAt(slot);
+				preds[i] = new NeighborPredict(n.eid, n.p_value);
+				i++;
+			}
 			
-		int i = 0;
-		for (Neighbor n : neighbors.values()){
-			preds[i] = new NeighborPredict(n.eid, n.p_value);
-			i++;
+			return preds;
 		}
-		
-		return preds;
 	}
 	
 	public float getPredict(EID eid) {
 		return lookupByNeighbor(eid).p_value;
 	}
 	
+	/**
+	 * Same as {@link #getPredict(EID)}, but unknown neighbors are not added
+	 * and have predictability 0. Safe to be called from any thread.
+	 */
+	public float peekPredict(EID eid) {
+		final Neighbor neighbor;
+		synchronized (neighbors) {
+			neighbor = neighbors.get(eid.getId());
+		}
+		
+		return neighbor == null ? 0 : neighbor.p_value;
+	}
+	
 	public void updatePredict(EID eid) {
 		final Neighbor n = lookupByNeighbor(eid);
 		n.p_encounterCalc();
@@ -83,12 +101,14 @@ public class ProphetDataRouting {
 	}
 	
 	private Neighbor lookupByNeighbor(EID eid) {
-		Neighbor neighbor = neighbors.get(eid);
-		if (neighbor == null){
-			neighbor = new Neighbor(eid);
-			neighbors.put(eid, neighbor);
+		synchronized (neighbors) {
+			Neighbor neighbor = neighbors.get(eid.getId());
+			if (neighbor == null){
+				neighbor = new Neighbor(eid);
+				neighbors.put(eid.getId(), neighbor);
+			}
+			return neighbor;
 		}
-		return neighbor;
 	}
 	
 	private class Neighbor {
@@ -0,0 +1,549 @@
+/**
+ * Amazon-DTN - Lightweight Delay Tolerant Networking Implementation
+ * Copyright (C) 2013  Dórian C. Langbeck
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package br.ufpa.adtn.storage.sqlite;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Future;
+
+import org.tmatesoft.sqljet.core.SqlJetException;
+import org.tmatesoft.sqljet.core.SqlJetTransactionMode;
+import org.tmatesoft.sqljet.core.schema.SqlJetConflictAction;
+import org.tmatesoft.sqljet.core.table.ISqlJetCursor;
+import org.tmatesoft.sqljet.core.table.ISqlJetTable;
+import org.tmatesoft.sqljet.core.table.SqlJetDb;
+
+import br.ufpa.adtn.bundle.Bundle;
+import br.ufpa.adtn.bundle.BundleInfo;
+import br.ufpa.adtn.core.BundleStorage;
+import br.ufpa.adtn.core.EID;
+import br.ufpa.adtn.core.InicializationException;
+import br.ufpa.adtn.core.SystemClock;
+import br.ufpa.adtn.storage.StorageException;
+import br.ufpa.adtn.util.BufferPool;
+import br.ufpa.adtn.util.ChainOfSegments;
+import br.ufpa.adtn.util.DataBlock;
+import br.ufpa.adtn.util.GroupCommit;
+import br.ufpa.adtn.util.Logger;
+import br.ufpa.adtn.util.Properties;
+import br.ufpa.adtn.util.collections.LongObjectMap;
+
+/**
+ * Storage model, registered as "sqlite", that keeps bundle metadata in a
+ * sqljet database indexed by destination, source and expiration, and each
+ * payload in a file of its own. Lookups by destination or source use the
+ * indexes instead of scanning every stored bundle. The primary blocks are
+ * parsed once, when stored or recovered, and kept by unique ID, so queries
+ * and iteration never decode rows again.
+ * 
+ * Inserts and deletes are queued and committed together in a single
+ * transaction once "sqlite-batch-size" operations are pending or
+ * "sqlite-flush-interval" milliseconds after the first of them, by a
+ * {@link GroupCommit}. Queries add the queued inserts to the committed rows
+ * themselves. Payload files are written right away, synced just before
+ * their rows are committed and deleted when the last holder of a removed
+ * bundle releases its payload. On startup, expired bundles, rows whose
+ * payload is missing or shorter than recorded and payloads without a row
+ * (left by a crash) are removed.
+ */
+public class SQLiteBundleStorage extends BundleStorage {
+	private static final Logger LOGGER = new Logger("SQLiteBundleStorage");
+	private static final String TABLE = "bundles";
+	private static final String ID_INDEX = "bundles_id";
+	private static final String DESTINATION_INDEX = "bundles_destination";
+	private static final String SOURCE_INDEX = "bundles_source";
+	private static final String EXPIRATION_INDEX = "bundles_expiration";
+	private static final String PAYLOAD_SUFFIX = ".payload";
+	private static final int BUFFER_SIZE = 0x10000;
+	
+	private final Collection<Bundle> roBundles;
+	private final LongObjectMap<Bundle> bundles;
+	private final List<FileOutputStream> unsynced;
+	private final List<Object> pending;
+	
+	private GroupCommit commits;
+	private File payloads;
+	private Bundle stored;
+	private SqlJetDb db;
+	
+	public SQLiteBundleStorage(long capacity) {
+		super(capacity);
+		this.unsynced = new ArrayList<FileOutputStream>();
+		this.pending = new ArrayList<Object>();
+		this.roBundles = new BundleView();
+		this.bundles = new LongObjectMap<Bundle>();
+	}
+	
+	@Override
+	protected void onInit(Properties config) {
+		if (config == null)
+			config = new Properties();
+		
+		final File directory = new File(config.getString("storage-directory", "storage"));
+		payloads = new File(directory, "payloads");
+		if (!payloads.isDirectory() && !payloads.mkdirs())
+			throw new InicializationException("Can not create storage directory " + payloads);
+		
+		final int batchSize = config.getInteger("sqlite-batch-size", 64);
+		final long interval = config.getLong("sqlite-flush-interval", 1000L);
+		
+		try {
+			db = SqlJetDb.open(new File(directory, "bundles.db"), true);
+			createSchema();
+			recover();
+		} catch (SqlJetException e) {
+			throw new InicializationException("Storage database failure", e);
+		}
+		
+		commits = new GroupCommit(
+				"SQLiteBundleStorage-Committer",
+				new GroupCommit.Committer() {
+					
+					@Override
+					public void commit() throws IOException {
+						synchronized (SQLiteBundleStorage.this) {
+							if (!flush())
+								throw new IOException("Pending operations not committed");
+						}
+					}
+				},
+				batchSize,
+				interval
+		);
+	}
+	
+	@Override
+	public Collection<Bundle> getBundles() {
+		return roBundles;
+	}
+	
+	@Override
+	public synchronized Bundle get(long uniqueID) {
+		return bundles.get(uniqueID);
+	}
+	
+	@Override
+	public synchronized Collection<Bundle> getBundlesFor(EID dst) {
+		return query(DESTINATION_INDEX, dst.toString());
+	}
+	
+	@Override
+	public synchronized Collection<Bundle> getBundlesFrom(EID src) {
+		return query(SOURCE_INDEX, src.toString());
+	}
+
+	@Override
+	protected int put(Bundle bundle) {
+		final long id = bundle.getUniqueID();
+		if (bundles.containsKey(id))
+			return REASON_DUPLICATED;
+		
+		final BundleInfo info = bundle.getInfo();
+		final int plen = bundle.getPayloadLength();
+		final File file = payloadFile(id);
+		try {
+			unsynced.add(writePayload(bundle.getPayload(), file));
+			
+			final byte[] head = encode(info);
+			pending.add(new Object[] {
+					id,
+					info.getDestination().toString(),
+					info.getSource().toString(),
+					info.getExpirationTime(),
+					(long) plen,
+					head
+			});
+			
+			stored = Bundle.restore(info.copy(), DataBlock.shared(file, plen));
+			bundles.put(id, stored);
+		} catch (IOException e) {
+			LOGGER.e(String.format("Bundle %016x could not be written", id), e);
+			file.delete();
+			return REASON_UNKNOWN;
+		}
+		
+		commits.submit();
+		return REASON_OK;
+	}
+	
+	@Override
+	protected Bundle getStored(Bundle bundle) {
+		final Bundle stored = this.stored;
+		this.stored = null;
+		return stored;
+	}
+
+	@Override
+	protected void delete(Bundle bundle) {
+		final long id = bundle.getUniqueID();
+		if (bundles.remove(id) == null)
+			return;
+		
+		/*
+		 * The payload file goes away with the last reference to the payload
+		 * of the removed bundle. If that never happens because of a crash,
+		 * the orphan file is dropped on recovery.
+		 */
+		pending.add(id);
+		commits.submit();
+	}
+	
+	@Override
+	public synchronized Future<Void> commit() {
+		return commits.getPending();
+	}
+	
+	@Override
+	public void close() {
+		// Out of the lock, since the last commit takes it
+		commits.close();
+		
+		synchronized (this) {
+			flush();
+			for (FileOutputStream out : unsynced) {
+				try {
+					out.close();
+				} catch (IOException e) { }
+			}
+			
+			try {
+				db.close();
+			} catch (SqlJetException e) {
+				LOGGER.e("Database not closed", e);
+			}
+		}
+	}
+	
+	/**
+	 * Commits the pending operations in a single transaction, once the
+	 * payloads they refer to are on disk. On failure they are kept to be
+	 * retried by the next flush.
+	 */
+	private boolean flush() {
+		if (pending.isEmpty())
+			return true;
+		
+		for (Iterator<FileOutputStream> it = unsynced.iterator(); it.hasNext();) {
+			final FileOutputStream out = it.next();
+			try {
+				out.getFD().sync();
+				out.close();
+			} catch (IOException e) {
+				LOGGER.e("Payload not synced", e);
+				return false;
+			}
+			
+			it.remove();
+		}
+		
+		try {
+			db.beginTransaction(SqlJetTransactionMode.WRITE);
+			boolean committed = false;
+			try {
+				final ISqlJetTable table = db.getTable(TABLE);
+				for (Object op : pending) {
+					if (op instanceof Long) {
+						final ISqlJetCursor cursor = table.lookup(ID_INDEX, op);
+						try {
+							if (!cursor.eof())
+								cursor.delete();
+						} finally {
+							cursor.close();
+						}
+					} else {
+						table.insertOr(SqlJetConflictAction.REPLACE, (Object[]) op);
+					}
+				}
+				
+				db.commit();
+				committed = true;
+			} finally {
+				if (!committed)
+					db.rollback();
+			}
+		} catch (SqlJetException e) {
+			LOGGER.e(String.format("Commit of %d operations failed", pending.size()), e);
+			return false;
+		}
+		
+		LOGGER.v(String.format("%d operations committed", pending.size()));
+		pending.clear();
+		return true;
+	}
+	
+	/**
+	 * Returns the stored bundles whose rows match {@code key} in
+	 * {@code index}, committed or not. Only their IDs are read from the
+	 * database.
+	 */
+	private List<Bundle> query(String index, Object key) {
+		final List<Bundle> result = new ArrayList<Bundle>();
+		try {
+			db.beginTransaction(SqlJetTransactionMode.READ_ONLY);
+			try {
+				final ISqlJetCursor cursor = db.getTable(TABLE).lookup(index, key);
+				try {
+					if (!cursor.eof()) {
+						do {
+							final Bundle bundle = bundles.get(cursor.getInteger("id"));
+							if (bundle != null)
+								result.add(bundle);
+						} while (cursor.next());
+					}
+				} finally {
+					cursor.close();
+				}
+			} finally {
+				db.commit();
+			}
+		} catch (SqlJetException e) {
+			throw new StorageException(e);
+		}
+		
+		// Rows still queued, skipping those already committed once
+		final int column = DESTINATION_INDEX.equals(index) ? 1 : 2;
+		for (Object op : pending) {
+			if (op instanceof Long)
+				continue;
+			
+			final Object[] row = (Object[]) op;
+			if (!key.equals(row[column]))
+				continue;
+			
+			final Bundle bundle = bundles.get((Long) row[0]);
+			if (bundle != null && !result.contains(bundle))
+				result.add(bundle);
+		}
+		
+		return result;
+	}
+	
+	private void createSchema() throws SqlJetException {
+		db.beginTransaction(SqlJetTransactionMode.WRITE);
+		boolean committed = false;
+		try {
+			if (db.getSchema().getTable(TABLE) == null) {
+				// Unique IDs may be negative, so they can not be the row ID
+				db.createTable("CREATE TABLE bundles (" +
+						"id INTEGER NOT NULL, " +
+						"destination TEXT NOT NULL, " +
+						"source TEXT NOT NULL, " +
+						"expiration INTEGER NOT NULL, " +
+						"size INTEGER NOT NULL, " +
+						"head BLOB NOT NULL)"
+				);
+				
+				db.createIndex("CREATE UNIQUE INDEX bundles_id ON bundles (id)");
+				db.createIndex("CREATE INDEX bundles_destination ON bundles (destination)");
+				db.createIndex("CREATE INDEX bundles_source ON bundles (source)");
+				db.createIndex("CREATE INDEX bundles_expiration ON bundles (expiration)");
+			}
+			
+			db.commit();
+			committed = true;
+		} finally {
+			if (!committed)
+				db.rollback();
+		}
+	}
+	
+	private void recover() throws SqlJetException {
+		int expired = 0;
+		int broken = 0;
+		
+		db.beginTransaction(SqlJetTransactionMode.WRITE);
+		boolean committed = false;
+		try {
+			final ISqlJetTable table = db.getTable(TABLE);
+			
+			final ISqlJetCursor old = table.scope(
+					EXPIRATION_INDEX,
+					new Object[] { Long.MIN_VALUE },
+					new Object[] { SystemClock.secs() }
+			);
+			try {
+				while (!old.eof()) {
+					payloadFile(old.getInteger("id")).delete();
+					old.delete();
+					expired++;
+				}
+			} finally {
+				old.close();
+			}
+			
+			final ISqlJetCursor cursor = table.open();
+			try {
+				while (!cursor.eof()) {
+					final long id = cursor.getInteger("id");
+					final int size = (int) cursor.getInteger("size");
+					final File file = payloadFile(id);
+					
+					// A file cut by a crash or a full disk would fail every read
+					if (file.isFile() && file.length() == size) {
+						bundles.put(id, restore(
+								cursor.getBlobAsArray("head"),
+								file,
+								size
+						));
+						cursor.next();
+					} else {
+						cursor.delete();
+						broken++;
+					}
+				}
+			} finally {
+				cursor.close();
+			}
+			
+			db.commit();
+			committed = true;
+		} finally {
+			if (!committed)
+				db.rollback();
+		}
+		
+		int orphans = 0;
+		final File[] files = payloads.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				final String name = file.getName();
+				if (!name.endsWith(PAYLOAD_SUFFIX))
+					continue;
+				
+				final String hex = name.substring(0, name.length() - PAYLOAD_SUFFIX.length());
+				if (hex.length() != 16 || !bundles.containsKey(parseID(hex))) {
+					file.delete();
+					orphans++;
+				}
+			}
+		}
+		
+		LOGGER.i(String.format(
+				"%d bundles recovered (%d expired, %d with missing or short payload, %d orphan payloads removed)",
+				bundles.size(),
+				expired,
+				broken,
+				orphans
+		));
+	}
+	
+	private File payloadFile(long id) {
+		return new File(payloads, String.format("%016x%s", id, PAYLOAD_SUFFIX));
+	}
+	
+	private static long parseID(String hex) {
+		try {
+			return Long.parseLong(hex.substring(0, 8), 16) << 32 |
+					Long.parseLong(hex.substring(8), 16);
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+	
+	/**
+	 * Writes {@code payload} to {@code file} and returns the stream, still
+	 * open to be synced by the next flush.
+	 */
+	private static FileOutputStream writePayload(DataBlock payload, File file) throws IOException {
+		final FileOutputStream out = new FileOutputStream(file);
+		boolean written = false;
+		try {
+			if (payload.transferTo(out.getChannel()) != payload.getLength())
+				throw new IOException("Payload not fully written");
+			
+			written = true;
+			return out;
+		} finally {
+			if (!written)
+				out.close();
+		}
+	}
+	
+	private static byte[] encode(BundleInfo info) {
+		final ByteBuffer buffer = BufferPool.heap().acquire(BUFFER_SIZE);
+		try {
+			final ChainOfSegments chain = new ChainOfSegments();
+			info.serialize(chain, buffer);
+			
+			final ByteBuffer[] segments = chain.getSegments();
+			int length = 0;
+			for (int i = 0; i < segments.length; i++)
+				length += segments[i].remaining();
+			
+			final byte[] head = new byte[length];
+			for (int i = 0, pos = 0; i < segments.length; i++) {
+				final int count = segments[i].remaining();
+				segments[i].get(head, pos, count);
+				pos += count;
+			}
+			
+			return head;
+		} finally {
+			BufferPool.heap().release(buffer);
+		}
+	}
+	
+	private static Bundle restore(byte[] head, File payload, int length) {
+		return Bundle.restore(
+				BundleInfo.parse(ByteBuffer.wrap(head)),
+				DataBlock.shared(payload, length)
+		);
+	}
+	
+	
+	private class BundleView extends AbstractCollection<Bundle> {
+
+		@Override
+		public Iterator<Bundle> iterator() {
+			final List<Bundle> copy;
+			synchronized (SQLiteBundleStorage.this) {
+				copy = new ArrayList<Bundle>(bundles.size());
+				for (int slot = bundles.next(-1); slot != -1; slot = bundles.next(slot))
+					copy.add(bundles.valueAt(slot));
+			}
+			
+			return Collections.unmodifiableList(copy).iterator();
+		}
+
+		@Override
+		public int size() {
+			synchronized (SQLiteBundleStorage.this) {
+				return bundles.size();
+			}
+		}
+		
+		@Override
+		public boolean contains(Object o) {
+			if (!(o instanceof Bundle))
+				return false;
+			
+			synchronized (SQLiteBundleStorage.this) {
+				final Bundle bundle = bundles.get(((Bundle) o).getUniqueID());
+				return bundle != null && bundle.equals(o);
+			}
+		}
+	}
+}
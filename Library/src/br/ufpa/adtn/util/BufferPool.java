@@ -0,0 +1,481 @@
+/**
+ * Amazon-DTN - Lightweight Delay Tolerant Networking Implementation
+ * Copyright (C) 2013  Dórian C. Langbeck
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package br.ufpa.adtn.util;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of temporary buffers grouped in power of two size classes, from
+ * 512 bytes to 1 MiB. Each thread keeps a few buffers of every class for
+ * itself; the rest go to a shared, bounded free list. Larger requests are
+ * simply allocated and never pooled.
+ * 
+ * A buffer must be given back with {@link #release(ByteBuffer)} exactly
+ * once, and only the instance returned by {@link #acquire(int)}, never a
+ * slice or duplicate of it.
+ * 
+ * With leak detection enabled, buffers collected by the GC without being
+ * released are logged together with the stack that acquired them, and a
+ * buffer released again while it is still free in the pool is rejected.
+ */
+public final class BufferPool {
+	private static final Logger LOGGER = new Logger("BufferPool");
+	private static final int MIN_SHIFT = 9;
+	private static final int MAX_SHIFT = 20;
+	private static final int CLASSES = MAX_SHIFT - MIN_SHIFT + 1;
+	private static final int LOCAL_BUFFERS = 4;
+	
+	private static final BufferPool HEAP = new BufferPool(false, 0x800000L);
+	private static final BufferPool DIRECT = new BufferPool(true, 0x800000L);
+	private static volatile boolean leakDetection = false;
+	
+	public static BufferPool heap() {
+		return HEAP;
+	}
+	
+	public static BufferPool direct() {
+		return DIRECT;
+	}
+	
+	/**
+	 * Enables tracking of acquired buffers. It costs a stack trace per
+	 * acquisition, so it is meant for debugging only, and should be set
+	 * before any buffer is used.
+	 */
+	public static void setLeakDetection(boolean enabled) {
+		leakDetection = enabled;
+	}
+	
+	public static boolean isLeakDetectionEnabled() {
+		return leakDetection;
+	}
+	
+	
+	private final ThreadLocal<LocalCache> local;
+	private final Queue<ByteBuffer>[] shared;
+	private final AtomicInteger[] sharedCount;
+	private final int[] sharedLimit;
+	private final boolean direct;
+	
+	private final ReferenceQueue<ByteBuffer> collected;
+	private final HashMap<Integer, Tracker> tracked;
+	private final Set<ByteBuffer> free;
+	
+	private final AtomicLong acquired;
+	private final AtomicLong localHits;
+	private final AtomicLong sharedHits;
+	private final AtomicLong allocated;
+	private final AtomicLong released;
+	private final AtomicLong discarded;
+	private final AtomicLong oversized;
+	private final AtomicLong leaked;
+	
+	/**
+	 * @param direct whether the pool hands out direct buffers
+	 * @param sharedBytes bytes each size class may keep in the shared free
+	 * 		list; every class keeps at least two buffers
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public BufferPool(boolean direct, long sharedBytes) {
+		this.shared = new Queue[CLASSES];
+		this.sharedCount = new AtomicInteger[CLASSES];
+		this.sharedLimit = new int[CLASSES];
+		this.direct = direct;
+		
+		for (int i = 0; i < CLASSES; i++) {
+			shared[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+			sharedCount[i] = new AtomicInteger(0);
+			sharedLimit[i] = (int) Math.min(
+					Integer.MAX_VALUE,
+					Math.max(2L, sharedBytes >> (i + MIN_SHIFT))
+			);
+		}
+		
+		this.local = new ThreadLocal<LocalCache>() {
+			
+			@Override
+			protected LocalCache initialValue() {
+				return new LocalCache();
+			}
+		};
+		
+		this.collected = new ReferenceQueue<ByteBuffer>();
+		this.tracked = new HashMap<Integer, Tracker>();
+		this.free = Collections.newSetFromMap(new IdentityHashMap<ByteBuffer, Boolean>());
+		
+		this.acquired = new AtomicLong(0);
+		this.localHits = new AtomicLong(0);
+		this.sharedHits = new AtomicLong(0);
+		this.allocated = new AtomicLong(0);
+		this.released = new AtomicLong(0);
+		this.discarded = new AtomicLong(0);
+		this.oversized = new AtomicLong(0);
+		this.leaked = new AtomicLong(0);
+	}
+	
+	public boolean isDirect() {
+		return direct;
+	}
+	
+	/**
+	 * Returns a cleared buffer able to hold at least {@code size} bytes,
+	 * with its limit set to {@code size}.
+	 */
+	public ByteBuffer acquire(int size) {
+		if (size < 0)
+			throw new IllegalArgumentException("Negative size");
+		
+		acquired.incrementAndGet();
+		if (leakDetection)
+			pollCollected();
+		
+		final ByteBuffer buffer;
+		final int idx = indexOf(size);
+		if (idx == -1) {
+			oversized.incrementAndGet();
+			buffer = allocate(size);
+		} else {
+			ByteBuffer pooled = local.get().pop(idx);
+			if (pooled != null) {
+				localHits.incrementAndGet();
+			} else if ((pooled = shared[idx].poll()) != null) {
+				sharedCount[idx].decrementAndGet();
+				sharedHits.incrementAndGet();
+			} else {
+				allocated.incrementAndGet();
+				pooled = allocate(1 << (idx + MIN_SHIFT));
+			}
+			
+			markFree(pooled, false);
+			buffer = pooled;
+		}
+		
+		buffer.clear();
+		buffer.limit(size);
+		
+		if (leakDetection)
+			track(buffer);
+		
+		return buffer;
+	}
+	
+	/**
+	 * Gives back a buffer obtained from {@link #acquire(int)}. Buffers that
+	 * do not belong to a size class of this pool are left to the GC.
+	 * 
+	 * @throws IllegalStateException if leak detection is enabled and the
+	 * buffer is already free in the pool
+	 */
+	public void release(ByteBuffer buffer) {
+		if (buffer == null)
+			throw new NullPointerException();
+		
+		released.incrementAndGet();
+		untrack(buffer);
+		
+		final int capacity = buffer.capacity();
+		final int idx = indexOf(capacity);
+		if (idx == -1 || capacity != 1 << (idx + MIN_SHIFT) || buffer.isDirect() != direct || buffer.isReadOnly()) {
+			discarded.incrementAndGet();
+			return;
+		}
+		
+		// Before it can be handed out again
+		markFree(buffer, true);
+		
+		if (local.get().push(idx, buffer))
+			return;
+		
+		final AtomicInteger count = sharedCount[idx];
+		if (count.incrementAndGet() > sharedLimit[idx]) {
+			count.decrementAndGet();
+			discarded.incrementAndGet();
+			markFree(buffer, false);
+			return;
+		}
+		
+		shared[idx].offer(buffer);
+	}
+	
+	public Statistics getStatistics() {
+		long pooled = 0;
+		for (int i = 0; i < CLASSES; i++)
+			pooled += (long) sharedCount[i].get() << (i + MIN_SHIFT);
+		
+		return new Statistics(
+				acquired.get(),
+				localHits.get(),
+				sharedHits.get(),
+				allocated.get(),
+				oversized.get(),
+				released.get(),
+				discarded.get(),
+				leaked.get(),
+				pooled
+		);
+	}
+	
+	private ByteBuffer allocate(int capacity) {
+		return direct ?
+				ByteBuffer.allocateDirect(capacity) :
+				ByteBuffer.allocate(capacity);
+	}
+	
+	private static int indexOf(int size) {
+		if (size > 1 << MAX_SHIFT)
+			return -1;
+		
+		if (size <= 1 << MIN_SHIFT)
+			return 0;
+		
+		return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+	}
+	
+	/**
+	 * Keeps track of the buffers free in the pool while leak detection is
+	 * enabled, so releasing one of them again is rejected.
+	 */
+	private void markFree(ByteBuffer buffer, boolean isFree) {
+		if (!leakDetection)
+			return;
+		
+		synchronized (tracked) {
+			if (!isFree)
+				free.remove(buffer);
+			else if (!free.add(buffer))
+				throw new IllegalStateException("Buffer released twice");
+		}
+	}
+	
+	private void track(ByteBuffer buffer) {
+		final Tracker tracker = new Tracker(buffer, collected);
+		synchronized (tracked) {
+			tracker.next = tracked.put(tracker.hash, tracker);
+		}
+	}
+	
+	private void untrack(ByteBuffer buffer) {
+		final Integer hash = System.identityHashCode(buffer);
+		synchronized (tracked) {
+			Tracker prev = null;
+			for (Tracker t = tracked.get(hash); t != null; prev = t, t = t.next) {
+				if (t.get() != buffer)
+					continue;
+				
+				unlink(hash, prev, t);
+				t.clear();
+				return;
+			}
+		}
+	}
+	
+	private void pollCollected() {
+		for (Tracker t; (t = (Tracker) collected.poll()) != null; ) {
+			boolean found = false;
+			synchronized (tracked) {
+				Tracker prev = null;
+				for (Tracker c = tracked.get(t.hash); c != null; prev = c, c = c.next) {
+					if (c == t) {
+						unlink(t.hash, prev, c);
+						found = true;
+						break;
+					}
+				}
+			}
+			
+			if (found) {
+				leaked.incrementAndGet();
+				LOGGER.w(String.format(
+						"%s buffer of %d bytes collected without being released",
+						direct ? "Direct" : "Heap",
+						t.capacity
+				), t.origin);
+			}
+		}
+	}
+	
+	private void unlink(Integer hash, Tracker prev, Tracker t) {
+		if (prev != null)
+			prev.next = t.next;
+		else if (t.next != null)
+			tracked.put(hash, t.next);
+		else
+			tracked.remove(hash);
+	}
+	
+	
+	private static class LocalCache {
+		private final ByteBuffer[][] buffers;
+		private final int[] sizes;
+		
+		private LocalCache() {
+			this.buffers = new ByteBuffer[CLASSES][LOCAL_BUFFERS];
+			this.sizes = new int[CLASSES];
+		}
+		
+		private ByteBuffer pop(int idx) {
+			final int size = sizes[idx];
+			if (size == 0)
+				return null;
+			
+			final ByteBuffer buffer = buffers[idx][size - 1];
+			buffers[idx][size - 1] = null;
+			sizes[idx] = size - 1;
+			return buffer;
+		}
+		
+		private boolean push(int idx, ByteBuffer buffer) {
+			final int size = sizes[idx];
+			if (size == LOCAL_BUFFERS)
+				return false;
+			
+			buffers[idx][size] = buffer;
+			sizes[idx] = size + 1;
+			return true;
+		}
+	}
+	
+	
+	private static class Tracker extends WeakReference<ByteBuffer> {
+		private final Throwable origin;
+		private final Integer hash;
+		private final int capacity;
+		private Tracker next;
+		
+		private Tracker(ByteBuffer buffer, ReferenceQueue<ByteBuffer> queue) {
+			super(buffer, queue);
+			this.origin = new Throwable("Buffer acquired here");
+			this.hash = System.identityHashCode(buffer);
+			this.capacity = buffer.capacity();
+			this.next = null;
+		}
+	}
+	
+	
+	public static final class Statistics {
+		private final long acquired;
+		private final long localHits;
+		private final long sharedHits;
+		private final long allocated;
+		private final long oversized;
+		private final long released;
+		private final long discarded;
+		private final long leaked;
+		private final long pooledBytes;
+		
+		private Statistics(long acquired, long localHits, long sharedHits, long allocated,
+				long oversized, long released, long discarded, long leaked, long pooledBytes) {
+			
+			this.acquired = acquired;
+			this.localHits = localHits;
+			this.sharedHits = sharedHits;
+			this.allocated = allocated;
+			this.oversized = oversized;
+			this.released = released;
+			this.discarded = discarded;
+			this.leaked = leaked;
+			this.pooledBytes = pooledBytes;
+		}
+		
+		public long getAcquired() {
+			return acquired;
+		}
+		
+		public long getLocalHits() {
+			return localHits;
+		}
+		
+		public long getSharedHits() {
+			return sharedHits;
+		}
+		
+		/**
+		 * Pooled size class allocations, i.e. acquisitions that found no free
+		 * buffer.
+		 */
+		public long getAllocated() {
+			return allocated;
+		}
+		
+		/**
+		 * Acquisitions larger than the biggest size class.
+		 */
+		public long getOversized() {
+			return oversized;
+		}
+		
+		public long getReleased() {
+			return released;
+		}
+		
+		/**
+		 * Released buffers left to the GC because their free list was full or
+		 * they did not belong to the pool.
+		 */
+		public long getDiscarded() {
+			return discarded;
+		}
+		
+		public long getLeaked() {
+			return leaked;
+		}
+		
+		public long getOutstanding() {
+			return acquired - released;
+		}
+		
+		/**
+		 * Bytes held by the shared free lists. Thread caches are not counted.
+		 */
+		public long getPooledBytes() {
+			return pooledBytes;
+		}
+		
+		public double getHitRatio() {
+			return acquired == 0 ? 0 : (localHits + sharedHits) / (double) acquired;
+		}
+		
+		@Override
+		public String toString() {
+			return String.format(
+					"acquired=%d (local=%d, shared=%d, allocated=%d, oversized=%d, hit=%.1f%%) released=%d discarded=%d outstanding=%d leaked=%d pooled=%dKB",
+					acquired,
+					localHits,
+					sharedHits,
+					allocated,
+					oversized,
+					getHitRatio() * 100,
+					released,
+					discarded,
+					getOutstanding(),
+					leaked,
+					pooledBytes >> 10
+			);
+		}
+	}
+}
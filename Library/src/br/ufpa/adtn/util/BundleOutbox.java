@@ -17,6 +17,7 @@
  */
 package br.ufpa.adtn.util;
 
+import java.util.AbstractCollection;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -24,38 +25,143 @@ import java.util.Collections;
 import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
 import java.util.Set;
+import java.util.SortedSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import br.ufpa.adtn.bundle.Bundle;
+import br.ufpa.adtn.bundle.BundleInfo;
+import br.ufpa.adtn.core.BundleStorage;
 import br.ufpa.adtn.core.EID;
+import br.ufpa.adtn.core.SendOrder;
+import br.ufpa.adtn.util.collections.LongObjectMap;
 
+/**
+ * Bundles waiting to be sent, by destination, along with the routes
+ * linking each next hop to the destinations reachable through it. The
+ * transitive closure of these routes is kept up to date as they are
+ * linked and unlinked, so a search for the bundles reachable through a
+ * next hop does not walk the routes again.
+ * 
+ * Searches do not lock and return live views, iterated as the outbox
+ * changes: bundles added or removed meanwhile may or may not be seen.
+ * 
+ * The bundles of each destination are kept sorted by a {@link SendOrder},
+ * and a search merges the ones of every destination reachable through the
+ * next hop, so they are sent to it in that order.
+ * 
+ * Only the unique ID of each bundle and its key in the order are kept. The
+ * bundles are taken from the storage as searches are iterated, the ones
+ * removed meanwhile being skipped, so a waiting bundle costs a small entry
+ * instead of its whole primary block and payload handle.
+ */
 public class BundleOutbox {
-	private final Map<EID, Collection<Bundle>> dstMapping;
-	private final Map<EID, Collection<EID>> linkMapping;
-	private final Lock writeLock;
-	private final Lock readLock;
+	private final ConcurrentMap<EID, SortedSet<Entry>> dstMapping;
+	private final ConcurrentMap<EID, Set<EID>> closure;
+	private final Map<EID, Set<EID>> linkMapping;
+	private final Map<EID, Set<EID>> reachedBy;
+	private final LongObjectMap<Entry> entries;
+	private final Lock lock;
+	private volatile BundleStorage storage;
+	private volatile SendOrder order;
 	
 	public BundleOutbox() {
-		this.dstMapping = new HashMap<EID, Collection<Bundle>>();
-		this.linkMapping = new HashMap<EID, Collection<EID>>();
+		this.dstMapping = new ConcurrentHashMap<EID, SortedSet<Entry>>();
+		this.closure = new ConcurrentHashMap<EID, Set<EID>>();
+		this.linkMapping = new HashMap<EID, Set<EID>>();
+		this.reachedBy = new HashMap<EID, Set<EID>>();
+		this.entries = new LongObjectMap<Entry>();
+		this.lock = new ReentrantLock();
+		this.order = new SendOrder.OldestFirst();
+		this.storage = null;
+	}
+	
+	/**
+	 * Storage the bundles are taken from. Searches find nothing without
+	 * one.
+	 */
+	public void setStorage(BundleStorage storage) {
+		this.storage = storage;
+	}
+	
+	public SendOrder getOrder() {
+		return order;
+	}
+	
+	/**
+	 * Changes the order bundles are sent, sorting again the ones already
+	 * waiting, which are taken from the storage for that. A dynamic order
+	 * keeps them sorted oldest first and sorts the bundles of each search
+	 * as it is iterated.
+	 */
+	public void setOrder(SendOrder order) {
+		final BundleStorage storage = this.storage;
 		
-		final ReadWriteLock rwLock = new ReentrantReadWriteLock();
-		this.writeLock = rwLock.writeLock();
-		this.readLock = rwLock.readLock();
+		lock.lock();
+		try {
+			for (Map.Entry<EID, SortedSet<Entry>> mapping : dstMapping.entrySet()) {
+				final SortedSet<Entry> queue = new ConcurrentSkipListSet<Entry>();
+				for (Entry entry : mapping.getValue()) {
+					final Bundle bundle = storage == null ? null : storage.get(entry.uniqueID);
+					if (bundle == null) {
+						entries.remove(entry.uniqueID);
+						continue;
+					}
+					
+					final Entry keyed = new Entry(bundle.getInfo(), entry.destination, keyOf(order, bundle));
+					entries.put(entry.uniqueID, keyed);
+					queue.add(keyed);
+				}
+				
+				mapping.setValue(queue);
+			}
+			
+			this.order = order;
+		} finally {
+			lock.unlock();
+		}
 	}
 	
 	public boolean unlink(EID dst, EID next) {
-		writeLock.lock();
+		lock.lock();
 		try {
-			final Collection<EID> eids = linkMapping.get(next);
-			return eids != null ? eids.remove(dst) : false;
+			final Set<EID> eids = linkMapping.get(next);
+			if (eids == null || !eids.remove(dst))
+				return false;
+			
+			if (eids.isEmpty())
+				linkMapping.remove(next);
+			
+			// Only who reached the next hop may have lost something
+			final Set<EID> affected = new HashSet<EID>(getReachedBy(next));
+			affected.add(next);
+			for (EID eid : affected) {
+				final Set<EID> old = getClosure(eid);
+				final Set<EID> now = walk(eid);
+				for (EID lost : old) {
+					if (now.contains(lost))
+						continue;
+					
+					final Set<EID> eids2 = reachedBy.get(lost);
+					if (eids2.remove(eid) && eids2.isEmpty())
+						reachedBy.remove(lost);
+				}
+				
+				setClosure(eid, now);
+			}
+			
+			return true;
 		} finally {
-			writeLock.unlock();
+			lock.unlock();
 		}
 	}
 	
@@ -63,109 +169,329 @@ public class BundleOutbox {
 		if (dst.equals(next))
 			return;
 		
-		writeLock.lock();
+		lock.lock();
 		try {
-			Collection<EID> eids = linkMapping.get(next);
+			Set<EID> eids = linkMapping.get(next);
 			if (eids == null) {
 				eids = new HashSet<EID>();
 				linkMapping.put(next, eids);
 			}
 			
-			eids.add(dst);
+			if (!eids.add(dst) || getClosure(next).contains(dst))
+				return;
+			
+			// Whoever reaches the next hop now reaches all it reaches
+			final Set<EID> added = new HashSet<EID>(getClosure(dst));
+			added.add(dst);
+			
+			final Set<EID> affected = new HashSet<EID>(getReachedBy(next));
+			affected.add(next);
+			for (EID eid : affected) {
+				final Set<EID> reach = new HashSet<EID>(getClosure(eid));
+				for (EID eid2 : added) {
+					if (reach.add(eid2))
+						getReachedBy(eid2).add(eid);
+				}
+				
+				setClosure(eid, reach);
+			}
 		} finally {
-			writeLock.unlock();
+			lock.unlock();
 		}
 	}
 	
+	/**
+	 * Queues the stored {@code bundle}, which is not kept.
+	 */
 	public void add(Bundle bundle) {
 		final EID bdst = bundle.getDestination().withScheme("dtn");
 		
-		writeLock.lock();
+		lock.lock();
 		try {
-			Collection<Bundle> bundles = dstMapping.get(bdst);
-			if (bundles == null) {
-				bundles = new ArrayList<Bundle>();
-				dstMapping.put(bdst, bundles);
+			if (entries.containsKey(bundle.getUniqueID()))
+				return;
+			
+			final Entry entry = new Entry(bundle.getInfo(), bdst, keyOf(order, bundle));
+			SortedSet<Entry> queue = dstMapping.get(bdst);
+			if (queue == null) {
+				queue = new ConcurrentSkipListSet<Entry>();
+				dstMapping.put(bdst, queue);
 			}
 			
-			bundles.add(bundle);
+			queue.add(entry);
+			entries.put(entry.uniqueID, entry);
 		} finally {
-			writeLock.unlock();
+			lock.unlock();
 		}
 	}
 	
 	public boolean remove(Bundle b) {
-		final EID bdst = b.getDestination().withScheme("dtn");
-		
-		writeLock.lock();
+		lock.lock();
 		try {
-			final Collection<Bundle> bOut = dstMapping.get(bdst);
-			return bOut != null ? bOut.remove(b) : false;
+			final Entry entry = entries.remove(b.getUniqueID());
+			if (entry == null)
+				return false;
+			
+			final SortedSet<Entry> queue = dstMapping.get(entry.destination);
+			queue.remove(entry);
+			if (queue.isEmpty())
+				dstMapping.remove(entry.destination);
+			
+			return true;
 		} finally {
-			writeLock.unlock();
+			lock.unlock();
 		}
 	}
 
+	/**
+	 * Returns a live view of the bundles for {@code dst} and for the
+	 * destinations reachable through it, in the order they are sent.
+	 */
 	public Collection<Bundle> searchBundles(EID dst) {
-		EID bdst = dst.withScheme("dtn");
+		return new Reachable(dst.withScheme("dtn"));
+	}
+	
+	public boolean containsBundles(EID dst) {
+		return !new Reachable(dst).isEmpty();
+	}
+	
+	private static long keyOf(SendOrder order, Bundle bundle) {
+		return order.isDynamic() ? 0 : order.key(bundle);
+	}
+	
+	private Set<EID> getClosure(EID eid) {
+		final Set<EID> reach = closure.get(eid);
+		return reach == null ? Collections.<EID>emptySet() : reach;
+	}
+	
+	/**
+	 * Publishes a new closure of {@code eid}. Published sets are never
+	 * changed, since searches read them without locking.
+	 */
+	private void setClosure(EID eid, Set<EID> reach) {
+		if (reach.isEmpty())
+			closure.remove(eid);
+		else
+			closure.put(eid, Collections.unmodifiableSet(reach));
+	}
+	
+	private Set<EID> getReachedBy(EID eid) {
+		Set<EID> eids = reachedBy.get(eid);
+		if (eids == null) {
+			eids = new HashSet<EID>();
+			reachedBy.put(eid, eids);
+		}
 		
-		readLock.lock();
-		try {
-			final List<Bundle> bundles = new ArrayList<Bundle>();
-			final Deque<EID> search = new ArrayDeque<EID>();
-			final Set<EID> visited = new HashSet<EID>();
+		return eids;
+	}
+	
+	/**
+	 * Destinations reachable through {@code eid}, following the routes.
+	 */
+	private Set<EID> walk(EID eid) {
+		final Set<EID> visited = new HashSet<EID>();
+		final Deque<EID> search = new ArrayDeque<EID>();
+		search.push(eid);
+		
+		while ((eid = search.poll()) != null) {
+			final Set<EID> nexts = linkMapping.get(eid);
+			if (nexts == null)
+				continue;
 			
-			do {
-				if (visited.contains(bdst))
+			for (EID next : nexts)
+				if (visited.add(next))
+					search.push(next);
+		}
+		
+		return visited;
+	}
+	
+	
+	private class Reachable extends AbstractCollection<Bundle> {
+		private final Set<EID> reach;
+		private final EID dst;
+		
+		private Reachable(EID dst) {
+			this.reach = getClosure(dst);
+			this.dst = dst;
+		}
+		
+		/**
+		 * Bundles of each destination, skipping the start when it is also
+		 * reached through a cycle back to itself.
+		 */
+		private List<SortedSet<Entry>> getQueues() {
+			final List<SortedSet<Entry>> queues = new ArrayList<SortedSet<Entry>>(reach.size() + 1);
+			SortedSet<Entry> queue = dstMapping.get(dst);
+			if (queue != null)
+				queues.add(queue);
+			
+			for (EID eid : reach) {
+				if (eid.equals(dst))
 					continue;
-
-				visited.add(bdst);
 				
-				final Collection<Bundle> dBundles = dstMapping.get(bdst);
-				if (dBundles != null)
-					bundles.addAll(dBundles);
+				queue = dstMapping.get(eid);
+				if (queue != null)
+					queues.add(queue);
+			}
+			
+			return queues;
+		}
 
-				final Collection<EID> nexts = linkMapping.get(bdst);
-				if (nexts == null)
-					continue;
+		@Override
+		public Iterator<Bundle> iterator() {
+			final BundleStorage storage = BundleOutbox.this.storage;
+			final SendOrder order = BundleOutbox.this.order;
+			if (order.isDynamic()) {
+				final List<Bundle> bundles = new ArrayList<Bundle>();
+				if (storage != null) {
+					for (SortedSet<Entry> queue : getQueues()) {
+						for (Entry entry : queue) {
+							final Bundle bundle = storage.get(entry.uniqueID);
+							if (bundle != null)
+								bundles.add(bundle);
+						}
+					}
+				}
 				
-				for (EID next : nexts)
-					search.push(next);
-			} while ((bdst = search.poll()) != null);
+				order.sort(bundles);
+				return Collections.unmodifiableList(bundles).iterator();
+			}
 			
-			return Collections.unmodifiableCollection(bundles);
-		} finally {
-			readLock.unlock();
+			return new Merger(getQueues(), storage);
+		}
+		
+		@Override
+		public boolean isEmpty() {
+			for (SortedSet<Entry> queue : getQueues())
+				if (!queue.isEmpty())
+					return false;
+			
+			return true;
+		}
+
+		@Override
+		public int size() {
+			int size = 0;
+			for (SortedSet<Entry> queue : getQueues())
+				size += queue.size();
+			
+			return size;
 		}
 	}
 	
-	public boolean containsBundles(EID dst) {
-		readLock.lock();
-		try {
-			final Deque<EID> search = new ArrayDeque<EID>();
-			final Set<EID> visited = new HashSet<EID>();
+	/**
+	 * Merges sorted queues, taking the next entry of each only when the
+	 * previous one was taken, and the bundle of each entry only then.
+	 */
+	private static class Merger implements Iterator<Bundle> {
+		private final PriorityQueue<Head> heads;
+		private final BundleStorage storage;
+		private Bundle next;
+		
+		private Merger(List<SortedSet<Entry>> queues, BundleStorage storage) {
+			this.heads = new PriorityQueue<Head>(Math.max(1, queues.size()));
+			this.storage = storage;
+			this.next = null;
 			
-			do {
-				if (visited.contains(dst))
-					continue;
+			if (storage == null)
+				return;
+			
+			for (SortedSet<Entry> queue : queues) {
+				final Iterator<Entry> it = queue.iterator();
+				if (it.hasNext())
+					heads.add(new Head(it));
+			}
+		}
 
-				visited.add(dst);
+		@Override
+		public boolean hasNext() {
+			while (next == null) {
+				final Head head = heads.poll();
+				if (head == null)
+					return false;
 				
-				final Collection<Bundle> dBundles = dstMapping.get(dst);
-				if (dBundles != null && !dBundles.isEmpty())
-					return true;
-
-				final Collection<EID> nexts = linkMapping.get(dst);
-				if (nexts == null)
-					continue;
+				final long uniqueID = head.entry.uniqueID;
+				if (head.advance())
+					heads.add(head);
 				
-				for (EID next : nexts)
-					search.push(next);
-			} while ((dst = search.poll()) != null);
+				// Removed since it was queued
+				next = storage.get(uniqueID);
+			}
 			
-			return false;
-		} finally {
-			readLock.unlock();
+			return true;
+		}
+
+		@Override
+		public Bundle next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+			
+			final Bundle bundle = next;
+			next = null;
+			return bundle;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+	
+	private static class Head implements Comparable<Head> {
+		private final Iterator<Entry> it;
+		private Entry entry;
+		
+		private Head(Iterator<Entry> it) {
+			this.entry = it.next();
+			this.it = it;
+		}
+		
+		private boolean advance() {
+			if (!it.hasNext())
+				return false;
+			
+			entry = it.next();
+			return true;
+		}
+
+		@Override
+		public int compareTo(Head other) {
+			return entry.compareTo(other.entry);
+		}
+	}
+	
+	/**
+	 * A waiting bundle: its unique ID, its destination and what it is
+	 * sorted by, its key and then its creation timestamp.
+	 */
+	private static final class Entry implements Comparable<Entry> {
+		private final long uniqueID;
+		private final long key;
+		private final long creation;
+		private final int sequence;
+		private final EID destination;
+		
+		private Entry(BundleInfo info, EID destination, long key) {
+			this.uniqueID = info.getUniqueID();
+			this.creation = info.getCreationTime();
+			this.sequence = info.getCreationSequence();
+			this.destination = destination;
+			this.key = key;
+		}
+
+		@Override
+		public int compareTo(Entry other) {
+			if (key != other.key)
+				return key < other.key ? -1 : 1;
+			
+			if (creation != other.creation)
+				return creation < other.creation ? -1 : 1;
+			
+			if (sequence != other.sequence)
+				return sequence < other.sequence ? -1 : 1;
+			
+			return uniqueID < other.uniqueID ? -1 : (uniqueID == other.uniqueID ? 0 : 1);
 		}
 	}
 }
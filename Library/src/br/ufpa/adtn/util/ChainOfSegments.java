@@ -17,6 +17,7 @@
  */
 package br.ufpa.adtn.util;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -40,6 +41,15 @@ private final Collection<ByteBuffer> segments;
 		segments.add(data.duplicate());
 	}
 	
+	/**
+	 * Appends the bytes of {@code block}. Heap blocks are appended with
+	 * their array, so channels over streams write it without a copy.
+	 */
+	public void append(DataBlock block) throws IOException {
+		final ByteBuffer data = block.backing();
+		segments.add(data != null ? data : block.read());
+	}
+	
 	public boolean isEmpty() {
 		return segments.isEmpty();
 	}
@@ -19,7 +19,9 @@ package br.ufpa.adtn.util;
 
 import java.io.ByteArrayInputStream;
 import java.io.Closeable;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -27,7 +29,10 @@ import java.io.RandomAccessFile;
 import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
 import java.nio.channels.FileLock;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import br.ufpa.adtn.core.SerializableFixedObject;
 
@@ -38,7 +43,7 @@ public abstract class DataBlock implements Closeable {
 	}
 	
 	public static DataBlock wrap(byte[] data, int offset, int length) {
-		return new ByteBufferBlock(ByteBuffer.wrap(data, offset, length));
+		return new ByteBufferBlock(ByteBuffer.wrap(data, offset, length).slice());
 	}
 	
 	public static DataBlock wrap(byte[] data) {
@@ -54,12 +59,73 @@ public abstract class DataBlock implements Closeable {
 	}
 	
 	public static DataBlock open(File file) throws IOException {
-		return new FileBlock(file);
+		return file(new SharedFile(file, false, false));
+	}
+	
+	/**
+	 * Opens {@code length} bytes of {@code file} starting at {@code offset}
+	 * as a block, e.g. a payload stored inside a larger file.
+	 */
+	public static DataBlock open(File file, long offset, int length) throws IOException {
+		final SharedFile handle = new SharedFile(file, false, false);
+		if (offset < 0 || length < 0 || offset + length > handle.length()) {
+			handle.rFile.close();
+			throw new IndexOutOfBoundsException();
+		}
+		
+		return new FileBlock(handle, offset, length, false);
+	}
+	
+	/**
+	 * Creates a block over {@code file} that keeps no file descriptor: the
+	 * file is only opened while being read. Meant for storages holding more
+	 * payloads than descriptors available; the file must not change while
+	 * the block is in use.
+	 */
+	public static DataBlock reference(File file, int length) {
+		return new FileReferenceBlock(file, length, false);
+	}
+	
+	/**
+	 * Same as {@link #reference(File, int)}, but counting references: the
+	 * file is deleted once the last one is released, so it outlives its
+	 * removal from a storage while someone still reads it.
+	 */
+	public static DataBlock shared(File file, int length) {
+		return new FileReferenceBlock(file, length, true);
+	}
+	
+	/**
+	 * Opens a temporary file, like a spooled payload, as a block. The file
+	 * is deleted when the last reference to the block is released, unless
+	 * it was moved away before that.
+	 */
+	public static DataBlock spool(File file) throws IOException {
+		return file(new SharedFile(file, true, true));
+	}
+	
+	private static DataBlock file(SharedFile handle) throws IOException {
+		try {
+			return new FileBlock(handle, 0L, handle.length(), true);
+		} catch (IOException e) {
+			handle.rFile.close();
+			throw e;
+		}
 	}
 	
 	
 	private DataBlock() { }
 	
+	private static ByteBuffer range(ByteBuffer data, int offset, int length) {
+		if (offset < 0 || length < 0 || offset + length > data.limit())
+			throw new IndexOutOfBoundsException();
+		
+		final ByteBuffer copy = data.duplicate();
+		copy.limit(offset + length);
+		copy.position(offset);
+		return copy.slice();
+	}
+	
 
 	public void copy(OutputStream out) throws IOException {
 		final byte[] data = new byte[0x1000];
@@ -73,48 +139,132 @@ public abstract class DataBlock implements Closeable {
 	}
 	
 	public void copy(ByteBuffer buffer) throws IOException {
-		if (getLength() > buffer.remaining())
+		final int length = getLength();
+		if (length > buffer.remaining())
 			throw new BufferOverflowException();
 		
-		if (buffer.hasArray()) {
-			final InputStream in = open();
-			try {
+		final InputStream in = open();
+		try {
+			if (buffer.hasArray()) {
 				final byte[] data = buffer.array();
-				int pos = buffer.arrayOffset();
-				int remaining = getLength();
-				int readed = 0;
-				
-				while (readed > 0 && (readed = in.read(data, pos, remaining)) != -1) {
-					buffer.put(data, 0, readed);
-					remaining -= readed;
-					pos += readed;
-				}
-			} finally {
-				in.close();
-			}
-		} else {
-			final byte[] data = new byte[0x1000];
-			final InputStream in = open();
-			try {
+				final int start = buffer.arrayOffset() + buffer.position();
+				int pos = 0;
+				for (int readed = 0; pos < length && (readed = in.read(data, start + pos, length - pos)) != -1; pos += readed);
+				buffer.position(buffer.position() + pos);
+			} else {
+				final byte[] data = new byte[Math.min(length, 0x1000)];
 				for (int readed = 0; (readed = in.read(data, 0, data.length)) != -1; )
 					buffer.put(data, 0, readed);
-			} finally {
-				in.close();
 			}
+		} finally {
+			in.close();
 		}
 	}
 	
+	/**
+	 * Whether the bytes of this block are already held somewhere, in a
+	 * buffer or a file, so {@link #read()} returns them without producing
+	 * a copy.
+	 */
+	public boolean isMaterialized() {
+		return false;
+	}
+	
+	/**
+	 * The heap buffer holding the bytes of this block, or {@code null} if
+	 * there is none. Unlike {@link #read()}, it is writable, so it must
+	 * only be handed to code that just reads it.
+	 */
+	ByteBuffer backing() {
+		return null;
+	}
+	
 	public ByteBuffer read() throws IOException {
 		final byte[] data = new byte[getLength()];
 		final InputStream in = open();
 		try {
-			for (int readed = 0, pos = 0; (readed = in.read(data, pos, data.length - pos)) != -1; pos += readed);
+			for (int readed = 0, pos = 0; pos < data.length && (readed = in.read(data, pos, data.length - pos)) != -1; pos += readed);
 			return ByteBuffer.wrap(data);
 		} finally {
 			in.close();
 		}
 	}
 	
+	/**
+	 * Returns a block over {@code length} bytes of this one starting at
+	 * {@code offset}. Blocks that share their backing storage keep a
+	 * reference to this block until the returned one is released.
+	 */
+	public DataBlock subBlock(int offset, int length) throws IOException {
+		return wrap(range(read(), offset, length));
+	}
+	
+	/**
+	 * Writes the whole block to {@code target}.
+	 * 
+	 * @see #transferTo(WritableByteChannel, int, int)
+	 */
+	public long transferTo(WritableByteChannel target) throws IOException {
+		return transferTo(target, 0, getLength());
+	}
+	
+	/**
+	 * Writes {@code count} bytes of this block starting at {@code offset} to
+	 * {@code target}. File blocks hand the transfer to the kernel (see
+	 * {@link FileChannel#transferTo(long, long, WritableByteChannel)}), so
+	 * the data never reaches the heap when the target allows it.
+	 * 
+	 * @return the number of bytes written, which is less than {@code count}
+	 * 		only if a non-blocking target stopped accepting data
+	 */
+	public long transferTo(WritableByteChannel target, int offset, int count) throws IOException {
+		checkRange(offset, count);
+		
+		final ByteBuffer data = range(read(), offset, count);
+		while (data.hasRemaining()) {
+			if (target.write(data) == 0)
+				break;
+		}
+		
+		return count - data.remaining();
+	}
+	
+	protected final void checkRange(int offset, int length) {
+		if (offset < 0 || length < 0 || offset + length > getLength())
+			throw new IndexOutOfBoundsException();
+	}
+	
+	/**
+	 * Returns the file holding this block data, or {@code null} if it is not
+	 * backed by a file. Storages may adopt it instead of copying the data.
+	 */
+	public File getFile() {
+		return null;
+	}
+	
+	/**
+	 * Acquires a new reference to this block. Only file blocks count them,
+	 * since their file is closed (or deleted) with the last reference; the
+	 * others, and plain {@link #reference(File, int)} blocks, ignore
+	 * reference counting.
+	 * 
+	 * The storage holds the reference a stored payload is created with and
+	 * drops it when the bundle is removed. Whoever keeps a bundle past the
+	 * call that handed it over, like a convergence layer output queue, must
+	 * retain its payload and release it when done. Retaining a block whose
+	 * last reference is gone throws {@link IllegalStateException}: the
+	 * bundle was removed meanwhile and must not be used.
+	 */
+	public DataBlock retain() {
+		return this;
+	}
+	
+	/**
+	 * Releases a reference acquired by {@link #retain()} or the one held
+	 * since creation.
+	 */
+	public void release() { }
+	
 	@Override
 	public void close() throws IOException { }
 	
@@ -123,44 +273,336 @@ public abstract class DataBlock implements Closeable {
 	
 	
 	private static class FileBlock extends DataBlock {
+		private final AtomicInteger pins;
+		private final SharedFile handle;
+		private final boolean whole;
+		private final long offset;
+		private final int length;
+		
+		private FileBlock(SharedFile handle, long offset, int length, boolean whole) {
+			this(handle, offset, length, whole, null);
+		}
+		
+		/**
+		 * With {@code pins} set the block holds no reference of its own and
+		 * only releases the ones acquired by {@link #retain()}.
+		 */
+		private FileBlock(SharedFile handle, long offset, int length, boolean whole, AtomicInteger pins) {
+			this.handle = handle;
+			this.offset = offset;
+			this.length = length;
+			this.whole = whole;
+			this.pins = pins;
+		}
+
+		@Override
+		public InputStream open() throws IOException {
+			return new FileChannelInputStream(handle.channel, offset, offset + length);
+		}
+
+		@Override
+		public int getLength() {
+			return length;
+		}
+		
+		@Override
+		public File getFile() {
+			return whole ? handle.file : null;
+		}
+		
+		@Override
+		public boolean isMaterialized() {
+			return true;
+		}
+		
+		/**
+		 * Maps the region for the caller. A mapping cannot be undone
+		 * explicitly, only when its buffer is collected, so it is not kept
+		 * here: stored blocks would pin their mappings for their lifetime.
+		 */
+		@Override
+		public ByteBuffer read() throws IOException {
+			return handle.channel.map(MapMode.READ_ONLY, offset, length);
+		}
+		
+		@Override
+		public void copy(ByteBuffer buffer) throws IOException {
+			if (length > buffer.remaining())
+				throw new BufferOverflowException();
+			
+			final ByteBuffer dst = buffer.duplicate();
+			dst.limit(dst.position() + length);
+			for (long pos = offset; dst.hasRemaining(); ) {
+				final int readed = handle.channel.read(dst, pos);
+				if (readed == -1)
+					throw new EOFException("File was truncated");
+				
+				pos += readed;
+			}
+			
+			buffer.position(dst.position());
+		}
+		
+		@Override
+		public long transferTo(WritableByteChannel target, int offset, int count) throws IOException {
+			checkRange(offset, count);
+			
+			long position = this.offset + offset;
+			final long end = position + count;
+			while (position < end) {
+				final long sent = handle.channel.transferTo(position, end - position, target);
+				if (sent <= 0)
+					break;
+				
+				position += sent;
+			}
+			
+			return position - this.offset - offset;
+		}
+		
+		@Override
+		public DataBlock subBlock(int offset, int length) {
+			checkRange(offset, length);
+			handle.retain();
+			
+			return new FileBlock(handle, this.offset + offset, length, false);
+		}
+		
+		@Override
+		public DataBlock retain() {
+			handle.retain();
+			if (pins != null)
+				pins.incrementAndGet();
+			
+			return this;
+		}
+		
+		@Override
+		public void release() {
+			if (pins != null) {
+				for (;;) {
+					final int count = pins.get();
+					if (count <= 0)
+						return;
+					
+					if (pins.compareAndSet(count, count - 1))
+						break;
+				}
+			}
+			
+			handle.release();
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (handle.counted)
+				release();
+			else
+				handle.rFile.close();
+		}
+	}
+	
+	
+	/**
+	 * Open file shared by many blocks, each one over a region of it, like
+	 * the records of a storage segment. Every block holds a reference to
+	 * the file, which is only closed (and deleted, if asked) once the
+	 * opener and all of them released theirs. Plain {@link #open(File)}
+	 * blocks are not counted and stay open until explicitly closed.
+	 */
+	public static final class SharedFile {
+		private final AtomicInteger references;
 		private final RandomAccessFile rFile;
 		private final FileChannel channel;
-		private final FileLock lock;
-		private final int length;
+		private final boolean counted;
+		private final boolean delete;
+		private final File file;
 		
-		private FileBlock(File file) throws IOException {
+		/**
+		 * Opens {@code file} holding a single reference, that must be
+		 * dropped by {@link #release()} when no more regions are needed.
+		 */
+		public static SharedFile open(File file, boolean deleteOnRelease) throws IOException {
+			return new SharedFile(file, true, deleteOnRelease);
+		}
+		
+		private SharedFile(File file, boolean counted, boolean delete) throws IOException {
+			this.references = new AtomicInteger(1);
 			this.rFile = new RandomAccessFile(file, "r");
 			this.channel = rFile.getChannel();
-			this.lock = channel.lock();
+			this.counted = counted;
+			this.delete = delete;
+			this.file = file;
+		}
+		
+		public File getFile() {
+			return file;
+		}
+		
+		/**
+		 * Returns a block over {@code length} bytes of the file starting at
+		 * {@code offset}. The region must already be written.
+		 */
+		public DataBlock region(long offset, int length) throws IOException {
+			if (offset < 0 || length < 0 || offset + length > channel.size())
+				throw new IndexOutOfBoundsException();
 			
+			retain();
+			return new FileBlock(this, offset, length, false);
+		}
+		
+		/**
+		 * Returns a block over {@code length} bytes of the file starting at
+		 * {@code offset} that holds no reference to the file, for storages
+		 * that keep the file open while the region is alive. Releasing it
+		 * only drops the references taken by its {@link #retain()}.
+		 */
+		public DataBlock view(long offset, int length) throws IOException {
+			if (offset < 0 || length < 0 || offset + length > channel.size())
+				throw new IndexOutOfBoundsException();
+			
+			return new FileBlock(this, offset, length, false, new AtomicInteger());
+		}
+		
+		private int length() throws IOException {
+			final FileLock lock = channel.lock(0L, Long.MAX_VALUE, true);
 			try {
 				final long length = rFile.length();
 				if (length > Integer.MAX_VALUE)
 					throw new IOException("File is too big");
 				
-				this.length = (int) length;
+				return (int) length;
 			} finally {
 				lock.release();
 			}
 		}
-
+		
+		private void retain() {
+			if (!counted)
+				return;
+			
+			for (;;) {
+				final int refs = references.get();
+				if (refs <= 0)
+					throw new IllegalStateException("Block already released");
+				
+				if (references.compareAndSet(refs, refs + 1))
+					return;
+			}
+		}
+		
+		public void release() {
+			if (!counted)
+				return;
+			
+			final int refs = references.decrementAndGet();
+			if (refs < 0)
+				throw new IllegalStateException("Block already released");
+			
+			if (refs == 0) {
+				try {
+					rFile.close();
+				} catch (IOException e) { }
+				
+				if (delete)
+					file.delete();
+			}
+		}
+	}
+	
+	
+	private static class FileReferenceBlock extends DataBlock {
+		private final AtomicInteger references;
+		private final File file;
+		private final int length;
+		
+		private FileReferenceBlock(File file, int length, boolean counted) {
+			this.references = counted ? new AtomicInteger(1) : null;
+			this.length = length;
+			this.file = file;
+		}
+		
+		@Override
+		public DataBlock retain() {
+			if (references == null)
+				return this;
+			
+			for (;;) {
+				final int refs = references.get();
+				if (refs <= 0)
+					throw new IllegalStateException("Block already released");
+				
+				if (references.compareAndSet(refs, refs + 1))
+					return this;
+			}
+		}
+		
+		@Override
+		public void release() {
+			if (references == null)
+				return;
+			
+			final int refs = references.decrementAndGet();
+			if (refs < 0)
+				throw new IllegalStateException("Block already released");
+			
+			if (refs == 0)
+				file.delete();
+		}
+		
 		@Override
 		public InputStream open() throws IOException {
-			return new FileChannelInputStream(channel);
+			return new FileInputStream(file);
 		}
-
+		
 		@Override
 		public int getLength() {
 			return length;
 		}
-
+		
 		@Override
-		public void close() throws IOException {
+		public File getFile() {
+			return file;
+		}
+		
+		@Override
+		public boolean isMaterialized() {
+			return true;
+		}
+		
+		/**
+		 * The mapping stays valid after the file is closed.
+		 */
+		@Override
+		public ByteBuffer read() throws IOException {
+			final RandomAccessFile rFile = new RandomAccessFile(file, "r");
 			try {
+				return rFile.getChannel().map(MapMode.READ_ONLY, 0, length);
+			} finally {
 				rFile.close();
+			}
+		}
+		
+		@Override
+		public long transferTo(WritableByteChannel target, int offset, int count) throws IOException {
+			checkRange(offset, count);
+			
+			final RandomAccessFile rFile = new RandomAccessFile(file, "r");
+			try {
+				final FileChannel channel = rFile.getChannel();
+				long position = offset;
+				final long end = position + count;
+				while (position < end) {
+					final long sent = channel.transferTo(position, end - position, target);
+					if (sent <= 0)
+						break;
+					
+					position += sent;
+				}
+				
+				return position - offset;
 			} finally {
-				if (lock.isValid())
-					lock.release();
+				rFile.close();
 			}
 		}
 	}
@@ -168,23 +610,56 @@ public abstract class DataBlock implements Closeable {
 	
 	private static class FileChannelInputStream extends InputStream {
 		private final FileChannel channel;
+		private final long end;
+		private ByteBuffer single;
 		private long position;
 		
-		private FileChannelInputStream(FileChannel channel) {
+		private FileChannelInputStream(FileChannel channel, long start, long end) {
 			this.channel = channel;
-			this.position = 0;
+			this.position = start;
+			this.single = null;
+			this.end = end;
 		}
 		
 		@Override
 		public int read(byte[] b, int off, int len) throws IOException {
-			final int readed = channel.read(ByteBuffer.wrap(b, off, len), position);
+			if (position >= end)
+				return -1;
+			
+			final int count = (int) Math.min(len, end - position);
+			final int readed = channel.read(ByteBuffer.wrap(b, off, count), position);
+			if (readed > 0)
+				position += readed;
+			
 			return readed;
 		}
 
 		@Override
 		public int read() throws IOException {
-			final byte[] buf = new byte[1];
-			return read(buf, 0, 1) == -1 ? -1 : buf[0] & 0xFF;
+			if (position >= end)
+				return -1;
+			
+			if (single == null)
+				single = ByteBuffer.allocate(1);
+			
+			single.clear();
+			if (channel.read(single, position) != 1)
+				return -1;
+			
+			position++;
+			return single.get(0) & 0xFF;
+		}
+		
+		@Override
+		public long skip(long n) throws IOException {
+			final long skipped = Math.max(0, Math.min(n, end - position));
+			position += skipped;
+			return skipped;
+		}
+		
+		@Override
+		public int available() throws IOException {
+			return (int) Math.min(Integer.MAX_VALUE, Math.max(0, end - position));
 		}
 	}
 
@@ -211,7 +686,7 @@ public abstract class DataBlock implements Closeable {
 		
 		@Override
 		public void copy(ByteBuffer buffer) throws IOException {
-			buffer.put(data);
+			buffer.put(data.duplicate());
 		}
 
 		@Override
@@ -219,10 +694,25 @@ public abstract class DataBlock implements Closeable {
 			return data.limit();
 		}
 		
+		@Override
+		public boolean isMaterialized() {
+			return true;
+		}
+		
 		@Override
 		public ByteBuffer read() throws IOException {
 			return data.asReadOnlyBuffer();
 		}
+		
+		@Override
+		ByteBuffer backing() {
+			return data.duplicate();
+		}
+		
+		@Override
+		public DataBlock subBlock(int offset, int length) {
+			return new ByteBufferBlock(range(data, offset, length));
+		}
 
 		@Override
 		public InputStream open() {
@@ -240,6 +730,9 @@ public abstract class DataBlock implements Closeable {
 		
 		@Override
 		public int read(byte[] b, int off, int len) throws IOException {
+			if (!data.hasRemaining() && len > 0)
+				return -1;
+			
 			final int min = Math.min(data.remaining(), len);
 			data.get(b, off, min);
 			return min;
@@ -247,7 +740,7 @@ public abstract class DataBlock implements Closeable {
 
 		@Override
 		public int read() throws IOException { 
-			return data.remaining() > 0 ? data.get() : -1;
+			return data.remaining() > 0 ? data.get() & 0xFF : -1;
 		}
 	}
 	
@@ -277,7 +770,12 @@ public abstract class DataBlock implements Closeable {
 
 		@Override
 		public InputStream open() throws IOException {
-			return new MultiSegmentInputStream(segments);
+			// Reading must not consume the block
+			final ByteBuffer[] copy = new ByteBuffer[segments.length];
+			for (int i = 0; i < copy.length; i++)
+				copy[i] = (ByteBuffer) segments[i].duplicate().rewind();
+			
+			return new MultiSegmentInputStream(copy);
 		}
 
 		@Override
@@ -347,12 +845,18 @@ public abstract class DataBlock implements Closeable {
 			data.serialize(buffer);
 		}
 
+		@Override
+		public ByteBuffer read() throws IOException {
+			final ByteBuffer buffer = ByteBuffer.allocate(getLength());
+			data.serialize(buffer);
+			buffer.flip();
+			return buffer;
+		}
+
 		@Override
 		public InputStream open() throws IOException {
-			final byte[] data = new byte[getLength()];
-			copy(ByteBuffer.wrap(data));
-			
-			return new ByteArrayInputStream(data);
+			final ByteBuffer buffer = read();
+			return new ByteArrayInputStream(buffer.array(), 0, buffer.limit());
 		}
 
 		@Override
@@ -17,210 +17,473 @@
  */
 package br.ufpa.adtn.util;
 
+import java.util.PriorityQueue;
+import java.util.Queue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
 
 import br.ufpa.adtn.core.BPAgent;
 
 /**
- *
+ * Runs events, one at a time, in its own thread.
+ * 
+ * Events are passed to the thread through a lock free ring buffer, written
+ * by any number of threads and drained in batches by the queue thread.
+ * Delayed events go through the ring as well and wait in a heap kept by
+ * the queue thread itself. {@link #fire(Event)} posts an event without
+ * allocating anything else; the other methods wrap it in a future.
+ * 
+ * Producers never wait: while the ring is full, events overflow to a linked
+ * queue, which is only taken when the ring is empty and which takes every
+ * new event until it is empty too, so each producer keeps its order.
  *
  * @author Dórian Langbeck
  */
 public class EventQueue {
 	private static final AtomicInteger COUNT = new AtomicInteger();
-    private final ScheduledThreadPoolExecutor executor;
-    private final SingleThreadFactory singleFactory;
+	private static final int CAPACITY = 4096;
+	private static final int BATCH = 256;
+	
+	private final AtomicReferenceArray<Object> ring;
+	private final Queue<Object> overflow;
+	private final AtomicLong tail;
+	private final AtomicLong head;
+	private final AtomicBoolean started;
+	private final boolean autostart;
+	private final Thread thread;
 	private final Logger LOGGER;
-    private final String name;
-    
+	private final String name;
+	private volatile boolean sleeping;
+	
+	/*
+	 * Owned by the queue thread.
+	 */
+	private final PriorityQueue<Task<?>> timers;
+	private long sequence;
+	
 
-    public EventQueue(Logger parent, String name) {
-    	this(name, parent, Thread.MIN_PRIORITY);
-    }
-    
-    public EventQueue(String name) {
-    	this(name, null, Thread.MIN_PRIORITY);
-    }
+	public EventQueue(Logger parent, String name) {
+		this(name, parent, Thread.MIN_PRIORITY);
+	}
+	
+	public EventQueue(String name) {
+		this(name, null, Thread.MIN_PRIORITY);
+	}
 
-    public EventQueue() {
-        this(null, null, Thread.MIN_PRIORITY);
-    }
-    
-    public EventQueue(int priority) {
-        this(null, null, priority);
-    }
-    
-    public EventQueue(boolean autostart) {
-        this(null, null, Thread.MIN_PRIORITY, autostart);
-    }
-    
-    public EventQueue(String name, Logger parent, final int prioriry) {
-    	this(name, parent, prioriry, true);
-    }
-    
-    public EventQueue(String name, Logger parent, final int prioriry, boolean autostart) {
+	public EventQueue() {
+		this(null, null, Thread.MIN_PRIORITY);
+	}
+	
+	public EventQueue(int priority) {
+		this(null, null, priority);
+	}
+	
+	public EventQueue(boolean autostart) {
+		this(null, null, Thread.MIN_PRIORITY, autostart);
+	}
+	
+	public EventQueue(String name, Logger parent, final int prioriry) {
+		this(name, parent, prioriry, true);
+	}
+	
+	public EventQueue(String name, Logger parent, final int prioriry, boolean autostart) {
 		this.name = (name == null) ? "EventQueue#" + COUNT.getAndIncrement() : name;
-		this.singleFactory = new SingleThreadFactory(!autostart);
 		this.LOGGER = new Logger(parent, this.name);
 		
-        this.executor = new ScheduledThreadPoolExecutor(1, singleFactory);
-    }
-    
-    public void start() {
-    	singleFactory.startThread();
-    }
+		this.ring = new AtomicReferenceArray<Object>(CAPACITY);
+		this.tail = new AtomicLong();
+		this.head = new AtomicLong();
+		this.started = new AtomicBoolean();
+		this.autostart = autostart;
+		this.timers = new PriorityQueue<Task<?>>();
+		this.overflow = new ConcurrentLinkedQueue<Object>();
+		this.sequence = 0;
+		this.thread = new Thread(this.name) {
+			
+			@Override
+			public void run() {
+				consume();
+			}
+		};
+	}
+	
+	/**
+	 * Starts the queue thread of a queue not started automatically. Events
+	 * posted before wait for it.
+	 */
+	public void start() {
+		if (autostart)
+			throw new RuntimeException("Not locked");
+		
+		if (started.compareAndSet(false, true))
+			thread.start();
+	}
 
-    public boolean isOnInternalThread() {
-        return Thread.currentThread() == singleFactory.getThread();
-    }
-    
-    public void checkSync() {
-    	if (Thread.currentThread() != singleFactory.getThread())
-    		throw new IllegalAccessError(String.format(
-    				"This method must run inside %s thread",
-    				name
+	public boolean isOnInternalThread() {
+		return Thread.currentThread() == thread;
+	}
+	
+	public void checkSync() {
+		if (Thread.currentThread() != thread)
+			throw new IllegalAccessError(String.format(
+					"This method must run inside %s thread",
+					name
 			));
-    }
-    
-    public Future<?> schedule(Runnable r, long delay, TimeUnit unit) {
-    	if (BPAgent.isSimulated()) {
-    		final double scale = BPAgent.getSimulationConfig().getTimescale();
-    		final long millis = unit.toMillis(delay);
-    		delay = (long) (millis * scale);
-    		unit = TimeUnit.MILLISECONDS;
-    		
-//    		LOGGER.v(String.format(
-//    				"EventQueue in SIMULATED mode: %d ms --> %d ms",
-//    				millis, delay
-//			));
-    	}
-    	
-    	if (!isOnInternalThread())
-    		return executor.schedule(r, delay, unit);
-    	
-    	return UnblockingFuture.create(executor.schedule(r, delay, unit));
-    }
+	}
+	
+	/**
+	 * Posts {@code event} without a future to follow it. Failures go to
+	 * {@link #unhandledExceptionCacther(Throwable)}.
+	 */
+	public void fire(Event event) {
+		if (event == null)
+			throw new NullPointerException();
+		
+		enqueue(event);
+	}
+	
+	public Future<?> schedule(Runnable r, long delay, TimeUnit unit) {
+		return schedule(new Task<Object>(r), delay, unit);
+	}
 
-    public Future<?> schedule(Event e, long delay, TimeUnit unit) {
-    	return schedule(new EventRunner(e), delay, unit);
-    }
+	public Future<?> schedule(Event e, long delay, TimeUnit unit) {
+		return schedule(new Task<Object>(e), delay, unit);
+	}
 
-    public Future<?> post(Event event) {
-    	if (!isOnInternalThread())
-    		return executor.submit(new EventRunner(event));
-    	
-    	return UnblockingFuture.create(executor.submit(new EventRunner(event)));
-    }
-    
-    public void postAndWait(Runnable r) throws ExecutionException {
-    	if (isOnInternalThread()) {
-    		r.run();
-    		return;
-    	}
-    	
-        try {
-        	executor.submit(r).get();
-        } catch (InterruptedException e) {
-            unhandledExceptionCacther(e);
-        }
-    }
-        
-    public <T> T submit(Callable<T> c) throws ExecutionException {
-    	if (isOnInternalThread()) {
-    		try {
+	public Future<?> post(Event event) {
+		final Task<Object> task = new Task<Object>(event);
+		enqueue(task);
+		return task;
+	}
+	
+	public void postAndWait(Runnable r) throws ExecutionException {
+		if (isOnInternalThread()) {
+			r.run();
+			return;
+		}
+		
+		final Task<Object> task = new Task<Object>(r);
+		enqueue(task);
+		try {
+			task.get();
+		} catch (InterruptedException e) {
+			unhandledExceptionCacther(e);
+		}
+	}
+		
+	public <T> T submit(Callable<T> c) throws ExecutionException {
+		if (isOnInternalThread()) {
+			try {
 				return c.call();
 			} catch (Exception e) {
 				throw new ExecutionException(e);
 			}
-    	}
-    	
-        try {
-            return executor.submit(c).get();
-        } catch (InterruptedException e) {
-            throw new ExecutionException(e);
-        }
-    }
-    
-    public String getName() {
-    	return name;
-    }
+		}
+		
+		final Task<T> task = new Task<T>(c);
+		enqueue(task);
+		try {
+			return task.get();
+		} catch (InterruptedException e) {
+			throw new ExecutionException(e);
+		}
+	}
+	
+	public String getName() {
+		return name;
+	}
 
-    protected void unhandledExceptionCacther(Throwable t) {
-    	LOGGER.e("Unhandled exception", t);
-    }
-    
-    private class EventRunner implements Runnable {
-    	private final Event event;
-    	
-    	public EventRunner(Event event) {
-    		this.event = event;
-    	}
+	protected void unhandledExceptionCacther(Throwable t) {
+		LOGGER.e("Unhandled exception", t);
+	}
+	
+	private Future<?> schedule(Task<Object> task, long delay, TimeUnit unit) {
+		if (BPAgent.isSimulated()) {
+			final double scale = BPAgent.getSimulationConfig().getTimescale();
+			final long millis = unit.toMillis(delay);
+			delay = (long) (millis * scale);
+			unit = TimeUnit.MILLISECONDS;
+		}
+		
+		if (delay > 0) {
+			task.deadline = System.nanoTime() + unit.toNanos(delay);
+			task.delayed = true;
+		}
+		
+		enqueue(task);
+		return task;
+	}
+	
+	private void enqueue(Object item) {
+		if (!started.get() && autostart && started.compareAndSet(false, true))
+			thread.start();
+		
+		if (!overflow.isEmpty()) {
+			overflow.add(item);
+		} else {
+			while (true) {
+				final long t = tail.get();
+				if (t - head.get() >= CAPACITY) {
+					overflow.add(item);
+					break;
+				}
+				
+				if (tail.compareAndSet(t, t + 1)) {
+					ring.set((int) t & (CAPACITY - 1), item);
+					break;
+				}
+			}
+		}
+		
+		if (sleeping)
+			LockSupport.unpark(thread);
+	}
+	
+	/**
+	 * Queue thread loop: runs the due timers, then a batch of the posted
+	 * events, sleeping until the next deadline when there is nothing to do.
+	 */
+	private void consume() {
+		while (true) {
+			runTimers();
+			if (drain() > 0)
+				continue;
+			
+			sleeping = true;
+			if (ring.get((int) head.get() & (CAPACITY - 1)) == null && overflow.isEmpty()) {
+				final Task<?> next = timers.peek();
+				if (next == null)
+					LockSupport.park(this);
+				else
+					LockSupport.parkNanos(this, next.deadline - System.nanoTime());
+				
+				// Nothing interrupts this thread on purpose
+				Thread.interrupted();
+			}
+			
+			sleeping = false;
+		}
+	}
+	
+	private int drain() {
+		long h = head.get();
+		int count = 0;
+		while (count < BATCH) {
+			final int index = (int) h & (CAPACITY - 1);
+			final Object item = ring.get(index);
+			if (item == null)
+				break;
+			
+			ring.lazySet(index, null);
+			head.lazySet(++h);
+			dispatch(item);
+			count++;
+		}
+		
+		/*
+		 * Only taken when the ring is empty, to keep their order; a slot
+		 * reserved but not written yet still counts.
+		 */
+		if (count == 0 && tail.get() == h) {
+			Object item;
+			while (count < BATCH && (item = overflow.poll()) != null) {
+				dispatch(item);
+				count++;
+			}
+		}
+		
+		return count;
+	}
+	
+	private void runTimers() {
+		if (timers.isEmpty())
+			return;
+		
+		final long now = System.nanoTime();
+		Task<?> task;
+		while ((task = timers.peek()) != null && task.deadline - now <= 0) {
+			timers.poll();
+			task.run();
+		}
+	}
+	
+	private void dispatch(Object item) {
+		if (item instanceof Event) {
+			execute((Event) item);
+			return;
+		}
+		
+		final Task<?> task = (Task<?>) item;
+		if (task.delayed && task.deadline - System.nanoTime() > 0) {
+			if (!task.isDone()) {
+				task.sequence = sequence++;
+				timers.add(task);
+			}
+			
+			return;
+		}
+		
+		task.run();
+	}
+	
+	private void execute(Event event) {
+		try {
+			event.execute();
+		} catch (Throwable t) {
+			unhandledExceptionCacther(t);
+		}
+	}
+	
 
-		@Override
+	@SuppressWarnings("rawtypes")
+	private static final AtomicIntegerFieldUpdater<Task> STATE =
+			AtomicIntegerFieldUpdater.newUpdater(Task.class, "state");
+	
+	private static final int NEW		= 0;
+	private static final int RUNNING	= 1;
+	private static final int DONE		= 2;
+	private static final int CANCELLED	= 3;
+	
+	/**
+	 * Future of an event, runnable or callable run by this queue. Events
+	 * report failures to {@link EventQueue#unhandledExceptionCacther(Throwable)}
+	 * while the others report them through {@link #get()}, which can not
+	 * block inside the queue thread.
+	 */
+	private class Task<T> implements Future<T>, Comparable<Task<?>> {
+		private final Object action;
+		private boolean delayed;
+		private long deadline;
+		private long sequence;
+		private Throwable error;
+		private T result;
+		
+		/*
+		 * Not private, for the field updater.
+		 */
+		volatile int state;
+		
+		public Task(Object action) {
+			this.action = action;
+			this.delayed = false;
+			this.state = NEW;
+		}
+		
+		@SuppressWarnings("unchecked")
 		public void run() {
+			if (!STATE.compareAndSet(this, NEW, RUNNING))
+				return;
+			
 			try {
-				event.execute();
+				if (action instanceof Event)
+					execute((Event) action);
+				else if (action instanceof Callable)
+					result = ((Callable<T>) action).call();
+				else
+					((Runnable) action).run();
 			} catch (Throwable t) {
-				unhandledExceptionCacther(t);
+				error = t;
+			}
+			
+			synchronized (this) {
+				state = DONE;
+				notifyAll();
 			}
 		}
-    }
-    
-
-    private static class UnblockingFuture<T> implements Future<T> {
-    	
-    	public static <T> UnblockingFuture<T> create(Future<T> future) {
-    		return new UnblockingFuture<T>(future);
-    	}
-    	
-    	
-    	private final Future<T> future;
-    	
-    	public UnblockingFuture(Future<T> future) {
-    		this.future = future;
-    	}
 
 		@Override
 		public boolean cancel(boolean mayInterruptIfRunning) {
-			return future.cancel(mayInterruptIfRunning);
+			if (!STATE.compareAndSet(this, NEW, CANCELLED))
+				return false;
+			
+			synchronized (this) {
+				notifyAll();
+			}
+			
+			return true;
 		}
 
 		@Override
 		public boolean isCancelled() {
-			return future.isCancelled();
+			return state == CANCELLED;
 		}
 
 		@Override
 		public boolean isDone() {
-			return future.isDone();
+			return state >= DONE;
 		}
 
 		@Override
 		public T get() throws InterruptedException, ExecutionException {
-			if (future.isDone())
-				return future.get();
+			if (!isDone()) {
+				checkBlocking();
+				synchronized (this) {
+					while (!isDone())
+						wait();
+				}
+			}
 			
-			throw new UnsupportedOperationException("Can not block when running inside the same EventQueue");
+			return report();
 		}
 
 		@Override
 		public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
-			if (future.isDone())
-				return future.get();
+			if (!isDone()) {
+				checkBlocking();
+				final long end = System.nanoTime() + unit.toNanos(timeout);
+				synchronized (this) {
+					long left;
+					while (!isDone()) {
+						if ((left = end - System.nanoTime()) <= 0)
+							throw new TimeoutException();
+						
+						TimeUnit.NANOSECONDS.timedWait(this, left);
+					}
+				}
+			}
+			
+			return report();
+		}
+
+		@Override
+		public int compareTo(Task<?> other) {
+			final long r = deadline - other.deadline;
+			if (r != 0)
+				return r < 0 ? -1 : 1;
 			
-			throw new UnsupportedOperationException("Can not block when running inside the same EventQueue");
-		}
-    }
-    
-    
-    public static abstract class Event {
-    	
-    	public abstract void execute() throws Throwable;
-    }
+			return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+		}
+		
+		private void checkBlocking() {
+			if (isOnInternalThread())
+				throw new UnsupportedOperationException("Can not block when running inside the same EventQueue");
+		}
+		
+		private T report() throws ExecutionException {
+			if (state == CANCELLED)
+				throw new CancellationException();
+			
+			if (error != null)
+				throw new ExecutionException(error);
+			
+			return result;
+		}
+	}
+	
+	
+	public static abstract class Event {
+		
+		public abstract void execute() throws Throwable;
+	}
 }
@@ -0,0 +1,117 @@
+/**
+ * Amazon-DTN - Lightweight Delay Tolerant Networking Implementation
+ * Copyright (C) 2013  Dórian C. Langbeck
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package br.ufpa.adtn.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+/**
+ * Writes the segments of a {@link ChainOfSegments} to a channel with
+ * gathering writes, without joining or copying them.
+ * 
+ * A single {@link #write(GatheringByteChannel)} call may write only part of
+ * the data when the channel is non-blocking; the writer keeps its position,
+ * so it can simply be called again when the channel is ready.
+ */
+public final class GatheringWriter {
+	private final ByteBuffer[] segments;
+	private long remaining;
+	private long written;
+	private int index;
+	
+	public GatheringWriter(ChainOfSegments chain) {
+		this(chain.getSegments());
+	}
+	
+	public GatheringWriter(ByteBuffer[] segments) {
+		this.segments = new ByteBuffer[segments.length];
+		this.remaining = 0L;
+		this.written = 0L;
+		this.index = 0;
+		
+		for (int i = 0; i < segments.length; i++) {
+			this.segments[i] = segments[i].duplicate();
+			remaining += segments[i].remaining();
+		}
+		
+		skipDrained();
+	}
+	
+	public long write(GatheringByteChannel channel) throws IOException {
+		return write(channel, Long.MAX_VALUE);
+	}
+	
+	/**
+	 * Writes at most {@code max} bytes to {@code channel}.
+	 * 
+	 * @return the number of bytes written, possibly zero
+	 */
+	public long write(GatheringByteChannel channel, long max) throws IOException {
+		if (index == segments.length || max <= 0)
+			return 0;
+		
+		int end = index;
+		long budget = max;
+		while (end < segments.length && budget > 0)
+			budget -= segments[end++].remaining();
+		
+		final ByteBuffer last = segments[end - 1];
+		final int limit = last.limit();
+		if (budget < 0)
+			last.limit(limit + (int) budget);
+		
+		final long count;
+		try {
+			count = channel.write(segments, index, end - index);
+		} finally {
+			last.limit(limit);
+		}
+		
+		remaining -= count;
+		written += count;
+		skipDrained();
+		
+		return count;
+	}
+	
+	/**
+	 * Writes everything left, looping while the channel accepts data.
+	 */
+	public void writeFully(GatheringByteChannel channel) throws IOException {
+		while (index < segments.length)
+			write(channel);
+	}
+	
+	public boolean isDone() {
+		return index == segments.length;
+	}
+	
+	public long getRemaining() {
+		return remaining;
+	}
+	
+	public long getWritten() {
+		return written;
+	}
+	
+	private void skipDrained() {
+		while (index < segments.length && !segments[index].hasRemaining())
+			index++;
+	}
+}
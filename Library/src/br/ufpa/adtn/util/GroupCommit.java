@@ -0,0 +1,332 @@
+/**
+ * Amazon-DTN - Lightweight Delay Tolerant Networking Implementation
+ * Copyright (C) 2013  Dórian C. Langbeck
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package br.ufpa.adtn.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Makes many writes durable with a single sync. Writers report each write
+ * with {@link #submit()} and get a future completed once a commit started
+ * after it finishes. Commits run on a thread of their own, at most
+ * {@code maxDelay} milliseconds after the first write they cover or as
+ * soon as {@code maxBatch} writes are waiting, so a burst of writes costs
+ * a few syncs instead of one each.
+ */
+public class GroupCommit {
+	private static final Logger LOGGER = new Logger("GroupCommit");
+	
+	/**
+	 * Future of a commit with nothing to wait for.
+	 */
+	public static final Future<Void> DONE;
+	
+	static {
+		final Batch done = new Batch(null);
+		done.complete(null);
+		DONE = done;
+	}
+	
+	/**
+	 * Runs {@code action} once {@code commit} succeeds, right away if it
+	 * already did. Actions of a failed commit made by this class wait for
+	 * the next one, which retries the writes, and are dropped if it was
+	 * closed. They run on its thread and must be short. Other futures are
+	 * waited for, and the action is skipped if they fail.
+	 */
+	public static void whenDone(Future<Void> commit, Runnable action) {
+		if (commit instanceof Batch) {
+			if (((Batch) commit).then(action))
+				return;
+		} else {
+			try {
+				commit.get();
+			} catch (ExecutionException e) {
+				// Reported by whoever failed it
+				return;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+		
+		action.run();
+	}
+	
+	public static interface Committer {
+		
+		/**
+		 * Makes every write reported so far durable.
+		 */
+		public void commit() throws IOException;
+	}
+	
+	
+	private final Committer committer;
+	private final Thread thread;
+	private final long maxDelay;
+	private final int maxBatch;
+	private Batch committing;
+	private boolean closed;
+	private Batch current;
+	private long firstAt;
+	private int pending;
+	
+	public GroupCommit(String name, Committer committer, int maxBatch, long maxDelay) {
+		if (committer == null)
+			throw new NullPointerException();
+		
+		if (maxBatch <= 0 || maxDelay < 0)
+			throw new IllegalArgumentException();
+		
+		this.committer = committer;
+		this.maxBatch = maxBatch;
+		this.maxDelay = maxDelay;
+		this.current = new Batch(this);
+		this.closed = false;
+		this.pending = 0;
+		
+		this.thread = new Thread(new Runnable() {
+			
+			@Override
+			public void run() {
+				loop();
+			}
+		}, name);
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+	
+	/**
+	 * Reports a write and returns the future of the commit covering it.
+	 */
+	public synchronized Future<Void> submit() {
+		if (closed)
+			throw new IllegalStateException("Closed");
+		
+		if (pending++ == 0) {
+			firstAt = System.currentTimeMillis();
+			notifyAll();
+		} else if (pending >= maxBatch) {
+			notifyAll();
+		}
+		
+		return current;
+	}
+	
+	/**
+	 * Returns the future of the commit covering every write reported so
+	 * far.
+	 */
+	public synchronized Future<Void> getPending() {
+		if (pending > 0)
+			return current;
+		
+		// Writes taken by the commit running now
+		return committing == null ? DONE : committing;
+	}
+	
+	/**
+	 * Commits what is still waiting and stops the commit thread.
+	 */
+	public void close() {
+		synchronized (this) {
+			if (closed)
+				return;
+			
+			closed = true;
+			notifyAll();
+		}
+		
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	private void loop() {
+		while (true) {
+			final Batch batch;
+			synchronized (this) {
+				try {
+					while (pending == 0 && !closed)
+						wait();
+					
+					for (long left; pending > 0 && pending < maxBatch && !closed &&
+							(left = firstAt + maxDelay - System.currentTimeMillis()) > 0; )
+						wait(left);
+				} catch (InterruptedException e) {
+					closed = true;
+				}
+				
+				if (pending == 0 && closed)
+					return;
+				
+				batch = current;
+				committing = batch;
+				current = new Batch(this);
+				pending = 0;
+			}
+			
+			Throwable error = null;
+			try {
+				committer.commit();
+			} catch (Throwable t) {
+				LOGGER.e("Commit failure", t);
+				error = t;
+			}
+			
+			synchronized (this) {
+				committing = null;
+			}
+			
+			batch.complete(error);
+		}
+	}
+	
+	/**
+	 * Keeps the actions of a failed commit for the next one and makes sure
+	 * there is one, since the committer still has the failed writes.
+	 */
+	private synchronized void retry(List<Runnable> actions) {
+		if (closed) {
+			LOGGER.w(String.format("%d actions of a failed commit dropped", actions.size()));
+			return;
+		}
+		
+		for (Runnable action : actions)
+			current.then(action);
+		
+		if (pending++ == 0) {
+			firstAt = System.currentTimeMillis();
+			notifyAll();
+		}
+	}
+	
+	
+	private static class Batch implements Future<Void> {
+		private final GroupCommit owner;
+		private List<Runnable> actions;
+		private Throwable error;
+		private boolean done;
+		
+		private Batch(GroupCommit owner) {
+			this.owner = owner;
+		}
+		
+		private void complete(Throwable error) {
+			final List<Runnable> actions;
+			synchronized (this) {
+				this.error = error;
+				this.done = true;
+				actions = this.actions;
+				this.actions = null;
+				notifyAll();
+			}
+			
+			if (actions == null)
+				return;
+			
+			if (error != null) {
+				owner.retry(actions);
+				return;
+			}
+			
+			for (Runnable action : actions) {
+				try {
+					action.run();
+				} catch (Throwable t) {
+					LOGGER.e("Commit action failure", t);
+				}
+			}
+		}
+		
+		/**
+		 * Keeps {@code action} to be run on success. Returns {@code false}
+		 * if it already succeeded.
+		 */
+		private boolean then(Runnable action) {
+			synchronized (this) {
+				if (!done) {
+					if (actions == null)
+						actions = new ArrayList<Runnable>();
+					
+					actions.add(action);
+					return true;
+				}
+				
+				if (error == null)
+					return false;
+			}
+			
+			owner.retry(Collections.singletonList(action));
+			return true;
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			return false;
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return false;
+		}
+
+		@Override
+		public synchronized boolean isDone() {
+			return done;
+		}
+
+		@Override
+		public synchronized Void get() throws InterruptedException, ExecutionException {
+			while (!done)
+				wait();
+			
+			return result();
+		}
+
+		@Override
+		public synchronized Void get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+			final long deadline = System.nanoTime() + unit.toNanos(timeout);
+			while (!done) {
+				final long left = deadline - System.nanoTime();
+				if (left <= 0)
+					throw new TimeoutException();
+				
+				TimeUnit.NANOSECONDS.timedWait(this, left);
+			}
+			
+			return result();
+		}
+		
+		private Void result() throws ExecutionException {
+			if (error != null)
+				throw new ExecutionException(error);
+			
+			return null;
+		}
+	}
+}
@@ -0,0 +1,96 @@
+/**
+ * Amazon-DTN - Lightweight Delay Tolerant Networking Implementation
+ * Copyright (C) 2013  Dórian C. Langbeck
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package br.ufpa.adtn.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+
+/**
+ * Blocking {@link GatheringByteChannel} over an {@link OutputStream}, for
+ * convergence layers that only have streams. Buffers backed by an
+ * accessible array are handed to the stream as they are; any other buffer
+ * goes through a small transfer array.
+ */
+public class OutputStreamChannel implements GatheringByteChannel {
+	private final OutputStream out;
+	private byte[] transfer;
+	private boolean open;
+	
+	public OutputStreamChannel(OutputStream out) {
+		if (out == null)
+			throw new NullPointerException();
+		
+		this.transfer = null;
+		this.open = true;
+		this.out = out;
+	}
+
+	@Override
+	public int write(ByteBuffer src) throws IOException {
+		if (!open)
+			throw new ClosedChannelException();
+		
+		final int length = src.remaining();
+		if (src.hasArray()) {
+			out.write(src.array(), src.arrayOffset() + src.position(), length);
+			src.position(src.limit());
+			return length;
+		}
+		
+		if (transfer == null)
+			transfer = new byte[0x2000];
+		
+		while (src.hasRemaining()) {
+			final int count = Math.min(transfer.length, src.remaining());
+			src.get(transfer, 0, count);
+			out.write(transfer, 0, count);
+		}
+		
+		return length;
+	}
+
+	@Override
+	public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+		long count = 0;
+		for (int i = offset, end = offset + length; i < end; i++)
+			count += write(srcs[i]);
+		
+		return count;
+	}
+
+	@Override
+	public long write(ByteBuffer[] srcs) throws IOException {
+		return write(srcs, 0, srcs.length);
+	}
+
+	@Override
+	public boolean isOpen() {
+		return open;
+	}
+
+	/**
+	 * Closes this channel without closing the underlying stream.
+	 */
+	@Override
+	public void close() throws IOException {
+		open = false;
+	}
+}
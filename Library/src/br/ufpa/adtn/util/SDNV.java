@@ -17,24 +17,27 @@
  */
 package br.ufpa.adtn.util;
 
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 
+/**
+ * Self-Delimiting Numeric Values (RFC 5050, section 4.1).
+ * 
+ * Every value is encoded as big-endian groups of 7 bits where all bytes but
+ * the last one have the most significant bit set. Negative numbers are
+ * encoded as their unsigned counterparts.
+ * 
+ * Besides the {@link ByteBuffer} based methods this class can read and write
+ * raw {@code byte[]} arrays and decode many consecutive values at once, which
+ * avoids the per-byte bounds checks of {@link ByteBuffer#get()} when parsing
+ * primary blocks.
+ */
 public final class SDNV {
 	private SDNV() { }
 
 	public static void encodeShort(ByteBuffer buf, short value) {
-		if (value < 0 || value > 0x3FFF) {
-			buf.put((byte) ((value >> 0x0E) | 0x80));
-			buf.put((byte) ((value >> 0x07) | 0x80));
-			buf.put((byte) (value & 0x7F));
-		} else if (value <= 0x7F) {
-			buf.put((byte) (value & 0x7F));
-		} else if (value <= 0x3FFF) {
-			buf.put((byte) ((value >> 0x07) | 0x80));
-			buf.put((byte) (value & 0x7F));
-		} else {
-			throw new InternalError();
-		}
+		writeShort(buf, value);
 	}
 	
 	public static int writeShort(ByteBuffer buf, short value) {
@@ -46,222 +49,125 @@ public final class SDNV {
 		} else if (value <= 0x7F) {
 			buf.put((byte) (value & 0x7F));
 			return 1;
-		} else if (value <= 0x3FFF) {
+		} else {
 			buf.put((byte) ((value >> 0x07) | 0x80));
 			buf.put((byte) (value & 0x7F));
 			return 2;
-		} else {
-			throw new InternalError();
 		}
 	}
 	
 	public static void encodeInt(ByteBuffer buf, int value) {
-		if (value < 0 || value > 0xFFFFFFF)	{
-			buf.put((byte) ((value >> 0x1C) | 0x80));
-			buf.put((byte) ((value >> 0x15) | 0x80));
-			buf.put((byte) ((value >> 0x0E) | 0x80));
-			buf.put((byte) ((value >> 0x07) | 0x80));
-			buf.put((byte) (value & 0x7F));
-		} else if (value <= 0x7F) {
-			buf.put((byte) (value & 0x7F));
-		} else if (value <= 0x3FFF) {
-			buf.put((byte) ((value >> 0x07) | 0x80));
-			buf.put((byte) (value & 0x7F));
-		} else if (value <= 0x1FFFFF) {
-			buf.put((byte) ((value >> 0x0E) | 0x80));
-			buf.put((byte) ((value >> 0x07) | 0x80));
-			buf.put((byte) (value & 0x7F));
-		} else if (value <= 0xFFFFFFF) {
-			buf.put((byte) ((value >> 0x15) | 0x80));
-			buf.put((byte) ((value >> 0x0E) | 0x80));
-			buf.put((byte) ((value >> 0x07) | 0x80));
-			buf.put((byte) (value & 0x7F));
-		} else {
-			throw new InternalError();
-		}
+		writeInt(buf, value);
 	}
 
+	@SuppressWarnings("fallthrough")
 	public static int writeInt(ByteBuffer buf, int value) {
-		if (value < 0 || value > 0xFFFFFFF)	{
-			buf.put((byte) ((value >> 0x1C) | 0x80));
-			buf.put((byte) ((value >> 0x15) | 0x80));
-			buf.put((byte) ((value >> 0x0E) | 0x80));
-			buf.put((byte) ((value >> 0x07) | 0x80));
-			buf.put((byte) (value & 0x7F));
-			return 5;
-		} else if (value <= 0x7F) {
-			buf.put((byte) (value & 0x7F));
+		if ((value & ~0x7F) == 0) {
+			buf.put((byte) value);
 			return 1;
-		} else if (value <= 0x3FFF) {
-			buf.put((byte) ((value >> 0x07) | 0x80));
-			buf.put((byte) (value & 0x7F));
-			return 2;
-		} else if (value <= 0x1FFFFF) {
-			buf.put((byte) ((value >> 0x0E) | 0x80));
-			buf.put((byte) ((value >> 0x07) | 0x80));
-			buf.put((byte) (value & 0x7F));
-			return 3;
-		} else if (value <= 0xFFFFFFF) {
-			buf.put((byte) ((value >> 0x15) | 0x80));
-			buf.put((byte) ((value >> 0x0E) | 0x80));
-			buf.put((byte) ((value >> 0x07) | 0x80));
+		}
+		
+		final int len = length(value);
+		switch (len) {
+		case 5: buf.put((byte) ((value >>> 0x1C) | 0x80)); // fall through
+		case 4: buf.put((byte) ((value >>> 0x15) | 0x80)); // fall through
+		case 3: buf.put((byte) ((value >>> 0x0E) | 0x80)); // fall through
+		default:
+			buf.put((byte) ((value >>> 0x07) | 0x80));
 			buf.put((byte) (value & 0x7F));
-			return 4;
-		} else {
-			throw new InternalError();
 		}
+		
+		return len;
 	}
 
 	public static void encodeLong(ByteBuffer buf, long value) {
-		if (value < 0L) {
-			buf.put((byte) ((value >> 0x3F) | 0x80));
-			buf.put((byte) ((value >> 0x38) | 0x80));
-			buf.put((byte) ((value >> 0x31) | 0x80));
-			buf.put((byte) ((value >> 0x2A) | 0x80));
-			buf.put((byte) ((value >> 0x23) | 0x80));
-			buf.put((byte) ((value >> 0x1C) | 0x80));
-			buf.put((byte) ((value >> 0x15) | 0x80));
-			buf.put((byte) ((value >> 0x0E) | 0x80));
-			buf.put((byte) ((value >> 0x07) | 0x80));
-			buf.put((byte) (value & 0x7F));
-		} else if (value <= 0x7FL) {
-			buf.put((byte) (value & 0x7F));
-		} else if (value <= 0x3FFFL) {
-			buf.put((byte) ((value >> 0x07) | 0x80));
-			buf.put((byte) (value & 0x7F));
-		} else if (value <= 0x1FFFFFL) {
-			buf.put((byte) ((value >> 0x0E) | 0x80));
-			buf.put((byte) ((value >> 0x07) | 0x80));
-			buf.put((byte) (value & 0x7F));
-		} else if (value <= 0xFFFFFFFL) {
-			buf.put((byte) ((value >> 0x15) | 0x80));
-			buf.put((byte) ((value >> 0x0E) | 0x80));
-			buf.put((byte) ((value >> 0x07) | 0x80));
-			buf.put((byte) (value & 0x7F));
-		} else if (value <= 0x7FFFFFFFFL) {
-			buf.put((byte) ((value >> 0x1C) | 0x80));
-			buf.put((byte) ((value >> 0x15) | 0x80));
-			buf.put((byte) ((value >> 0x0E) | 0x80));
-			buf.put((byte) ((value >> 0x07) | 0x80));
-			buf.put((byte) (value & 0x7F));
-		} else if (value <= 0x3FFFFFFFFFFL) {
-			buf.put((byte) ((value >> 0x23) | 0x80));
-			buf.put((byte) ((value >> 0x1C) | 0x80));
-			buf.put((byte) ((value >> 0x15) | 0x80));
-			buf.put((byte) ((value >> 0x0E) | 0x80));
-			buf.put((byte) ((value >> 0x07) | 0x80));
-			buf.put((byte) (value & 0x7F));
-		} else if (value <= 0x1FFFFFFFFFFFFL) {
-			buf.put((byte) ((value >> 0x2A) | 0x80));
-			buf.put((byte) ((value >> 0x23) | 0x80));
-			buf.put((byte) ((value >> 0x1C) | 0x80));
-			buf.put((byte) ((value >> 0x15) | 0x80));
-			buf.put((byte) ((value >> 0x0E) | 0x80));
-			buf.put((byte) ((value >> 0x07) | 0x80));
-			buf.put((byte) (value & 0x7F));
-		} else if (value <= 0xFFFFFFFFFFFFFFL) {
-			buf.put((byte) ((value >> 0x31) | 0x80));
-			buf.put((byte) ((value >> 0x2A) | 0x80));
-			buf.put((byte) ((value >> 0x23) | 0x80));
-			buf.put((byte) ((value >> 0x1C) | 0x80));
-			buf.put((byte) ((value >> 0x15) | 0x80));
-			buf.put((byte) ((value >> 0x0E) | 0x80));
-			buf.put((byte) ((value >> 0x07) | 0x80));
-			buf.put((byte) (value & 0x7F));
-		} else if (value <= 0x7FFFFFFFFFFFFFFFL) {
-			buf.put((byte) ((value >> 0x38) | 0x80));
-			buf.put((byte) ((value >> 0x31) | 0x80));
-			buf.put((byte) ((value >> 0x2A) | 0x80));
-			buf.put((byte) ((value >> 0x23) | 0x80));
-			buf.put((byte) ((value >> 0x1C) | 0x80));
-			buf.put((byte) ((value >> 0x15) | 0x80));
-			buf.put((byte) ((value >> 0x0E) | 0x80));
-			buf.put((byte) ((value >> 0x07) | 0x80));
-			buf.put((byte) (value & 0x7F));
-		} else {
-			throw new InternalError();
-		}
+		writeLong(buf, value);
 	}
 
+	@SuppressWarnings("fallthrough")
 	public static int writeLong(ByteBuffer buf, long value) {
-		if (value < 0L) {
-			buf.put((byte) ((value >> 0x3F) | 0x80));
-			buf.put((byte) ((value >> 0x38) | 0x80));
-			buf.put((byte) ((value >> 0x31) | 0x80));
-			buf.put((byte) ((value >> 0x2A) | 0x80));
-			buf.put((byte) ((value >> 0x23) | 0x80));
-			buf.put((byte) ((value >> 0x1C) | 0x80));
-			buf.put((byte) ((value >> 0x15) | 0x80));
-			buf.put((byte) ((value >> 0x0E) | 0x80));
-			buf.put((byte) ((value >> 0x07) | 0x80));
-			buf.put((byte) (value & 0x7F));
-			return 10;
-		} else if (value <= 0x7FL) {
-			buf.put((byte) (value & 0x7F));
+		if ((value & ~0x7FL) == 0) {
+			buf.put((byte) value);
 			return 1;
-		} else if (value <= 0x3FFFL) {
-			buf.put((byte) ((value >> 0x07) | 0x80));
-			buf.put((byte) (value & 0x7F));
-			return 2;
-		} else if (value <= 0x1FFFFFL) {
-			buf.put((byte) ((value >> 0x0E) | 0x80));
-			buf.put((byte) ((value >> 0x07) | 0x80));
-			buf.put((byte) (value & 0x7F));
-			return 3;
-		} else if (value <= 0xFFFFFFFL) {
-			buf.put((byte) ((value >> 0x15) | 0x80));
-			buf.put((byte) ((value >> 0x0E) | 0x80));
-			buf.put((byte) ((value >> 0x07) | 0x80));
-			buf.put((byte) (value & 0x7F));
-			return 4;
-		} else if (value <= 0x7FFFFFFFFL) {
-			buf.put((byte) ((value >> 0x1C) | 0x80));
-			buf.put((byte) ((value >> 0x15) | 0x80));
-			buf.put((byte) ((value >> 0x0E) | 0x80));
-			buf.put((byte) ((value >> 0x07) | 0x80));
-			buf.put((byte) (value & 0x7F));
-			return 5;
-		} else if (value <= 0x3FFFFFFFFFFL) {
-			buf.put((byte) ((value >> 0x23) | 0x80));
-			buf.put((byte) ((value >> 0x1C) | 0x80));
-			buf.put((byte) ((value >> 0x15) | 0x80));
-			buf.put((byte) ((value >> 0x0E) | 0x80));
-			buf.put((byte) ((value >> 0x07) | 0x80));
-			buf.put((byte) (value & 0x7F));
-			return 6;
-		} else if (value <= 0x1FFFFFFFFFFFFL) {
-			buf.put((byte) ((value >> 0x2A) | 0x80));
-			buf.put((byte) ((value >> 0x23) | 0x80));
-			buf.put((byte) ((value >> 0x1C) | 0x80));
-			buf.put((byte) ((value >> 0x15) | 0x80));
-			buf.put((byte) ((value >> 0x0E) | 0x80));
-			buf.put((byte) ((value >> 0x07) | 0x80));
-			buf.put((byte) (value & 0x7F));
-			return 7;
-		} else if (value <= 0xFFFFFFFFFFFFFFL) {
-			buf.put((byte) ((value >> 0x31) | 0x80));
-			buf.put((byte) ((value >> 0x2A) | 0x80));
-			buf.put((byte) ((value >> 0x23) | 0x80));
-			buf.put((byte) ((value >> 0x1C) | 0x80));
-			buf.put((byte) ((value >> 0x15) | 0x80));
-			buf.put((byte) ((value >> 0x0E) | 0x80));
-			buf.put((byte) ((value >> 0x07) | 0x80));
-			buf.put((byte) (value & 0x7F));
-			return 8;
-		} else if (value <= 0x7FFFFFFFFFFFFFFFL) {
-			buf.put((byte) ((value >> 0x38) | 0x80));
-			buf.put((byte) ((value >> 0x31) | 0x80));
-			buf.put((byte) ((value >> 0x2A) | 0x80));
-			buf.put((byte) ((value >> 0x23) | 0x80));
-			buf.put((byte) ((value >> 0x1C) | 0x80));
-			buf.put((byte) ((value >> 0x15) | 0x80));
-			buf.put((byte) ((value >> 0x0E) | 0x80));
-			buf.put((byte) ((value >> 0x07) | 0x80));
+		}
+		
+		final int len = length(value);
+		switch (len) {
+		case 10: buf.put((byte) ((value >>> 0x3F) | 0x80)); // fall through
+		case 9: buf.put((byte) ((value >>> 0x38) | 0x80)); // fall through
+		case 8: buf.put((byte) ((value >>> 0x31) | 0x80)); // fall through
+		case 7: buf.put((byte) ((value >>> 0x2A) | 0x80)); // fall through
+		case 6: buf.put((byte) ((value >>> 0x23) | 0x80)); // fall through
+		case 5: buf.put((byte) ((value >>> 0x1C) | 0x80)); // fall through
+		case 4: buf.put((byte) ((value >>> 0x15) | 0x80)); // fall through
+		case 3: buf.put((byte) ((value >>> 0x0E) | 0x80)); // fall through
+		default:
+			buf.put((byte) ((value >>> 0x07) | 0x80));
 			buf.put((byte) (value & 0x7F));
-			return 9;
-		} else {
-			throw new InternalError();
 		}
+		
+		return len;
+	}
+	
+	/**
+	 * Encodes {@code value} at {@code data[offset]}.
+	 * 
+	 * @return the offset just after the encoded value
+	 */
+	@SuppressWarnings("fallthrough")
+	public static int encodeInt(byte[] data, int offset, int value) {
+		if ((value & ~0x7F) == 0) {
+			data[offset] = (byte) value;
+			return offset + 1;
+		}
+		
+		final int len = length(value);
+		if (data.length - offset < len)
+			throw new BufferOverflowException();
+		
+		switch (len) {
+		case 5: data[offset++] = (byte) ((value >>> 0x1C) | 0x80); // fall through
+		case 4: data[offset++] = (byte) ((value >>> 0x15) | 0x80); // fall through
+		case 3: data[offset++] = (byte) ((value >>> 0x0E) | 0x80); // fall through
+		default:
+			data[offset++] = (byte) ((value >>> 0x07) | 0x80);
+			data[offset++] = (byte) (value & 0x7F);
+		}
+		
+		return offset;
+	}
+	
+	/**
+	 * Encodes {@code value} at {@code data[offset]}.
+	 * 
+	 * @return the offset just after the encoded value
+	 */
+	@SuppressWarnings("fallthrough")
+	public static int encodeLong(byte[] data, int offset, long value) {
+		if ((value & ~0x7FL) == 0) {
+			data[offset] = (byte) value;
+			return offset + 1;
+		}
+		
+		final int len = length(value);
+		if (data.length - offset < len)
+			throw new BufferOverflowException();
+		
+		switch (len) {
+		case 10: data[offset++] = (byte) ((value >>> 0x3F) | 0x80); // fall through
+		case 9: data[offset++] = (byte) ((value >>> 0x38) | 0x80); // fall through
+		case 8: data[offset++] = (byte) ((value >>> 0x31) | 0x80); // fall through
+		case 7: data[offset++] = (byte) ((value >>> 0x2A) | 0x80); // fall through
+		case 6: data[offset++] = (byte) ((value >>> 0x23) | 0x80); // fall through
+		case 5: data[offset++] = (byte) ((value >>> 0x1C) | 0x80); // fall through
+		case 4: data[offset++] = (byte) ((value >>> 0x15) | 0x80); // fall through
+		case 3: data[offset++] = (byte) ((value >>> 0x0E) | 0x80); // fall through
+		default:
+			data[offset++] = (byte) ((value >>> 0x07) | 0x80);
+			data[offset++] = (byte) (value & 0x7F);
+		}
+		
+		return offset;
 	}
 
 	public static short decodeShort(ByteBuffer buf) {
@@ -300,75 +206,275 @@ public final class SDNV {
 		if ((b = buf.get()) >= 0 && value <= 0x1FFFFFF)
 			return value << 7 | b;
 		
-		throw new RuntimeException();
+		throw new RuntimeException("SDNV overflow");
 	}
 	
 	public static long decodeLong(ByteBuffer buf) {
+		if (buf.hasArray()) {
+			final int base = buf.arrayOffset();
+			final byte[] data = buf.array();
+			final int limit = base + buf.limit();
+			int pos = base + buf.position();
+			
+			byte b;
+			long value = 0;
+			do {
+				if (pos == limit)
+					throw new BufferUnderflowException();
+				
+				if (value > 0x1FFFFFFFFFFFFFFL)
+					throw new RuntimeException("SDNV overflow");
+				
+				b = data[pos++];
+				value = (value << 7) | (b & 0x7F);
+			} while (b < 0);
+			
+			buf.position(pos - base);
+			return value;
+		}
+		
 		byte b;
-		if ((b = buf.get()) >= 0)
-			return b;
+		long value = 0;
+		do {
+			if (value > 0x1FFFFFFFFFFFFFFL)
+				throw new RuntimeException("SDNV overflow");
+			
+			b = buf.get();
+			value = (value << 7) | (b & 0x7F);
+		} while (b < 0);
 		
-		long value = b & 0x7F;
-		if ((b = buf.get()) >= 0)
-			return value << 7 | b;
-
-		value = (value << 7) | (b & 0x7F);
-		if ((b = buf.get()) >= 0)
-			return value << 7 | b;
-
-		value = (value << 7) | (b & 0x7F);
-		if ((b = buf.get()) >= 0)
-			return value << 7 | b;
+		return value;
+	}
+	
+	/**
+	 * Decodes the value stored at {@code data[offset]}. Use
+	 * {@link #length(byte[], int)} to find where the next value starts.
+	 */
+	public static int decodeInt(byte[] data, int offset) {
+		return (int) decodeInt(data, offset, data.length);
+	}
 
-		value = (value << 7) | (b & 0x7F);
-		if ((b = buf.get()) >= 0)
-			return value << 7 | b;
+	/**
+	 * Decodes the value stored at {@code data[offset]}. Use
+	 * {@link #length(byte[], int)} to find where the next value starts.
+	 */
+	public static long decodeLong(byte[] data, int offset) {
+		byte b;
+		long value = 0;
+		do {
+			if (offset == data.length)
+				throw new BufferUnderflowException();
+			
+			if (value > 0x1FFFFFFFFFFFFFFL)
+				throw new RuntimeException("SDNV overflow");
+			
+			b = data[offset++];
+			value = (value << 7) | (b & 0x7F);
+		} while (b < 0);
+		
+		return value;
+	}
+	
+	/**
+	 * Decodes {@code count} consecutive values from {@code buf} into
+	 * {@code dst}, starting at {@code dst[off]}.
+	 */
+	public static void decodeInts(ByteBuffer buf, int[] dst, int off, int count) {
+		if (buf.hasArray()) {
+			final int base = buf.arrayOffset();
+			final int pos = decodeInts(
+					buf.array(),
+					base + buf.position(),
+					base + buf.limit(),
+					dst, off, count
+			);
+			
+			buf.position(pos - base);
+		} else {
+			for (int i = off, end = off + count; i < end; i++)
+				dst[i] = decodeInt(buf);
+		}
+	}
 
-		value = (value << 7) | (b & 0x7F);
-		if ((b = buf.get()) >= 0)
-			return value << 7 | b;
+	/**
+	 * Decodes {@code count} consecutive values from {@code buf} into
+	 * {@code dst}, starting at {@code dst[off]}.
+	 */
+	public static void decodeLongs(ByteBuffer buf, long[] dst, int off, int count) {
+		if (buf.hasArray()) {
+			final int base = buf.arrayOffset();
+			final int pos = decodeLongs(
+					buf.array(),
+					base + buf.position(),
+					base + buf.limit(),
+					dst, off, count
+			);
+			
+			buf.position(pos - base);
+		} else {
+			for (int i = off, end = off + count; i < end; i++)
+				dst[i] = decodeLong(buf);
+		}
+	}
+	
+	/**
+	 * Decodes {@code count} consecutive values stored from
+	 * {@code data[offset]} into {@code dst}, starting at {@code dst[off]}.
+	 * 
+	 * @return the offset just after the last decoded value
+	 */
+	public static int decodeInts(byte[] data, int offset, int[] dst, int off, int count) {
+		return decodeInts(data, offset, data.length, dst, off, count);
+	}
 
-		value = (value << 7) | (b & 0x7F);
-		if ((b = buf.get()) >= 0)
-			return value << 7 | b;
+	/**
+	 * Decodes {@code count} consecutive values stored from
+	 * {@code data[offset]} into {@code dst}, starting at {@code dst[off]}.
+	 * 
+	 * @return the offset just after the last decoded value
+	 */
+	public static int decodeLongs(byte[] data, int offset, long[] dst, int off, int count) {
+		return decodeLongs(data, offset, data.length, dst, off, count);
+	}
+	
+	private static int decodeInts(byte[] data, int pos, int limit, int[] dst, int off, int count) {
+		for (int i = off, end = off + count; i < end; i++) {
+			if (limit - pos < 5) {
+				final long r = decodeIntChecked(data, pos, limit);
+				pos = (int) (r >>> 32);
+				dst[i] = (int) r;
+				continue;
+			}
+			
+			byte b;
+			if ((b = data[pos++]) >= 0) {
+				dst[i] = b;
+				continue;
+			}
+			
+			int value = b & 0x7F;
+			if ((b = data[pos++]) >= 0) {
+				dst[i] = value << 7 | b;
+				continue;
+			}
+			
+			value = (value << 7) | (b & 0x7F);
+			if ((b = data[pos++]) >= 0) {
+				dst[i] = value << 7 | b;
+				continue;
+			}
+			
+			value = (value << 7) | (b & 0x7F);
+			if ((b = data[pos++]) >= 0) {
+				dst[i] = value << 7 | b;
+				continue;
+			}
+			
+			value = (value << 7) | (b & 0x7F);
+			if ((b = data[pos++]) < 0 || value > 0x1FFFFFF)
+				throw new RuntimeException("SDNV overflow");
+			
+			dst[i] = value << 7 | b;
+		}
+		
+		return pos;
+	}
+	
+	private static int decodeLongs(byte[] data, int pos, int limit, long[] dst, int off, int count) {
+		for (int i = off, end = off + count; i < end; i++) {
+			byte b;
+			long value = 0;
+			do {
+				if (pos == limit)
+					throw new BufferUnderflowException();
+				
+				if (value > 0x1FFFFFFFFFFFFFFL)
+					throw new RuntimeException("SDNV overflow");
+				
+				b = data[pos++];
+				value = (value << 7) | (b & 0x7F);
+			} while (b < 0);
+			
+			dst[i] = value;
+		}
+		
+		return pos;
+	}
+	
+	/**
+	 * Decodes the value at {@code data[pos]}. The returned long holds the
+	 * value in its lower half and the offset after it in the upper half, so
+	 * callers walking an array need a single pass.
+	 */
+	private static long decodeInt(byte[] data, int pos, int limit) {
+		if (limit - pos < 5)
+			return decodeIntChecked(data, pos, limit);
+		
+		byte b;
+		if ((b = data[pos++]) >= 0)
+			return ((long) pos << 32) | b;
+		
+		int value = b & 0x7F;
+		if ((b = data[pos++]) >= 0)
+			return ((long) pos << 32) | ((value << 7 | b) & 0xFFFFFFFFL);
 
 		value = (value << 7) | (b & 0x7F);
-		if ((b = buf.get()) >= 0)
-			return value << 7 | b;
+		if ((b = data[pos++]) >= 0)
+			return ((long) pos << 32) | ((value << 7 | b) & 0xFFFFFFFFL);
 
 		value = (value << 7) | (b & 0x7F);
-		if ((b = buf.get()) >= 0)
-			return value << 7 | b;
+		if ((b = data[pos++]) >= 0)
+			return ((long) pos << 32) | ((value << 7 | b) & 0xFFFFFFFFL);
 
 		value = (value << 7) | (b & 0x7F);
-		if ((b = buf.get()) >= 0 && value <= 0x1FFFFFFFFFFFFFFL)
-			return value << 7 | b;
+		if ((b = data[pos++]) >= 0 && value <= 0x1FFFFFF)
+			return ((long) pos << 32) | ((value << 7 | b) & 0xFFFFFFFFL);
 		
-		throw new RuntimeException();
+		throw new RuntimeException("SDNV overflow");
+	}
+	
+	private static long decodeIntChecked(byte[] data, int pos, int limit) {
+		final int start = pos;
+		byte b;
+		int value = 0;
+		do {
+			if (pos == limit)
+				throw new BufferUnderflowException();
+			
+			// Same bound as the unrolled path: at most 5 bytes, 32 bits
+			if (pos - start == 5 || value > 0x1FFFFFF)
+				throw new RuntimeException("SDNV overflow");
+			
+			b = data[pos++];
+			value = (value << 7) | (b & 0x7F);
+		} while (b < 0);
+		
+		return ((long) pos << 32) | (value & 0xFFFFFFFFL);
+	}
+	
+	/**
+	 * Returns the encoded length of the value stored at {@code data[offset]}.
+	 */
+	public static int length(byte[] data, int offset) {
+		int pos = offset;
+		while (pos < data.length && data[pos] < 0)
+			pos++;
+		
+		if (pos == data.length)
+			throw new BufferUnderflowException();
+		
+		return pos - offset + 1;
 	}
 
 	public static int length(int value) {
-		if (value < 0 || value > 0xFFFFFFF)	return 5;
-		if (value <= 0x7F)					return 1;
-		if (value <= 0x3FFF)				return 2;
-		if (value <= 0x1FFFFF)				return 3;
-		if (value <= 0xFFFFFFF)				return 4;
-		
-		throw new InternalError();
+		/*
+		 * Number of significant bits rounded up to 7-bit groups. The "| 1"
+		 * makes zero count as a single bit.
+		 */
+		return (38 - Integer.numberOfLeadingZeros(value | 1)) / 7;
 	}
 	
 	public static int length(long value) {
-		if (value < 0)						return 10;
-		if (value <= 0x7FL)					return 1;
-		if (value <= 0x3FFFL)				return 2;
-		if (value <= 0x1FFFFFL)				return 3;
-		if (value <= 0xFFFFFFFL)			return 4;
-		if (value <= 0x7FFFFFFFFL)			return 5;
-		if (value <= 0x3FFFFFFFFFFL)		return 6;
-		if (value <= 0x1FFFFFFFFFFFFL)		return 7;
-		if (value <= 0xFFFFFFFFFFFFFFL)		return 8;
-		if (value <= 0x7FFFFFFFFFFFFFFFL)	return 9;
-		
-		throw new InternalError();
+		return (70 - Long.numberOfLeadingZeros(value | 1)) / 7;
 	}
 }
@@ -0,0 +1,216 @@
+/**
+ * Amazon-DTN - Lightweight Delay Tolerant Networking Implementation
+ * Copyright (C) 2013  Dórian C. Langbeck
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package br.ufpa.adtn.util;
+
+import java.util.Collection;
+
+/**
+ * Hierarchical timing wheel. Each level has 64 slots, each slot of a level
+ * spanning all the slots of the level below, so five levels cover 2^30
+ * ticks. Deadlines further than that wait in the last level and are placed
+ * again when it is cascaded.
+ * 
+ * Scheduling and cancelling are O(1). Advancing costs one slot per tick
+ * plus, once every 64 ticks, cascading one slot of the level above.
+ * 
+ * Not thread-safe.
+ */
+public class TimingWheel<T> {
+	private static final int SLOT_BITS = 6;
+	private static final int SLOTS = 1 << SLOT_BITS;
+	private static final int MASK = SLOTS - 1;
+	
+	private final Timeout<T>[][] wheels;
+	private final long maxDelta;
+	private long next;
+	private int size;
+	
+	public TimingWheel(long now) {
+		this(now, 5);
+	}
+	
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public TimingWheel(long now, int levels) {
+		if (levels < 1 || levels * SLOT_BITS > 62)
+			throw new IllegalArgumentException("Invalid number of levels");
+		
+		this.wheels = new Timeout[levels][SLOTS];
+		for (Timeout<T>[] wheel : wheels)
+			for (int i = 0; i < SLOTS; i++)
+				wheel[i] = new Timeout<T>(null, 0);
+		
+		this.maxDelta = (1L << (levels * SLOT_BITS)) - 1;
+		this.next = now + 1;
+		this.size = 0;
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	/**
+	 * Last tick already expired.
+	 */
+	public long getCurrentTick() {
+		return next - 1;
+	}
+	
+	/**
+	 * Schedules {@code item} to expire at tick {@code deadline}. Past
+	 * deadlines expire in the next tick.
+	 */
+	public Timeout<T> schedule(T item, long deadline) {
+		if (item == null)
+			throw new NullPointerException();
+		
+		final Timeout<T> timeout = new Timeout<T>(item, deadline);
+		place(timeout);
+		size++;
+		return timeout;
+	}
+	
+	/**
+	 * Returns {@code false} if {@code timeout} has already expired or was
+	 * cancelled before.
+	 */
+	public boolean cancel(Timeout<T> timeout) {
+		if (timeout.prev == null)
+			return false;
+		
+		timeout.unlink();
+		size--;
+		return true;
+	}
+	
+	/**
+	 * Expires everything due until tick {@code now}, adding it to
+	 * {@code expired}. Returns how many items expired.
+	 */
+	public int advance(long now, Collection<? super T> expired) {
+		if (size == 0) {
+			// Nothing to walk through
+			if (now >= next)
+				next = now + 1;
+			
+			return 0;
+		}
+		
+		int count = 0;
+		while (next <= now) {
+			final int index = (int) (next & MASK);
+			
+			// Bring the next slots of upper levels down, as needed
+			for (int level = 1; level < wheels.length; level++) {
+				if (index(next, level - 1) != 0)
+					break;
+				
+				cascade(wheels[level][index(next, level)]);
+			}
+			
+			final Timeout<T> head = wheels[0][index];
+			for (Timeout<T> t = head.next; t != head; t = head.next) {
+				t.unlink();
+				
+				// Beyond the wheel range when scheduled, not due yet
+				if (t.deadline > next) {
+					place(t);
+					continue;
+				}
+				
+				expired.add(t.item);
+				count++;
+				size--;
+			}
+			
+			next++;
+			if (size == 0) {
+				next = Math.max(next, now + 1);
+				break;
+			}
+		}
+		
+		return count;
+	}
+	
+	private static int index(long tick, int level) {
+		return (int) (tick >>> (level * SLOT_BITS)) & MASK;
+	}
+	
+	private void cascade(Timeout<T> head) {
+		for (Timeout<T> t = head.next; t != head; t = head.next) {
+			t.unlink();
+			place(t);
+		}
+	}
+	
+	private void place(Timeout<T> timeout) {
+		long deadline = timeout.deadline;
+		long delta = deadline - next;
+		if (delta < 0) {
+			deadline = next;
+			delta = 0;
+		} else if (delta > maxDelta) {
+			deadline = next + maxDelta;
+			delta = maxDelta;
+		}
+		
+		int level = 0;
+		while (delta >= (1L << ((level + 1) * SLOT_BITS)))
+			level++;
+		
+		timeout.linkBefore(wheels[level][index(deadline, level)]);
+	}
+	
+	
+	public static final class Timeout<T> {
+		private final long deadline;
+		private final T item;
+		private Timeout<T> prev;
+		private Timeout<T> next;
+		
+		private Timeout(T item, long deadline) {
+			this.deadline = deadline;
+			this.item = item;
+			
+			// Slot heads point to themselves
+			if (item == null)
+				prev = next = this;
+		}
+		
+		public T getItem() {
+			return item;
+		}
+		
+		public long getDeadline() {
+			return deadline;
+		}
+		
+		private void linkBefore(Timeout<T> head) {
+			prev = head.prev;
+			next = head;
+			head.prev.next = this;
+			head.prev = this;
+		}
+		
+		private void unlink() {
+			prev.next = next;
+			next.prev = prev;
+			prev = next = null;
+		}
+	}
+}
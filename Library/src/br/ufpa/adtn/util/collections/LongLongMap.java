@@ -0,0 +1,174 @@
+/**
+ * Amazon-DTN - Lightweight Delay Tolerant Networking Implementation
+ * Copyright (C) 2013  Dórian C. Langbeck
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package br.ufpa.adtn.util.collections;
+
+/**
+ * Map of {@code long} keys to {@code long} values, as times or counters
+ * by bundle unique ID.
+ */
+public class LongLongMap extends OpenTable {
+	private long[] keys;
+	private long[] values;
+	
+	public LongLongMap() {
+		this(0);
+	}
+	
+	/**
+	 * Creates a table holding {@code expected} entries without growing.
+	 */
+	public LongLongMap(int expected) {
+		super(expected);
+		keys = new long[used.length];
+		values = new long[used.length];
+	}
+	
+	public boolean containsKey(long key) {
+		return find(key) != -1;
+	}
+	
+	/**
+	 * Returns the value of {@code key}, or {@code missing} if it is not in
+	 * the map.
+	 */
+	public long get(long key, long missing) {
+		final int slot = find(key);
+		return slot == -1 ? missing : values[slot];
+	}
+	
+	/**
+	 * Returns the previous value of {@code key}, or {@code missing} if it
+	 * was not in the map.
+	 */
+	public long put(long key, long value, long missing) {
+		final int slot = probe(key);
+		if (slot >= 0) {
+			final long old = values[slot];
+			values[slot] = value;
+			return old;
+		}
+		
+		keys[~slot] = key;
+		values[~slot] = value;
+		occupy(~slot);
+		return missing;
+	}
+	
+	public void put(long key, long value) {
+		put(key, value, value);
+	}
+	
+	/**
+	 * Adds {@code delta} to the value of {@code key}, taken as zero if it
+	 * is not in the map, and returns the sum.
+	 */
+	public long add(long key, long delta) {
+		final int slot = probe(key);
+		if (slot >= 0)
+			return values[slot] += delta;
+		
+		keys[~slot] = key;
+		values[~slot] = delta;
+		occupy(~slot);
+		return delta;
+	}
+	
+	/**
+	 * Returns the value {@code key} had, or {@code missing} if it was not
+	 * in the map.
+	 */
+	public long remove(long key, long missing) {
+		final int slot = find(key);
+		if (slot == -1)
+			return missing;
+		
+		final long old = values[slot];
+		vacate(slot);
+		return old;
+	}
+	
+	public long keyAt(int slot) {
+		return keys[slot];
+	}
+	
+	public long valueAt(int slot) {
+		return values[slot];
+	}
+	
+	public void setValueAt(int slot, long value) {
+		values[slot] = value;
+	}
+	
+	/**
+	 * Slot of {@code key}, or -1 if it is not in the table.
+	 */
+	private int find(long key) {
+		final boolean[] used = this.used;
+		for (int i = mix(key) & mask; used[i]; i = (i + 1) & mask)
+			if (keys[i] == key)
+				return i;
+		
+		return -1;
+	}
+	
+	/**
+	 * Slot of {@code key}, or the complement of the free slot where it
+	 * goes if it is not in the table.
+	 */
+	private int probe(long key) {
+		final boolean[] used = this.used;
+		int i = mix(key) & mask;
+		for (; used[i]; i = (i + 1) & mask)
+			if (keys[i] == key)
+				return i;
+		
+		return ~i;
+	}
+
+	@Override
+	protected int hashAt(int slot) {
+		return mix(keys[slot]);
+	}
+
+	@Override
+	protected void move(int from, int to) {
+		keys[to] = keys[from];
+		values[to] = values[from];
+	}
+
+	@Override
+	protected void rehash(boolean[] old, int capacity) {
+		final long[] oKeys = keys;
+		final long[] oValues = values;
+		keys = new long[capacity];
+		values = new long[capacity];
+		
+		for (int i = 0; i < old.length; i++) {
+			if (!old[i])
+				continue;
+			
+			int slot = mix(oKeys[i]) & mask;
+			while (used[slot])
+				slot = (slot + 1) & mask;
+			
+			used[slot] = true;
+			keys[slot] = oKeys[i];
+			values[slot] = oValues[i];
+		}
+	}
+}
@@ -0,0 +1,121 @@
+/**
+ * Amazon-DTN - Lightweight Delay Tolerant Networking Implementation
+ * Copyright (C) 2013  Dórian C. Langbeck
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package br.ufpa.adtn.util.collections;
+
+/**
+ * Set of {@code long} values, as bundle unique IDs.
+ */
+public class LongSet extends OpenTable {
+	private long[] keys;
+	
+	public LongSet() {
+		this(0);
+	}
+	
+	/**
+	 * Creates a table holding {@code expected} entries without growing.
+	 */
+	public LongSet(int expected) {
+		super(expected);
+		keys = new long[used.length];
+	}
+	
+	public boolean contains(long key) {
+		return find(key) != -1;
+	}
+	
+	/**
+	 * Returns whether {@code key} was not in the set.
+	 */
+	public boolean add(long key) {
+		final int slot = probe(key);
+		if (slot >= 0)
+			return false;
+		
+		keys[~slot] = key;
+		occupy(~slot);
+		return true;
+	}
+	
+	public boolean remove(long key) {
+		final int slot = find(key);
+		if (slot == -1)
+			return false;
+		
+		vacate(slot);
+		return true;
+	}
+	
+	public long keyAt(int slot) {
+		return keys[slot];
+	}
+	
+	/**
+	 * Slot of {@code key}, or -1 if it is not in the table.
+	 */
+	private int find(long key) {
+		final boolean[] used = this.used;
+		for (int i = mix(key) & mask; used[i]; i = (i + 1) & mask)
+			if (keys[i] == key)
+				return i;
+		
+		return -1;
+	}
+	
+	/**
+	 * Slot of {@code key}, or the complement of the free slot where it
+	 * goes if it is not in the table.
+	 */
+	private int probe(long key) {
+		final boolean[] used = this.used;
+		int i = mix(key) & mask;
+		for (; used[i]; i = (i + 1) & mask)
+			if (keys[i] == key)
+				return i;
+		
+		return ~i;
+	}
+
+	@Override
+	protected int hashAt(int slot) {
+		return mix(keys[slot]);
+	}
+
+	@Override
+	protected void move(int from, int to) {
+		keys[to] = keys[from];
+	}
+
+	@Override
+	protected void rehash(boolean[] old, int capacity) {
+		final long[] oKeys = keys;
+		keys = new long[capacity];
+		
+		for (int i = 0; i < old.length; i++) {
+			if (!old[i])
+				continue;
+			
+			int slot = mix(oKeys[i]) & mask;
+			while (used[slot])
+				slot = (slot + 1) & mask;
+			
+			used[slot] = true;
+			keys[slot] = oKeys[i];
+		}
+	}
+}
@@ -0,0 +1,167 @@
+/**
+ * Amazon-DTN - Lightweight Delay Tolerant Networking Implementation
+ * Copyright (C) 2013  Dórian C. Langbeck
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package br.ufpa.adtn.util.collections;
+
+import java.util.Arrays;
+
+/**
+ * Base of the open addressing tables of this package. Slots are probed
+ * linearly from the mixed hash of the key and removals shift the
+ * following entries back, so there are no tombstones and lookups never
+ * degrade after many removals.
+ * 
+ * Entries are iterated by slot, without allocating anything:
+ * 
+ * <pre>
+ * for (int slot = map.next(-1); slot != -1; slot = map.next(slot))
+ *     use(map.keyAt(slot), map.valueAt(slot));
+ * </pre>
+ * 
+ * Slots are invalidated by any change to the table. None of the tables is
+ * thread safe.
+ */
+public abstract class OpenTable {
+	private static final int MIN_CAPACITY = 8;
+	private static final int MAX_CAPACITY = 1 << 30;
+	
+	protected boolean[] used;
+	protected int mask;
+	private int threshold;
+	private int size;
+	
+	protected OpenTable(int expected) {
+		if (expected < 0)
+			throw new IllegalArgumentException("Negative size");
+		
+		setCapacity(capacityFor(expected));
+	}
+	
+	public final int size() {
+		return size;
+	}
+	
+	public final boolean isEmpty() {
+		return size == 0;
+	}
+	
+	/**
+	 * Returns the first used slot after {@code slot}, or -1 if there is
+	 * none. Iteration starts from slot -1.
+	 */
+	public final int next(int slot) {
+		final boolean[] used = this.used;
+		for (int i = slot + 1; i < used.length; i++)
+			if (used[i])
+				return i;
+		
+		return -1;
+	}
+	
+	public void clear() {
+		Arrays.fill(used, false);
+		size = 0;
+	}
+	
+	protected static int mix(int key) {
+		final int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+	
+	protected static int mix(long key) {
+		return mix((int) (key ^ (key >>> 32)));
+	}
+	
+	/**
+	 * Takes {@code slot}, found empty by a probe, and grows the table if
+	 * it got too full. Returns whether it grew.
+	 */
+	protected final boolean occupy(int slot) {
+		used[slot] = true;
+		if (++size <= threshold)
+			return false;
+		
+		if (used.length == MAX_CAPACITY)
+			throw new IllegalStateException("Table is full");
+		
+		final int capacity = used.length << 1;
+		final boolean[] old = used;
+		setCapacity(capacity);
+		rehash(old, capacity);
+		return true;
+	}
+	
+	/**
+	 * Frees {@code slot}, moving back the entries probed past it.
+	 */
+	protected final void vacate(int slot) {
+		final boolean[] used = this.used;
+		int gap = slot;
+		for (int i = (gap + 1) & mask; used[i]; i = (i + 1) & mask) {
+			final int home = hashAt(i) & mask;
+			
+			// Moves the entry if its home is not between the gap and it
+			final boolean between = gap <= i ?
+					(gap < home && home <= i) :
+					(gap < home || home <= i);
+			
+			if (!between) {
+				move(i, gap);
+				gap = i;
+			}
+		}
+		
+		used[gap] = false;
+		release(gap);
+		size--;
+	}
+	
+	/**
+	 * Mixed hash of the key in {@code slot}.
+	 */
+	protected abstract int hashAt(int slot);
+	
+	/**
+	 * Copies the entry in {@code from} to {@code to}.
+	 */
+	protected abstract void move(int from, int to);
+	
+	/**
+	 * Drops references held by the free {@code slot}.
+	 */
+	protected void release(int slot) { }
+	
+	/**
+	 * Allocates arrays for {@code capacity} slots and inserts the entries
+	 * of the old ones, whose used slots are in {@code old}.
+	 */
+	protected abstract void rehash(boolean[] old, int capacity);
+	
+	private void setCapacity(int capacity) {
+		used = new boolean[capacity];
+		mask = capacity - 1;
+		threshold = (int) (capacity * 0.75f);
+	}
+	
+	private static int capacityFor(int expected) {
+		int capacity = MIN_CAPACITY;
+		while (capacity < MAX_CAPACITY && capacity * 0.75f < expected)
+			capacity <<= 1;
+		
+		return capacity;
+	}
+}
@@ -0,0 +1,211 @@
+/**
+ * Amazon-DTN - Lightweight Delay Tolerant Networking Implementation
+ * Copyright (C) 2013  Dórian C. Langbeck
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package br.ufpa.adtn.core;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Writes a {@link LogJournal}, then cuts its tail at every byte of the last
+ * entries, as a torn write would, and at random points before them. Each
+ * replay must yield exactly the entries written whole before the cut,
+ * leave the journal ending at the last of them, and keep entries appended
+ * afterwards readable. Lives in the package of the journal, which is not
+ * public.
+ */
+public class LogJournalTest {
+	private static final int ENTRIES = 300;
+	private static final int CUTS = 200;
+	
+	public static void main(String[] args) throws IOException {
+		final Random r = new Random(0);
+		final File directory = new File(System.getProperty("java.io.tmpdir"), "journal-test");
+		directory.mkdirs();
+		
+		try {
+			run(r, directory);
+		} finally {
+			for (File file : directory.listFiles())
+				file.delete();
+			
+			directory.delete();
+		}
+		
+		System.err.println("LogJournal OK");
+	}
+	
+	private static void run(Random r, File directory) throws IOException {
+		final File file = new File(directory, "index.journal");
+		final LogJournal journal = new LogJournal(directory, 16);
+		journal.reset();
+		journal.checkpoint(Collections.<Integer>emptyList());
+		journal.open();
+		
+		// Entry written by each operation and the journal length after it
+		final List<String> entries = new ArrayList<String>();
+		final List<Long> ends = new ArrayList<Long>();
+		for (int i = 0; i < ENTRIES; i++) {
+			final long id = r.nextInt(ENTRIES / 3);
+			switch (r.nextInt(3)) {
+			case 0:
+				final byte[] head = new byte[r.nextInt(200)];
+				r.nextBytes(head);
+				final int segment = r.nextInt(4);
+				final long offset = r.nextInt(1 << 20);
+				final int plen = r.nextInt(1 << 16);
+				journal.add(id, segment, offset, head, plen);
+				entries.add(add(id, segment, offset, head, plen));
+				break;
+				
+			case 1:
+				journal.delete(id);
+				entries.add("delete " + id);
+				break;
+				
+			default:
+				final int target = r.nextInt(4);
+				final long position = r.nextInt(1 << 20);
+				journal.move(id, target, position);
+				entries.add(String.format("move %d %d %d", id, target, position));
+			}
+			
+			ends.add(file.length());
+		}
+		
+		journal.force();
+		journal.close();
+		
+		final byte[] written = read(file);
+		check(written.length == ends.get(ENTRIES - 1), "journal length");
+		
+		// Every byte of the last entries, then anywhere before them
+		final List<Integer> cuts = new ArrayList<Integer>();
+		for (int cut = (int) (long) ends.get(ENTRIES - 4); cut < written.length; cut++)
+			cuts.add(cut);
+		
+		for (int i = 0; i < CUTS; i++)
+			cuts.add(r.nextInt(written.length));
+		
+		for (int cut : cuts) {
+			write(file, written, cut);
+			final int whole = count(ends, cut);
+			
+			check(replay(directory).equals(entries.subList(0, whole)), "replay cut at " + cut);
+			check(file.length() == (whole == 0 ? 0 : ends.get(whole - 1)), "tail left at " + cut);
+			
+			// An entry appended after the cut must not be lost behind the torn one
+			final LogJournal reopened = new LogJournal(directory, 16);
+			reopened.open();
+			reopened.delete(-1);
+			reopened.close();
+			
+			final List<String> replayed = replay(directory);
+			check(replayed.size() == whole + 1, "append after cut at " + cut);
+			check(replayed.get(whole).equals("delete -1"), "appended entry after cut at " + cut);
+		}
+		
+		// A corrupted byte in the last entry drops it alone
+		final int last = (int) (long) ends.get(ENTRIES - 2);
+		for (int i = last; i < written.length; i++) {
+			final byte[] corrupted = written.clone();
+			corrupted[i] ^= 0x40;
+			write(file, corrupted, corrupted.length);
+			check(replay(directory).equals(entries.subList(0, ENTRIES - 1)), "corrupted byte " + i);
+		}
+		
+		System.err.printf("%d cuts of a %d bytes journal replayed%n", cuts.size(), written.length);
+	}
+	
+	private static List<String> replay(File directory) throws IOException {
+		final List<String> replayed = new ArrayList<String>();
+		final boolean loaded = new LogJournal(directory, 16).load(new LogJournal.Visitor() {
+			@Override
+			public void add(long uniqueID, int segment, long offset, byte[] head, int payloadLength) {
+				replayed.add(LogJournalTest.add(uniqueID, segment, offset, head, payloadLength));
+			}
+			
+			@Override
+			public void delete(long uniqueID) {
+				replayed.add("delete " + uniqueID);
+			}
+			
+			@Override
+			public void move(long uniqueID, int segment, long offset) {
+				replayed.add(String.format("move %d %d %d", uniqueID, segment, offset));
+			}
+			
+			@Override
+			public void end(int segment, long end) { }
+		});
+		
+		check(loaded, "snapshot not loaded");
+		return replayed;
+	}
+	
+	private static String add(long id, int segment, long offset, byte[] head, int plen) {
+		final StringBuilder sb = new StringBuilder(String.format("add %d %d %d %d ", id, segment, offset, plen));
+		for (byte b : head)
+			sb.append(String.format("%02x", b));
+		
+		return sb.toString();
+	}
+	
+	private static int count(List<Long> ends, long length) {
+		int whole = 0;
+		while (whole < ends.size() && ends.get(whole) <= length)
+			whole++;
+		
+		return whole;
+	}
+	
+	private static byte[] read(File file) throws IOException {
+		final byte[] data = new byte[(int) file.length()];
+		final FileInputStream in = new FileInputStream(file);
+		try {
+			for (int n = 0; n < data.length; ) {
+				final int read = in.read(data, n, data.length - n);
+				check(read > 0, "short read");
+				n += read;
+			}
+		} finally {
+			in.close();
+		}
+		
+		return data;
+	}
+	
+	private static void write(File file, byte[] data, int length) throws IOException {
+		final FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(data, 0, length);
+		} finally {
+			out.close();
+		}
+	}
+	
+	private static void check(boolean condition, String message) {
+		if (!condition)
+			throw new AssertionError(message);
+	}
+}
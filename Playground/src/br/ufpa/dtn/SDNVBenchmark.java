@@ -0,0 +1,217 @@
+package br.ufpa.dtn;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import br.ufpa.adtn.util.SDNV;
+
+/**
+ * Micro benchmark comparing the SDNV codec against the previous
+ * one-put-per-byte implementation (kept below as {@link LegacySDNV}).
+ *
+ * Run it with a warmed up JIT, e.g. {@code java -server br.ufpa.dtn.SDNVBenchmark}.
+ */
+public class SDNVBenchmark {
+	private static final int VALUES = 0x1000;
+	private static final int ROUNDS = 2000;
+	private static final int WARMUP = 500;
+
+	private static volatile long sink;
+
+	public static void main(String[] args) {
+		final Random r = new Random(0);
+
+		run("small (< 2^7)", values(r, 7));
+		run("medium (< 2^14)", values(r, 14));
+		run("large (< 2^28)", values(r, 28));
+		run("full (< 2^31)", values(r, 31));
+		run("primary block", primaryBlock(r));
+	}
+
+	private static int[] values(Random r, int bits) {
+		final int[] values = new int[VALUES];
+		for (int i = 0; i < VALUES; i++)
+			values[i] = r.nextInt(1 << Math.min(bits, 30)) | (bits > 30 ? r.nextInt(2) << 30 : 0);
+
+		return values;
+	}
+
+	/**
+	 * Dictionary offsets, creation time, sequence, lifetime and dictionary
+	 * length as they usually appear in a primary block.
+	 */
+	private static int[] primaryBlock(Random r) {
+		final int[] values = new int[VALUES];
+		for (int i = 0; i < VALUES; i += 8) {
+			for (int j = 0; j < 4 && i + j < VALUES; j++)
+				values[i + j] = r.nextInt(64);
+
+			if (i + 4 < VALUES) values[i + 4] = 0x1A000000 + r.nextInt(0x100000);
+			if (i + 5 < VALUES) values[i + 5] = r.nextInt(8);
+			if (i + 6 < VALUES) values[i + 6] = 3600;
+			if (i + 7 < VALUES) values[i + 7] = 40 + r.nextInt(40);
+		}
+
+		return values;
+	}
+
+	private static void run(String name, int[] values) {
+		final ByteBuffer buffer = ByteBuffer.allocate(values.length * 5);
+		final byte[] array = buffer.array();
+		final int[] decoded = new int[values.length];
+
+		for (int i = 0; i < WARMUP; i++) {
+			legacyEncode(buffer, values);
+			encode(buffer, values);
+			encodeArray(array, values);
+			legacyDecode(buffer, decoded);
+			decode(buffer, decoded);
+			decodeBulk(buffer, decoded);
+			decodeArray(array, decoded);
+		}
+
+		System.err.printf("%s%n", name);
+
+		long t0 = System.nanoTime();
+		for (int i = 0; i < ROUNDS; i++)
+			legacyEncode(buffer, values);
+		report("  encode legacy", t0);
+
+		t0 = System.nanoTime();
+		for (int i = 0; i < ROUNDS; i++)
+			encode(buffer, values);
+		report("  encode buffer", t0);
+
+		t0 = System.nanoTime();
+		for (int i = 0; i < ROUNDS; i++)
+			encodeArray(array, values);
+		report("  encode byte[]", t0);
+
+		t0 = System.nanoTime();
+		for (int i = 0; i < ROUNDS; i++)
+			legacyDecode(buffer, decoded);
+		report("  decode legacy", t0);
+
+		t0 = System.nanoTime();
+		for (int i = 0; i < ROUNDS; i++)
+			decode(buffer, decoded);
+		report("  decode buffer", t0);
+
+		t0 = System.nanoTime();
+		for (int i = 0; i < ROUNDS; i++)
+			decodeBulk(buffer, decoded);
+		report("  decode bulk", t0);
+
+		t0 = System.nanoTime();
+		for (int i = 0; i < ROUNDS; i++)
+			decodeArray(array, decoded);
+		report("  decode byte[]", t0);
+
+		for (int i = 0; i < values.length; i++)
+			if (values[i] != decoded[i])
+				throw new IllegalStateException("Codec mismatch at " + i);
+	}
+
+	private static void report(String name, long t0) {
+		final double ns = (System.nanoTime() - t0) / (double) (ROUNDS * VALUES);
+		System.err.printf("%-20s %8.2f ns/value%n", name, ns);
+	}
+
+	private static void legacyEncode(ByteBuffer buffer, int[] values) {
+		buffer.clear();
+		for (int i = 0; i < values.length; i++)
+			LegacySDNV.encodeInt(buffer, values[i]);
+	}
+
+	private static void encode(ByteBuffer buffer, int[] values) {
+		buffer.clear();
+		for (int i = 0; i < values.length; i++)
+			SDNV.encodeInt(buffer, values[i]);
+	}
+
+	private static void encodeArray(byte[] array, int[] values) {
+		for (int i = 0, pos = 0; i < values.length; i++)
+			pos = SDNV.encodeInt(array, pos, values[i]);
+	}
+
+	private static void legacyDecode(ByteBuffer buffer, int[] decoded) {
+		buffer.rewind();
+		long acc = 0;
+		for (int i = 0; i < decoded.length; i++)
+			acc += decoded[i] = LegacySDNV.decodeInt(buffer);
+
+		sink = acc;
+	}
+
+	private static void decode(ByteBuffer buffer, int[] decoded) {
+		buffer.rewind();
+		long acc = 0;
+		for (int i = 0; i < decoded.length; i++)
+			acc += decoded[i] = SDNV.decodeInt(buffer);
+
+		sink = acc;
+	}
+
+	private static void decodeBulk(ByteBuffer buffer, int[] decoded) {
+		buffer.rewind();
+		SDNV.decodeInts(buffer, decoded, 0, decoded.length);
+		sink = decoded[decoded.length - 1];
+	}
+
+	private static void decodeArray(byte[] array, int[] decoded) {
+		SDNV.decodeInts(array, 0, decoded, 0, decoded.length);
+		sink = decoded[decoded.length - 1];
+	}
+
+
+	private static final class LegacySDNV {
+
+		public static void encodeInt(ByteBuffer buf, int value) {
+			if (value < 0 || value > 0xFFFFFFF)	{
+				buf.put((byte) ((value >> 0x1C) | 0x80));
+				buf.put((byte) ((value >> 0x15) | 0x80));
+				buf.put((byte) ((value >> 0x0E) | 0x80));
+				buf.put((byte) ((value >> 0x07) | 0x80));
+				buf.put((byte) (value & 0x7F));
+			} else if (value <= 0x7F) {
+				buf.put((byte) (value & 0x7F));
+			} else if (value <= 0x3FFF) {
+				buf.put((byte) ((value >> 0x07) | 0x80));
+				buf.put((byte) (value & 0x7F));
+			} else if (value <= 0x1FFFFF) {
+				buf.put((byte) ((value >> 0x0E) | 0x80));
+				buf.put((byte) ((value >> 0x07) | 0x80));
+				buf.put((byte) (value & 0x7F));
+			} else {
+				buf.put((byte) ((value >> 0x15) | 0x80));
+				buf.put((byte) ((value >> 0x0E) | 0x80));
+				buf.put((byte) ((value >> 0x07) | 0x80));
+				buf.put((byte) (value & 0x7F));
+			}
+		}
+
+		public static int decodeInt(ByteBuffer buf) {
+			byte b;
+			if ((b = buf.get()) >= 0)
+				return b;
+
+			int value = b & 0x7F;
+			if ((b = buf.get()) >= 0)
+				return value << 7 | b;
+
+			value = (value << 7) | (b & 0x7F);
+			if ((b = buf.get()) >= 0)
+				return value << 7 | b;
+
+			value = (value << 7) | (b & 0x7F);
+			if ((b = buf.get()) >= 0)
+				return value << 7 | b;
+
+			value = (value << 7) | (b & 0x7F);
+			if ((b = buf.get()) >= 0 && value <= 0x1FFFFFF)
+				return value << 7 | b;
+
+			throw new RuntimeException();
+		}
+	}
+}
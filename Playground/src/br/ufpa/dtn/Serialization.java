@@ -4,6 +4,7 @@ import java.nio.ByteBuffer;
 
 import br.ufpa.adtn.bundle.Bundle;
 import br.ufpa.adtn.bundle.BundleInfo;
+import br.ufpa.adtn.bundle.BundleReader;
 import br.ufpa.adtn.core.EID;
 import br.ufpa.adtn.routing.Message;
 import br.ufpa.adtn.routing.dlife.DLifeTLV;
@@ -46,8 +47,10 @@ public class Serialization {
 		
 		final ByteBuffer[] segments = chain.getSegments();
 		final DataBlock nBlock = DataBlock.join(segments);
-		final ByteBuffer nBuffer = nBlock.read();
-		final Bundle nBundle = new Bundle(nBuffer);
+		final Bundle nBundle = new BundleReader(null, nBlock.getLength()).read(
+				nBlock.open(),
+				nBlock.getLength()
+		);
 		final Message<DLifeTLV> msg = Message.unpack(
 				nBundle.getPayload().read(),
 				DLifeTLV.PARSER
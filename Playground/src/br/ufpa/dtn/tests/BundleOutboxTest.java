@@ -0,0 +1,166 @@
+/**
+ * Amazon-DTN - Lightweight Delay Tolerant Networking Implementation
+ * Copyright (C) 2013  Dórian C. Langbeck
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package br.ufpa.dtn.tests;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+
+import br.ufpa.adtn.bundle.Bundle;
+import br.ufpa.adtn.bundle.BundleInfo;
+import br.ufpa.adtn.core.BundleStorage;
+import br.ufpa.adtn.core.EID;
+import br.ufpa.adtn.util.BundleOutbox;
+import br.ufpa.adtn.util.DataBlock;
+import br.ufpa.adtn.util.Logger;
+import br.ufpa.adtn.util.Properties;
+
+/**
+ * Links and unlinks random routes of a {@link BundleOutbox}, cycles among
+ * them, with bundles waiting for every node. After each change, a search
+ * through any node must find exactly the bundles of the nodes a walk of the
+ * same routes reaches, oldest first.
+ */
+public class BundleOutboxTest {
+	private static final int NODES = 30;
+	private static final int BUNDLES = 3;
+	private static final int CHANGES = 3000;
+	private static final int ROUTES = 40;
+	
+	public static void main(String[] args) throws ExecutionException {
+		Logger.setLogHandler(null);
+		
+		final Random r = new Random(0);
+		final EID[] nodes = new EID[NODES];
+		for (int i = 0; i < NODES; i++)
+			nodes[i] = EID.get("dtn://node-" + i);
+		
+		final BundleStorage storage = BundleStorage.createStorage("memory", Long.MAX_VALUE, new Properties());
+		final BundleOutbox outbox = new BundleOutbox();
+		outbox.setStorage(storage);
+		
+		final Map<EID, Set<Long>> waiting = new HashMap<EID, Set<Long>>();
+		for (EID node : nodes) {
+			final Set<Long> ids = new HashSet<Long>();
+			for (int i = 0; i < BUNDLES; i++) {
+				final Bundle bundle = new Bundle(
+						BundleInfo.create(node, nodes[0]),
+						DataBlock.wrap(new byte[] { (byte) i })
+				);
+				
+				check(storage.add(bundle), "bundle not stored");
+				outbox.add(bundle);
+				ids.add(bundle.getUniqueID());
+			}
+			
+			waiting.put(node, ids);
+		}
+		
+		// Next hop -> destinations linked through it
+		final Map<EID, Set<EID>> routes = new HashMap<EID, Set<EID>>();
+		for (EID node : nodes)
+			routes.put(node, new HashSet<EID>());
+		
+		int count = 0;
+		int largest = 0;
+		for (int n = 0; n < CHANGES; n++) {
+			final EID next = nodes[r.nextInt(NODES)];
+			final EID dst = nodes[r.nextInt(NODES)];
+			
+			// Around as many routes as nodes reach most of the others
+			if (count < ROUTES ? r.nextInt(4) > 0 : r.nextInt(4) == 0) {
+				outbox.link(dst, next);
+				if (!dst.equals(next))
+					routes.get(next).add(dst);
+			} else {
+				final boolean unlinked = outbox.unlink(dst, next);
+				check(unlinked == routes.get(next).remove(dst), "unlink of " + dst + " through " + next);
+			}
+			
+			count = 0;
+			for (Set<EID> dsts : routes.values())
+				count += dsts.size();
+			
+			largest = Math.max(largest, verify(outbox, nodes, routes, waiting));
+		}
+		
+		System.err.printf("%d route changes, searches of up to %d bundles%n", CHANGES, largest);
+		System.err.println("BundleOutbox OK");
+	}
+	
+	/**
+	 * Returns the number of bundles of the largest search.
+	 */
+	private static int verify(BundleOutbox outbox, EID[] nodes, Map<EID, Set<EID>> routes, Map<EID, Set<Long>> waiting) {
+		int largest = 0;
+		for (EID node : nodes) {
+			final Set<Long> expected = new HashSet<Long>(waiting.get(node));
+			for (EID reached : walk(routes, node))
+				expected.addAll(waiting.get(reached));
+			
+			final Set<Long> found = new HashSet<Long>();
+			BundleInfo previous = null;
+			for (Bundle bundle : outbox.searchBundles(node)) {
+				check(found.add(bundle.getUniqueID()), "bundle found twice through " + node);
+				
+				final BundleInfo info = bundle.getInfo();
+				check(previous == null || older(previous, info), "bundles out of order through " + node);
+				previous = info;
+			}
+			
+			check(found.equals(expected), String.format(
+					"%d bundles found through %s instead of %d",
+					found.size(), node, expected.size()
+			));
+			
+			largest = Math.max(largest, found.size());
+		}
+		
+		return largest;
+	}
+	
+	private static boolean older(BundleInfo a, BundleInfo b) {
+		if (a.getCreationTime() != b.getCreationTime())
+			return a.getCreationTime() < b.getCreationTime();
+		
+		return a.getCreationSequence() <= b.getCreationSequence();
+	}
+	
+	private static Set<EID> walk(Map<EID, Set<EID>> routes, EID start) {
+		final Set<EID> visited = new HashSet<EID>();
+		final Deque<EID> search = new ArrayDeque<EID>();
+		search.push(start);
+		
+		for (EID eid; (eid = search.poll()) != null; )
+			for (EID next : routes.get(eid))
+				if (visited.add(next))
+					search.push(next);
+		
+		return visited;
+	}
+	
+	private static void check(boolean condition, String message) {
+		if (!condition)
+			throw new AssertionError(message);
+	}
+}
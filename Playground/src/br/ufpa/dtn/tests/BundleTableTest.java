@@ -0,0 +1,203 @@
+/**
+ * Amazon-DTN - Lightweight Delay Tolerant Networking Implementation
+ * Copyright (C) 2013  Dórian C. Langbeck
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package br.ufpa.dtn.tests;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import br.ufpa.adtn.bundle.Bundle;
+import br.ufpa.adtn.bundle.BundleInfo;
+import br.ufpa.adtn.core.BundleTable;
+import br.ufpa.adtn.core.EID;
+import br.ufpa.adtn.util.DataBlock;
+import br.ufpa.adtn.util.Logger;
+
+/**
+ * Inserts and removes random rows of a {@link BundleTable}, fragments and
+ * duplicates among them, while keeping the same rows in a plain map. After
+ * every few operations the table must agree with the map: lookups by unique
+ * ID, by source and by destination, and the primary blocks rebuilt from the
+ * columns.
+ */
+public class BundleTableTest {
+	private static final int OPERATIONS = 100000;
+	private static final int CHECK_EVERY = 997;
+	private static final int NODES = 40;
+	
+	public static void main(String[] args) {
+		Logger.setLogHandler(null);
+		
+		final Random r = new Random(0);
+		final EID[] nodes = new EID[NODES];
+		for (int i = 0; i < NODES; i++)
+			nodes[i] = EID.get("dtn://node-" + i + "/app");
+		
+		final BundleTable table = new BundleTable(16);
+		final Map<Long, Row> rows = new HashMap<Long, Row>();
+		final List<Row> live = new ArrayList<Row>();
+		final List<Long> removed = new ArrayList<Long>();
+		final BitSet taken = new BitSet();
+		int peak = 0;
+		
+		for (int n = 1; n <= OPERATIONS; n++) {
+			final int op = r.nextInt(10);
+			if (op < 5 || live.isEmpty()) {
+				final Row row = new Row(create(r, nodes), r.nextInt(512), r.nextInt(1 << 20), r.nextLong());
+				row.slot = table.insert(row.info, row.headLength, row.payloadLength, row.location);
+				check(row.slot != BundleTable.NONE, "insert of a new row refused");
+				check(!taken.get(row.slot), "slot " + row.slot + " given twice");
+				taken.set(row.slot);
+				
+				rows.put(row.uniqueID, row);
+				live.add(row);
+			} else if (op < 9) {
+				final Row row = live.remove(r.nextInt(live.size()));
+				table.remove(row.slot);
+				taken.clear(row.slot);
+				rows.remove(row.uniqueID);
+				removed.add(row.uniqueID);
+			} else {
+				final Row row = live.get(r.nextInt(live.size()));
+				if (r.nextBoolean()) {
+					row.location = r.nextLong();
+					table.setLocation(row.slot, row.location);
+				} else {
+					check(table.insert(row.info, 0, 0, 0) == BundleTable.NONE, "duplicate inserted");
+				}
+			}
+			
+			peak = Math.max(peak, live.size());
+			if (n % CHECK_EVERY == 0 || n == OPERATIONS)
+				verify(table, nodes, rows, removed);
+		}
+		
+		System.err.printf("%d operations, up to %d rows%n", OPERATIONS, peak);
+		System.err.println("BundleTable OK");
+	}
+	
+	private static BundleInfo create(Random r, EID[] nodes) {
+		final EID dst = nodes[r.nextInt(NODES)];
+		final EID src = nodes[r.nextInt(NODES)];
+		final EID reportTo = nodes[r.nextInt(NODES)];
+		final EID custodian = nodes[r.nextInt(NODES)];
+		final BundleInfo info;
+		if (r.nextInt(4) == 0) {
+			final int total = 1 + r.nextInt(1 << 20);
+			info = BundleInfo.create(dst, src, reportTo, custodian, r.nextInt(total), total,
+					BundleInfo.BUNDLE_IS_A_FRAGMENT_FLAG);
+		} else {
+			info = BundleInfo.create(dst, src, reportTo, custodian, 0, 0, r.nextBoolean()
+					? BundleInfo.CUSTODY_TRANSFER_FLAG
+					: BundleInfo.SINGLETON_DESTINATION_FLAG);
+		}
+		
+		// Unique IDs are only given to attached blocks
+		new Bundle(info, DataBlock.wrap(new byte[0]));
+		return info;
+	}
+	
+	private static void verify(BundleTable table, EID[] nodes, Map<Long, Row> rows, List<Long> removed) {
+		check(table.size() == rows.size(), "size " + table.size() + " instead of " + rows.size());
+		
+		for (Row row : rows.values()) {
+			final int slot = row.slot;
+			check(table.find(row.uniqueID) == slot, "row not found: " + row.uniqueID);
+			check(table.isUsed(slot), "slot " + slot + " not in use");
+			check(table.getUniqueID(slot) == row.uniqueID, "unique ID of " + slot);
+			check(table.getSource(slot) == row.info.getSource(), "source of " + slot);
+			check(table.getDestination(slot) == row.info.getDestination(), "destination of " + slot);
+			check(table.getHeadLength(slot) == row.headLength, "head length of " + slot);
+			check(table.getPayloadLength(slot) == row.payloadLength, "payload length of " + slot);
+			check(table.getLocation(slot) == row.location, "location of " + slot);
+			check(table.getFlags(slot) == row.info.getFlags(), "flags of " + slot);
+			
+			final BundleInfo info = table.getInfo(slot);
+			final BundleInfo expected = row.info;
+			check(info.getDestination() == expected.getDestination()
+					&& info.getSource() == expected.getSource()
+					&& info.getReportTo() == expected.getReportTo()
+					&& info.getCustodian() == expected.getCustodian()
+					&& info.getCreationTime() == expected.getCreationTime()
+					&& info.getCreationSequence() == expected.getCreationSequence()
+					&& info.getFragmentOffset() == expected.getFragmentOffset()
+					&& info.getTotalDataLength() == expected.getTotalDataLength()
+					&& info.getLifetime() == expected.getLifetime()
+					&& info.getFlags() == expected.getFlags(),
+					"primary block of " + slot + " not rebuilt");
+		}
+		
+		for (long uniqueID : removed)
+			if (!rows.containsKey(uniqueID))
+				check(table.find(uniqueID) == BundleTable.NONE, "removed row found: " + uniqueID);
+		
+		for (EID node : nodes) {
+			final List<Integer> bySource = new ArrayList<Integer>();
+			final List<Integer> byDestination = new ArrayList<Integer>();
+			for (Row row : rows.values()) {
+				if (row.info.getSource() == node)
+					bySource.add(row.slot);
+				
+				if (row.info.getDestination() == node)
+					byDestination.add(row.slot);
+			}
+			
+			check(same(table.findBySource(node), bySource), "rows from " + node);
+			check(same(table.findByDestination(node), byDestination), "rows to " + node);
+		}
+	}
+	
+	private static boolean same(int[] slots, List<Integer> expected) {
+		if (slots.length != expected.size())
+			return false;
+		
+		final int[] sorted = new int[expected.size()];
+		for (int i = 0; i < sorted.length; i++)
+			sorted[i] = expected.get(i);
+		
+		Arrays.sort(sorted);
+		Arrays.sort(slots);
+		return Arrays.equals(slots, sorted);
+	}
+	
+	private static void check(boolean condition, String message) {
+		if (!condition)
+			throw new AssertionError(message);
+	}
+	
+	private static class Row {
+		private final BundleInfo info;
+		private final long uniqueID;
+		private final int headLength;
+		private final int payloadLength;
+		private long location;
+		private int slot;
+		
+		public Row(BundleInfo info, int headLength, int payloadLength, long location) {
+			this.uniqueID = info.getUniqueID();
+			this.payloadLength = payloadLength;
+			this.headLength = headLength;
+			this.location = location;
+			this.info = info;
+		}
+	}
+}
@@ -0,0 +1,136 @@
+/**
+ * Amazon-DTN - Lightweight Delay Tolerant Networking Implementation
+ * Copyright (C) 2013  Dórian C. Langbeck
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package br.ufpa.dtn.tests;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import br.ufpa.adtn.core.EID;
+
+/**
+ * Interns many {@link EID}s, lets every other one be collected and interns
+ * as many new ones, which must take the freed IDs instead of new ones.
+ * Held EIDs must keep their instance and ID, found both by text and by
+ * dictionary bytes, and no two live EIDs may share an ID.
+ */
+public class EIDTest {
+	private static final int EIDS = 20000;
+	private static final int GC_TRIES = 50;
+	
+	public static void main(String[] args) throws InterruptedException {
+		// All held while interned, so none of their IDs is reused yet
+		List<EID> all = new ArrayList<EID>();
+		for (int i = 0; i < EIDS; i++) {
+			final EID eid = EID.get("dtn://node-" + i + "/app");
+			check(EID.get("dtn://node-" + i + "/app") == eid, "not interned: " + eid);
+			check(EID.byId(eid.getId()) == eid, "not found by ID: " + eid);
+			all.add(eid);
+		}
+		
+		final int bound = EID.getCount();
+		final List<EID> held = new ArrayList<EID>();
+		final List<WeakReference<EID>> dropped = new ArrayList<WeakReference<EID>>();
+		for (int i = 0; i < EIDS; i++) {
+			if (i % 2 == 0)
+				held.add(all.get(i));
+			else
+				dropped.add(new WeakReference<EID>(all.get(i)));
+		}
+		
+		all = null;
+		collect(dropped);
+		
+		final List<EID> fresh = new ArrayList<EID>();
+		for (int i = 0; i < EIDS / 2; i++)
+			fresh.add(EID.get("dtn://fresh-" + i + "/app"));
+		
+		check(EID.getCount() == bound, String.format(
+				"IDs not reused: bound went from %d to %d",
+				bound, EID.getCount()
+		));
+		
+		final BitSet ids = new BitSet();
+		verify(held, ids);
+		verify(fresh, ids);
+		
+		// Collected names are interned again, as new EIDs
+		final EID again = EID.get("dtn://node-1/app");
+		check(EID.byId(again.getId()) == again, "reinterned not found by ID");
+		check(!ids.get(again.getId()), "reinterned EID shares an ID");
+		
+		System.err.printf("%d EIDs interned below ID %d%n", EIDS * 3 / 2, bound);
+		System.err.println("EID OK");
+	}
+	
+	/**
+	 * Runs the collector until the dropped EIDs are gone, then waits for
+	 * their references to be enqueued.
+	 */
+	private static void collect(List<WeakReference<EID>> dropped) throws InterruptedException {
+		for (int n = 0; n < GC_TRIES; n++) {
+			System.gc();
+			
+			boolean cleared = true;
+			for (WeakReference<EID> ref : dropped)
+				cleared &= ref.get() == null;
+			
+			if (cleared) {
+				Thread.sleep(200);
+				return;
+			}
+			
+			Thread.sleep(20);
+		}
+		
+		throw new AssertionError("Dropped EIDs not collected");
+	}
+	
+	/**
+	 * Scheme and SSP as NUL terminated strings, the SSP right after.
+	 */
+	private static byte[] dictionary(EID eid) {
+		final String text = eid.getScheme() + '\0' + eid.getSSP() + '\0';
+		final byte[] data = new byte[text.length()];
+		for (int i = 0; i < data.length; i++)
+			data[i] = (byte) text.charAt(i);
+		
+		return data;
+	}
+	
+	/**
+	 * Checks {@code eids} are found by ID, text and bytes, and that their
+	 * IDs are not in {@code ids}, where they are added.
+	 */
+	private static void verify(List<EID> eids, BitSet ids) {
+		for (EID eid : eids) {
+			check(!ids.get(eid.getId()), "ID shared: " + eid.getId());
+			ids.set(eid.getId());
+			check(EID.byId(eid.getId()) == eid, "not found by ID: " + eid);
+			check(EID.get(eid.toString()) == eid, "not found by text: " + eid);
+			check(EID.get(dictionary(eid), 0, eid.getScheme().length() + 1) == eid,
+					"not found by bytes: " + eid);
+		}
+	}
+	
+	private static void check(boolean condition, String message) {
+		if (!condition)
+			throw new AssertionError(message);
+	}
+}
@@ -0,0 +1,149 @@
+/**
+ * Amazon-DTN - Lightweight Delay Tolerant Networking Implementation
+ * Copyright (C) 2013  Dórian C. Langbeck
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package br.ufpa.dtn.tests;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+
+import br.ufpa.adtn.util.EventQueue;
+import br.ufpa.adtn.util.EventQueue.Event;
+
+/**
+ * Posts to an {@link EventQueue} many more events than its ring holds,
+ * first before it starts and then while its thread is held by a slow event,
+ * so most of them overflow. Events of each producer must run once each and
+ * in the order they were posted, across the ring and the overflow.
+ */
+public class EventQueueTest {
+	private static final int EVENTS = 20000;
+	private static final int PRODUCERS = 4;
+	private static final int ROUNDS = 50;
+	
+	public static void main(String[] args) throws Exception {
+		single();
+		for (int round = 0; round < ROUNDS; round++)
+			concurrent();
+		
+		System.err.println("EventQueue OK");
+
+		// Queue threads never stop by themselves
+		System.exit(0);
+	}
+	
+	/**
+	 * One producer, before and after the queue starts.
+	 */
+	private static void single() throws Exception {
+		final EventQueue queue = new EventQueue(false);
+		final Sequence sequence = new Sequence(1, EVENTS * 2);
+		for (int i = 0; i < EVENTS; i++)
+			queue.fire(sequence.next(0));
+		
+		queue.start();
+		for (int i = 0; i < EVENTS; i++)
+			queue.fire(sequence.next(0));
+		
+		sequence.await();
+		System.err.printf("%d events posted by one producer%n", EVENTS * 2);
+	}
+	
+	/**
+	 * Several producers, racing each other and the queue thread.
+	 */
+	private static void concurrent() throws Exception {
+		final EventQueue queue = new EventQueue();
+		final Sequence sequence = new Sequence(PRODUCERS, EVENTS * PRODUCERS);
+		final CountDownLatch hold = new CountDownLatch(1);
+		queue.fire(new Event() {
+			
+			@Override
+			public void execute() throws Throwable {
+				hold.await();
+			}
+		});
+		
+		final Thread[] producers = new Thread[PRODUCERS];
+		for (int p = 0; p < PRODUCERS; p++) {
+			final int producer = p;
+			producers[p] = new Thread() {
+				
+				@Override
+				public void run() {
+					for (int i = 0; i < EVENTS; i++) {
+						queue.fire(sequence.next(producer));
+						if (producer == 0 && i == EVENTS / 4)
+							hold.countDown();
+					}
+				}
+			};
+		}
+		
+		for (Thread producer : producers)
+			producer.start();
+		
+		for (Thread producer : producers)
+			producer.join();
+		
+		sequence.await();
+	}
+	
+	/**
+	 * Numbers the events of each producer and checks them as they run, all
+	 * inside the queue thread.
+	 */
+	private static class Sequence {
+		private final CountDownLatch done;
+		private final int[] posted;
+		private final int[] run;
+		private volatile String error;
+		
+		public Sequence(int producers, int events) {
+			this.done = new CountDownLatch(events);
+			this.posted = new int[producers];
+			this.run = new int[producers];
+		}
+		
+		public Event next(final int producer) {
+			final int number = posted[producer]++;
+			return new Event() {
+				
+				@Override
+				public void execute() throws Throwable {
+					if (error == null && run[producer] != number)
+						error = String.format(
+								"producer %d: event %d ran after %d",
+								producer, number, run[producer] - 1
+						);
+					
+					run[producer] = number + 1;
+					done.countDown();
+				}
+			};
+		}
+		
+		public void await() throws InterruptedException, ExecutionException {
+			done.await();
+			check(error == null, error);
+		}
+	}
+	
+	private static void check(boolean condition, String message) {
+		if (!condition)
+			throw new AssertionError(message);
+	}
+}
@@ -0,0 +1,118 @@
+/**
+ * Amazon-DTN - Lightweight Delay Tolerant Networking Implementation
+ * Copyright (C) 2013  Dórian C. Langbeck
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package br.ufpa.dtn.tests;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import br.ufpa.adtn.util.TimingWheel;
+import br.ufpa.adtn.util.TimingWheel.Timeout;
+
+/**
+ * Schedules items in every level of a {@link TimingWheel}, and beyond its
+ * range, then advances it in uneven steps so the upper levels cascade many
+ * times. Each item must expire in the first step reaching its deadline,
+ * and cancelled ones never.
+ */
+public class TimingWheelTest {
+	private static final int ITEMS = 20000;
+	private static final int MAX_STEP = 500;
+	
+	public static void main(String[] args) {
+		final Random r = new Random(0);
+		for (int levels = 1; levels <= 3; levels++)
+			run(r, levels);
+		
+		System.err.println("TimingWheel OK");
+	}
+	
+	private static void run(Random r, int levels) {
+		final long start = 1000;
+		final long range = 1L << (6 * levels);
+		final TimingWheel<Integer> wheel = new TimingWheel<Integer>(start, levels);
+		
+		final List<Long> deadlines = new ArrayList<Long>();
+		for (long bound = 64; bound <= range * 2; bound <<= 6) {
+			deadlines.add(start + bound - 1);
+			deadlines.add(start + bound);
+			deadlines.add(start + bound + 1);
+		}
+		
+		while (deadlines.size() < ITEMS)
+			deadlines.add(start + 1 + (long) (r.nextDouble() * range * 3));
+		
+		final long[] deadline = new long[deadlines.size()];
+		final boolean[] live = new boolean[deadline.length];
+		final List<Timeout<Integer>> timeouts = new ArrayList<Timeout<Integer>>();
+		for (int i = 0; i < deadline.length; i++) {
+			deadline[i] = deadlines.get(i);
+			live[i] = true;
+			timeouts.add(wheel.schedule(i, deadline[i]));
+		}
+		
+		final List<Integer> expired = new ArrayList<Integer>();
+		long now = start;
+		int left = deadline.length;
+		while (left > 0) {
+			final long previous = now;
+			now += 1 + r.nextInt(MAX_STEP);
+			
+			// Cancel a few items not due yet, as a purge would
+			for (int n = 0; n < 3; n++) {
+				final int i = r.nextInt(deadline.length);
+				final boolean cancelled = wheel.cancel(timeouts.get(i));
+				check(cancelled == live[i], "cancel of " + i);
+				if (cancelled) {
+					live[i] = false;
+					left--;
+				}
+			}
+			
+			expired.clear();
+			final int count = wheel.advance(now, expired);
+			check(count == expired.size(), "expired count");
+			
+			for (int i : expired) {
+				check(live[i], "item " + i + " expired twice or after being cancelled");
+				check(deadline[i] > previous && deadline[i] <= now, String.format(
+						"item %d due at %d expired in (%d, %d]",
+						i, deadline[i], previous, now
+				));
+				
+				live[i] = false;
+				left--;
+			}
+			
+			int due = 0;
+			for (int i = 0; i < deadline.length; i++)
+				if (live[i] && deadline[i] <= now)
+					due++;
+			
+			check(due == 0, due + " items late at " + now);
+			check(wheel.size() == left, "size " + wheel.size() + " instead of " + left);
+		}
+		
+		System.err.printf("%d levels: %d items expired until tick %d%n", levels, deadline.length, now);
+	}
+	
+	private static void check(boolean condition, String message) {
+		if (!condition)
+			throw new AssertionError(message);
+	}
+}
@@ -21,6 +21,7 @@ import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -30,25 +31,38 @@ import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import br.ufpa.adtn.bundle.Bundle;
 import br.ufpa.adtn.core.BPAgent;
 import br.ufpa.adtn.core.ConvergenceLayer;
 import br.ufpa.adtn.core.EID;
+import br.ufpa.adtn.util.BufferPool;
 import br.ufpa.adtn.util.ChainOfSegments;
-import br.ufpa.adtn.util.DataBlock;
+import br.ufpa.adtn.util.GatheringWriter;
 import br.ufpa.adtn.util.Logger;
+import br.ufpa.adtn.util.OutputStreamChannel;
 import br.ufpa.adtn.util.Properties;
 import br.ufpa.dtns.cl.VirtualConvergenceLayer.VirtualAdapter;
 import br.ufpa.dtns.cl.VirtualConvergenceLayer.VirtualConnection;
 
 public class VirtualConvergenceLayer extends ConvergenceLayer<VirtualAdapter, VirtualConnection> {
 	private static final short BUNDLE_HEADER = (short) 0x8A2D;
+	private static final short ACK_HEADER = (short) 0x8A2E;
 	private static final short MAGIC_HEADER = (short) 0x4E10;
+	private static final int CHUNK_SIZE = 0x4000;
+	private static final int BUFFER_SIZE = 0x10000;
+	private static final int ACK_INTERVAL = 0x4000;
+	private static final long ACK_DELAY = 100L;
 	
 	private static final Logger LOGGER = new Logger("VirtualCL");
 	private static VirtualAdapter ADAPTER = null;
 	
+	private static long ack(int sequence, int received) {
+		return ((long) sequence << 32) | (received & 0xFFFFFFFFL);
+	}
+	
 	public static VirtualAdapter getMainAdapter() {
 		return ADAPTER;
 	}
@@ -134,7 +148,22 @@ public class VirtualConvergenceLayer extends ConvergenceLayer<VirtualAdapter, Vi
 		private final SocketAddress address;
 		private Socket socket;
 		
+		/*
+		 * Acknowledgements share the output with bundles and go between
+		 * them. Only the output thread writes them: an input thread blocked
+		 * on a write would stop reading, and two peers sending to each
+		 * other could then block both.
+		 */
+		private final AtomicLong pendingAck = new AtomicLong();
+		
+		/**
+		 * Last acknowledgement received, as sequence number of the bundle on
+		 * this connection and bytes of it received by the other side.
+		 */
+		private volatile long lastAck;
+		
 		{
+			// The outbox already hands bundles in the send order
 			outputBundles = new LinkedBlockingQueue<Bundle>();
 		}
 		
@@ -162,14 +191,27 @@ public class VirtualConvergenceLayer extends ConvergenceLayer<VirtualAdapter, Vi
 
 		@Override
 		public void send(Bundle bundle) {
+			try {
+				// Keep the payload alive until this bundle leaves the queue
+				bundle.getPayload().retain();
+			} catch (IllegalStateException e) {
+				LOGGER.w("Bundle released before being queued [IGNORING]");
+				return;
+			}
+			
 			outputBundles.offer(bundle);
 		}
 
 		@Override
 		protected void processOutput(OutputStream out) throws IOException {
+			final BufferPool pool = BufferPool.heap();
+			ByteBuffer buffer = null;
 			Bundle bundle = null;
+			int sequence = 0;
+			int headLength = 0;
 			try {
 				final DataOutputStream dos = new DataOutputStream(out);
+				final OutputStreamChannel channel = new OutputStreamChannel(dos);
 				dos.writeShort(MAGIC_HEADER);
 				
 				//FIXME Each ConvergenceLayer must have your own EID (if needed)
@@ -177,23 +219,37 @@ public class VirtualConvergenceLayer extends ConvergenceLayer<VirtualAdapter, Vi
 				dos.flush();
 				
 				while (!Thread.interrupted()) {
-					// Buffer allocation need get smarter
-					final ByteBuffer buffer = ByteBuffer.allocate(0x10000);
 					final ChainOfSegments chain = new ChainOfSegments();
 					
-					bundle = outputBundles.take();
+					if (writePendingAck(dos))
+						dos.flush();
+					
+					bundle = outputBundles.poll(ACK_DELAY, TimeUnit.MILLISECONDS);
+					if (bundle == null)
+						continue;
+					
 					notifyTransferStarted(bundle);
 					
+					buffer = pool.acquire(BUFFER_SIZE);
 					bundle.serialize(chain, buffer);
-					final DataBlock block = DataBlock.join(chain.getSegments());
-					final int bLength = block.getLength();
+					final GatheringWriter writer = new GatheringWriter(chain);
+					final int bLength = (int) writer.getRemaining();
+					headLength = bLength - bundle.getPayloadLength();
+					sequence++;
 
 					dos.writeShort(BUNDLE_HEADER);
 					dos.writeInt(bLength);
-					block.copy(dos);
+					
+					while (!writer.isDone())
+						writer.write(channel, CHUNK_SIZE);
+					
 					dos.flush();
 					
+					pool.release(buffer);
+					buffer = null;
+					
 					notifyTransferred(bundle);
+					bundle.getPayload().release();
 					bundle = null;
 				}
 			} catch (InterruptedException e) {
@@ -203,8 +259,26 @@ public class VirtualConvergenceLayer extends ConvergenceLayer<VirtualAdapter, Vi
 			} finally {
 				LOGGER.d("EXITING(processOutput)");
 				
-				if (bundle != null)
-					notifyTransferAborted(bundle);
+				if (buffer != null)
+					pool.release(buffer);
+				
+				/*
+				 * The other side turns whatever arrived into a fragment on
+				 * its own. Only the part it acknowledged is left out of the
+				 * stored bundle.
+				 */
+				if (bundle != null) {
+					final long ack = lastAck;
+					final int acked = (int) (ack >>> 32) == sequence ?
+							(int) ack - headLength : 0;
+					
+					notifyTransferAborted(bundle, acked);
+					bundle.getPayload().release();
+				}
+				
+				// Unsent bundles are still in the outbox for the next contact
+				while ((bundle = outputBundles.poll()) != null)
+					bundle.getPayload().release();
 			}
 		}
 
@@ -218,26 +292,99 @@ public class VirtualConvergenceLayer extends ConvergenceLayer<VirtualAdapter, Vi
 			if (!isRegistered())
 				register(remote_eid);
 			
+			int sequence = 0;
 			try {
 				while (isConnected()) {
-					if (dis.readShort() != BUNDLE_HEADER)
+					final short header = dis.readShort();
+					if (header == ACK_HEADER) {
+						lastAck = ack(dis.readInt(), dis.readInt());
+						continue;
+					}
+					
+					if (header != BUNDLE_HEADER)
 						throw new IOException("Wrong header");
 					
+					final int l;
 					try {
-						final int l = dis.readInt();
-						final byte[] b = new byte[l];
-						for (int r = 0, p = 0; (r = dis.read(b, p, l - p)) != -1 && r < l; p += r);
-						
-						notifyReceived(new Bundle(ByteBuffer.wrap(b)));
+						l = dis.readInt();
 					} catch (IOException e) {
 						LOGGER.w("Connection failure");
 						break;
 					}
+					
+					if (!receiveBundle(new AckingInputStream(dis, ++sequence), l))
+						break;
 				}
 			} finally {
 				LOGGER.d("EXITING(processInput)");
 			}
 		}
+		
+		private boolean writePendingAck(DataOutputStream dos) throws IOException {
+			final long ack = pendingAck.getAndSet(0L);
+			if (ack == 0L)
+				return false;
+			
+			dos.writeShort(ACK_HEADER);
+			dos.writeInt((int) (ack >>> 32));
+			dos.writeInt((int) ack);
+			return true;
+		}
+		
+		/**
+		 * Leaves for the output thread, every {@link #ACK_INTERVAL} bytes,
+		 * the acknowledgement of what the bundle reader took from the input.
+		 * Bytes only count when the reader comes back for more, once it has
+		 * kept the previous ones.
+		 */
+		private class AckingInputStream extends FilterInputStream {
+			private final int sequence;
+			private int received;
+			private int acked;
+			
+			public AckingInputStream(InputStream in, int sequence) {
+				super(in);
+				this.sequence = sequence;
+				this.received = 0;
+				this.acked = 0;
+			}
+			
+			@Override
+			public int read() throws IOException {
+				acknowledge();
+				final int b = super.read();
+				if (b != -1)
+					received++;
+				
+				return b;
+			}
+			
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				acknowledge();
+				final int count = super.read(b, off, len);
+				if (count > 0)
+					received += count;
+				
+				return count;
+			}
+			
+			@Override
+			public long skip(long n) throws IOException {
+				acknowledge();
+				final long count = super.skip(n);
+				received += (int) count;
+				return count;
+			}
+			
+			private void acknowledge() {
+				if (received - acked < ACK_INTERVAL)
+					return;
+				
+				acked = received;
+				pendingAck.set(ack(sequence, received));
+			}
+		}
 
 		@Override
 		protected void openConnection() throws IOException {